@@ -0,0 +1,88 @@
+package smarthome.benchmarks;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import smarthome.SmartHomeManagementSystem;
+import smarthome.SmartHomeManagementSystem.Command;
+import smarthome.SmartHomeManagementSystem.CommandTokenizer;
+import smarthome.SmartHomeManagementSystem.DeviceStore;
+
+// Device commands run the way main runs them: from the input bytes through parsing and the
+// dispatch table to the handler, and from commands parsed ahead of time, which leaves only
+// the dispatch and the handler.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class CommandDispatchBenchmark {
+    private static final int COMMANDS = 4096;
+
+    @Param({"objects", "columnar", "atomic"})
+    public String storeType;
+
+    @Param({"10", "10000"})
+    public int numberOfDevices;
+
+    private DeviceStore smartDevices;
+    private byte[] input;
+    private Command[] commands;
+    private CommandTokenizer tokenizer;
+    private final Workloads.CountingSink output = new Workloads.CountingSink();
+
+    @Setup
+    public void setUp() {
+        smartDevices = Workloads.newStore(storeType, numberOfDevices);
+        SplittableRandom random = new SplittableRandom(Workloads.SEED);
+        String[] lines = new String[COMMANDS];
+        commands = new Command[COMMANDS];
+        for (int i = 0; i < COMMANDS; i++) {
+            lines[i] = Workloads.deviceCommand(random, numberOfDevices);
+            commands[i] = SmartHomeManagementSystem.parseCommand(lines[i]);
+        }
+        input = Workloads.asInput(lines);
+        tokenizer = new CommandTokenizer();
+        SmartHomeManagementSystem.bindResponseSink(output);
+    }
+
+    @TearDown
+    public void tearDown() {
+        SmartHomeManagementSystem.unbindResponseSink();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public long executeInputLines() throws IOException {
+        tokenizer.reset(input, input.length);
+        while (tokenizer.nextLine()) {
+            SmartHomeManagementSystem.executeCommand(tokenizer, smartDevices);
+        }
+        return output.characters;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public long executeParsedCommands() {
+        for (Command command : commands) {
+            SmartHomeManagementSystem.executeCommand(command, smartDevices);
+        }
+        return output.characters;
+    }
+}
@@ -0,0 +1,66 @@
+package smarthome.benchmarks;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import smarthome.SmartHomeManagementSystem;
+import smarthome.SmartHomeManagementSystem.CommandTokenizer;
+
+// Parsing of command lines into Command records, from the bytes of the input as main reads
+// them and from decoded lines as the fallback for non-ASCII input parses them.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class CommandParsingBenchmark {
+    private static final int LINES = 4096;
+    private static final int DEVICES = 10_000;
+
+    private String[] lines;
+    private byte[] input;
+    private CommandTokenizer tokenizer;
+
+    @Setup
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(Workloads.SEED);
+        lines = new String[LINES];
+        for (int i = 0; i < LINES; i++) {
+            lines[i] = Workloads.anyCommand(random, DEVICES);
+        }
+        input = Workloads.asInput(lines);
+        tokenizer = new CommandTokenizer();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parseInputBytes(Blackhole blackhole) throws IOException {
+        tokenizer.reset(input, input.length);
+        while (tokenizer.nextLine()) {
+            blackhole.consume(SmartHomeManagementSystem.parseCommand(tokenizer));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parseDecodedLines(Blackhole blackhole) {
+        for (String line : lines) {
+            blackhole.consume(SmartHomeManagementSystem.parseCommand(line));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package smarthome.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import smarthome.SmartHomeManagementSystem;
+import smarthome.SmartHomeManagementSystem.Command;
+import smarthome.SmartHomeManagementSystem.DeviceStore;
+
+// DisplayAllStatus over stores of growing size. The status cache renders the lines once, so
+// the steady state measures the scan and the output. The second benchmark changes a device
+// before each display, which renders that line again, and the third displays only the
+// devices changed since the last version.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class DisplayStatusBenchmark {
+    @Param({"objects", "columnar", "atomic"})
+    public String storeType;
+
+    @Param({"10", "10000", "1000000"})
+    public int numberOfDevices;
+
+    private DeviceStore smartDevices;
+    private Command turnOn;
+    private Command turnOff;
+    private boolean on = true;
+    private final Workloads.CountingSink output = new Workloads.CountingSink();
+
+    @Setup
+    public void setUp() {
+        smartDevices = Workloads.newStore(storeType, numberOfDevices);
+        turnOn = SmartHomeManagementSystem.parseCommand("TurnOn Light 0");
+        turnOff = SmartHomeManagementSystem.parseCommand("TurnOff Light 0");
+        SmartHomeManagementSystem.bindResponseSink(output);
+    }
+
+    @TearDown
+    public void tearDown() {
+        SmartHomeManagementSystem.unbindResponseSink();
+    }
+
+    @Benchmark
+    public long displayAllStatus() {
+        SmartHomeManagementSystem.displayAllStatus(smartDevices);
+        return output.characters;
+    }
+
+    @Benchmark
+    public long displayAllStatusAfterChange() {
+        toggleLight();
+        SmartHomeManagementSystem.displayAllStatus(smartDevices);
+        return output.characters;
+    }
+
+    @Benchmark
+    public long displayChangedStatusAfterChange() {
+        long version = smartDevices.statusCache().nextVersion();
+        toggleLight();
+        SmartHomeManagementSystem.displayChangedStatus(version, smartDevices);
+        return output.characters;
+    }
+
+    private void toggleLight() {
+        on = !on;
+        SmartHomeManagementSystem.executeCommand(on ? turnOn : turnOff, smartDevices);
+    }
+}
@@ -0,0 +1,100 @@
+package smarthome.benchmarks;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import smarthome.SmartHomeManagementSystem;
+import smarthome.SmartHomeManagementSystem.Command;
+import smarthome.SmartHomeManagementSystem.ConcurrentCommandExecutor;
+import smarthome.SmartHomeManagementSystem.DeviceStore;
+import smarthome.SmartHomeManagementSystem.SmartDevice;
+import smarthome.SmartHomeManagementSystem.StatusCache;
+import smarthome.SmartHomeManagementSystem.StripedLocks;
+
+// Reads and writes of single devices in a given mix, through the executor that --threads
+// uses, so the same benchmark measures the locking with more threads (-t 4). A read looks up
+// a device and its status line, a write runs a device command.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class MixedWorkloadBenchmark {
+    private static final int OPERATIONS = 4096;
+    private static final int DEVICES = 10_000;
+
+    @Param({"objects", "columnar", "atomic"})
+    public String storeType;
+
+    @Param({"10", "50", "90"})
+    public int readPercent;
+
+    private DeviceStore smartDevices;
+    private ConcurrentCommandExecutor executor;
+
+    @Setup
+    public void setUp() {
+        smartDevices = Workloads.newStore(storeType, DEVICES);
+        executor = new ConcurrentCommandExecutor(smartDevices, new StripedLocks(64));
+    }
+
+    // Operations of one thread: the ID of a device to read, or -1 for the command to run.
+    @State(Scope.Thread)
+    public static class Operations {
+        int[] reads = new int[OPERATIONS];
+        Command[] writes = new Command[OPERATIONS];
+        final Workloads.CountingSink output = new Workloads.CountingSink();
+
+        @Setup
+        public void setUp(MixedWorkloadBenchmark benchmark, ThreadParams threadParams) {
+            SplittableRandom random = new SplittableRandom(Workloads.SEED + threadParams.getThreadIndex());
+            for (int i = 0; i < OPERATIONS; i++) {
+                if (random.nextInt(100) < benchmark.readPercent) {
+                    reads[i] = random.nextInt(DEVICES);
+                } else {
+                    reads[i] = -1;
+                    writes[i] = SmartHomeManagementSystem.parseCommand(Workloads.deviceCommand(random, DEVICES));
+                }
+            }
+            SmartHomeManagementSystem.bindResponseSink(output);
+        }
+
+        @TearDown
+        public void tearDown() {
+            SmartHomeManagementSystem.unbindResponseSink();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public long readAndWrite(Operations operations) {
+        StatusCache statusCache = smartDevices.statusCache();
+        long characters = 0;
+        for (int i = 0; i < OPERATIONS; i++) {
+            int deviceId = operations.reads[i];
+            if (deviceId >= 0) {
+                SmartDevice device = smartDevices.get(deviceId);
+                characters += statusCache.statusLine(device).length();
+            } else {
+                executor.execute(operations.writes[i]);
+            }
+        }
+        return characters + operations.output.characters;
+    }
+}
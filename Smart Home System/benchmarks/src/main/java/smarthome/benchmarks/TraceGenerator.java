@@ -0,0 +1,285 @@
+package smarthome.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+
+// Writes a synthetic trace of commands for a home with the given devices, laid out the way
+// main lays them out with the same options: lights, then cameras, then heaters. The trace
+// is streamed, so it can have any number of commands, and the same options and seed always
+// give the same trace.
+//
+//   java -cp benchmarks/target/benchmarks.jar smarthome.benchmarks.TraceGenerator
+//       --lights=400000 --cameras=300000 --heaters=300000 --commands=100000000
+//       --zipf=1.1 --invalid=0.02 --seed=7 --output=trace.txt
+//
+// Options:
+//   --lights=, --cameras=, --heaters=  Devices of each type, 4, 2 and 4 by default.
+//   --commands=                        Number of commands, 1000000 by default.
+//   --mix=TurnOn:10,SetAngle:5,...     Relative weights of the 11 command types, see MIX.
+//   --zipf=                            Exponent of the Zipf skew of the device IDs, 0 for
+//                                      uniform IDs. Rank 1 is the first device of a type.
+//   --invalid=                         Fraction of malformed commands, 0.01 by default.
+//   --seed=                            Seed of the trace.
+//   --output=                          File to write, standard output by default.
+// The trace ends without "end", so traces can be concatenated.
+public final class TraceGenerator {
+    // Command types with their default weights. DisplayAllStatus prints every device, so
+    // it is rare by default.
+    private static final String[] COMMAND_TYPES = {
+        "TurnOn", "TurnOff", "StartCharging", "StopCharging", "SetTemperature", "SetBrightness",
+        "SetColor", "SetAngle", "StartRecording", "StopRecording", "DisplayAllStatus"
+    };
+    private static final double[] MIX = {15, 15, 5, 5, 15, 10, 10, 10, 7, 7, 0.001};
+
+    private static final String[] BRIGHTNESS_LEVELS = {"LOW", "MEDIUM", "HIGH"};
+    private static final String[] LIGHT_COLORS = {"WHITE", "YELLOW"};
+    private static final String[] INVALID_COMMANDS = {
+        "TurnOn Lamp 0", "SetTemperature Heater x 20", "SetAngle Camera", "StartCharging", "Reboot Light 0",
+        "SetBrightness Light 0 BRIGHT", "TurnOff  Light 1", "DisplayAllStatus now", ""
+    };
+
+    private final int numberOfLights;
+    private final int numberOfCameras;
+    private final int numberOfHeaters;
+    private final double[] cumulativeMix;
+    private final double invalidRatio;
+    private final SplittableRandom random;
+    private final ZipfSampler lights;
+    private final ZipfSampler cameras;
+    private final ZipfSampler heaters;
+
+    public TraceGenerator(int numberOfLights, int numberOfCameras, int numberOfHeaters, double[] mix,
+                          double zipfExponent, double invalidRatio, long seed) {
+        this.numberOfLights = numberOfLights;
+        this.numberOfCameras = numberOfCameras;
+        this.numberOfHeaters = numberOfHeaters;
+        this.invalidRatio = invalidRatio;
+        this.random = new SplittableRandom(seed);
+        this.lights = ZipfSampler.of(numberOfLights, zipfExponent);
+        this.cameras = ZipfSampler.of(numberOfCameras, zipfExponent);
+        this.heaters = ZipfSampler.of(numberOfHeaters, zipfExponent);
+
+        // Commands that no device of the home can take are left out of the mix
+        double[] weights = mix.clone();
+        boolean[] possible = {
+            true, true, numberOfLights + numberOfCameras > 0, numberOfLights + numberOfCameras > 0,
+            numberOfHeaters > 0, numberOfLights > 0, numberOfLights > 0, numberOfCameras > 0,
+            numberOfCameras > 0, numberOfCameras > 0, true
+        };
+        cumulativeMix = new double[weights.length];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += possible[i] && numberOfLights + numberOfCameras + numberOfHeaters > 0 ? weights[i] : 0;
+            cumulativeMix[i] = total;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("The mix has no command the devices can take");
+        }
+    }
+
+    // Writes the given number of commands, one per line.
+    public void write(long numberOfCommands, Writer output) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        for (long i = 0; i < numberOfCommands; i++) {
+            line.setLength(0);
+            nextCommand(line);
+            output.append(line).append('\n');
+        }
+        output.flush();
+    }
+
+    // Appends the next command of the trace to the line.
+    public void nextCommand(StringBuilder line) {
+        if (random.nextDouble() < invalidRatio) {
+            line.append(INVALID_COMMANDS[random.nextInt(INVALID_COMMANDS.length)]);
+            return;
+        }
+        double pick = random.nextDouble() * cumulativeMix[cumulativeMix.length - 1];
+        int type = 0;
+        while (cumulativeMix[type] <= pick) {
+            type++;
+        }
+        String command = COMMAND_TYPES[type];
+        switch (command) {
+            case "TurnOn":
+            case "TurnOff":
+                appendAnyDevice(line.append(command).append(' '));
+                break;
+            case "StartCharging":
+            case "StopCharging":
+                appendChargeable(line.append(command).append(' '));
+                break;
+            case "SetTemperature":
+                appendHeater(line.append(command).append(' ')).append(' ').append(15 + random.nextInt(16));
+                break;
+            case "SetBrightness":
+                appendLight(line.append(command).append(' ')).append(' ')
+                        .append(BRIGHTNESS_LEVELS[random.nextInt(BRIGHTNESS_LEVELS.length)]);
+                break;
+            case "SetColor":
+                appendLight(line.append(command).append(' ')).append(' ')
+                        .append(LIGHT_COLORS[random.nextInt(LIGHT_COLORS.length)]);
+                break;
+            case "SetAngle":
+                appendCamera(line.append(command).append(' ')).append(' ').append(random.nextInt(121) - 60);
+                break;
+            case "StartRecording":
+            case "StopRecording":
+                appendCamera(line.append(command).append(' '));
+                break;
+            default:
+                line.append(command);
+        }
+    }
+
+    private StringBuilder appendAnyDevice(StringBuilder line) {
+        int deviceId = random.nextInt(numberOfLights + numberOfCameras + numberOfHeaters);
+        return deviceId < numberOfLights ? appendLight(line)
+                : deviceId < numberOfLights + numberOfCameras ? appendCamera(line) : appendHeater(line);
+    }
+
+    private StringBuilder appendChargeable(StringBuilder line) {
+        return random.nextInt(numberOfLights + numberOfCameras) < numberOfLights ? appendLight(line) : appendCamera(line);
+    }
+
+    private StringBuilder appendLight(StringBuilder line) {
+        return line.append("Light ").append(lights.sample(random) - 1);
+    }
+
+    private StringBuilder appendCamera(StringBuilder line) {
+        return line.append("Camera ").append(numberOfLights + cameras.sample(random) - 1);
+    }
+
+    private StringBuilder appendHeater(StringBuilder line) {
+        return line.append("Heater ").append(numberOfLights + numberOfCameras + heaters.sample(random) - 1);
+    }
+
+    // Sampler of ranks 1..n with probabilities proportional to 1 / rank^exponent, with the
+    // rejection-inversion method of Hörmann and Derflinger. It takes constant time and memory
+    // for any n, so the skew works the same for a million devices as for ten.
+    static final class ZipfSampler {
+        private final int n;
+        private final double exponent;
+        private final double hIntegralX1;
+        private final double hIntegralN;
+        private final double s;
+
+        private ZipfSampler(int n, double exponent) {
+            this.n = n;
+            this.exponent = exponent;
+            this.hIntegralX1 = hIntegral(1.5) - 1;
+            this.hIntegralN = hIntegral(n + 0.5);
+            this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+        }
+
+        static ZipfSampler of(int n, double exponent) {
+            return new ZipfSampler(Math.max(n, 1), exponent);
+        }
+
+        int sample(SplittableRandom random) {
+            if (exponent == 0) {
+                return 1 + random.nextInt(n);
+            }
+            while (true) {
+                double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+                double x = hIntegralInverse(u);
+                int k = (int) Math.max(1, Math.min(n, (long) (x + 0.5)));
+                if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                    return k;
+                }
+            }
+        }
+
+        private double h(double x) {
+            return Math.exp(-exponent * Math.log(x));
+        }
+
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return helper2((1 - exponent) * logX) * logX;
+        }
+
+        private double hIntegralInverse(double x) {
+            double t = Math.max(-1, x * (1 - exponent));
+            return Math.exp(helper1(t) * x);
+        }
+
+        // log(1 + x) / x, accurate near 0.
+        private static double helper1(double x) {
+            return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+        }
+
+        // (exp(x) - 1) / x, accurate near 0.
+        private static double helper2(double x) {
+            return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int numberOfLights = 4;
+        int numberOfCameras = 2;
+        int numberOfHeaters = 4;
+        long numberOfCommands = 1_000_000;
+        double[] mix = MIX.clone();
+        double zipfExponent = 0;
+        double invalidRatio = 0.01;
+        long seed = Workloads.SEED;
+        String outputFile = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--lights=")) {
+                numberOfLights = Integer.parseInt(value);
+            } else if (arg.startsWith("--cameras=")) {
+                numberOfCameras = Integer.parseInt(value);
+            } else if (arg.startsWith("--heaters=")) {
+                numberOfHeaters = Integer.parseInt(value);
+            } else if (arg.startsWith("--commands=")) {
+                numberOfCommands = Long.parseLong(value);
+            } else if (arg.startsWith("--mix=")) {
+                mix = parseMix(value);
+            } else if (arg.startsWith("--zipf=")) {
+                zipfExponent = Double.parseDouble(value);
+            } else if (arg.startsWith("--invalid=")) {
+                invalidRatio = Double.parseDouble(value);
+            } else if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(value);
+            } else if (arg.startsWith("--output=")) {
+                outputFile = value;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        TraceGenerator generator = new TraceGenerator(numberOfLights, numberOfCameras, numberOfHeaters, mix,
+                zipfExponent, invalidRatio, seed);
+        OutputStream out = outputFile != null ? new FileOutputStream(outputFile) : System.out;
+        try (Writer output = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.US_ASCII), 1 << 16)) {
+            generator.write(numberOfCommands, output);
+        }
+    }
+
+    // Parses "TurnOn:10,SetAngle:5" into weights. Command types that are not listed get 0.
+    private static double[] parseMix(String mix) {
+        double[] weights = new double[COMMAND_TYPES.length];
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split(":");
+            int type = -1;
+            for (int i = 0; i < COMMAND_TYPES.length; i++) {
+                if (COMMAND_TYPES[i].equals(parts[0])) {
+                    type = i;
+                }
+            }
+            if (type < 0 || parts.length != 2) {
+                throw new IllegalArgumentException("Unknown command type in the mix: " + entry);
+            }
+            weights[type] = Double.parseDouble(parts[1]);
+        }
+        return weights;
+    }
+}
@@ -0,0 +1,188 @@
+package smarthome.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import smarthome.SmartHomeManagementSystem;
+import smarthome.SmartHomeManagementSystem.BufferedResponseSink;
+import smarthome.SmartHomeManagementSystem.CommandTokenizer;
+import smarthome.SmartHomeManagementSystem.ConcurrentCommandExecutor;
+import smarthome.SmartHomeManagementSystem.DeviceStore;
+import smarthome.SmartHomeManagementSystem.StripedLocks;
+
+// Feeds a trace through the engine at full speed, the way main runs the commands of its
+// input, and reports the commands per second, the bytes of output per second and the GC
+// pauses of the run. The output is counted and dropped.
+//
+//   java -cp benchmarks/target/benchmarks.jar smarthome.benchmarks.TraceReplay trace.txt
+//       --lights=400000 --cameras=300000 --heaters=300000 --store=atomic --threads=4
+//
+// The device options must match the ones the trace was generated with. --repeat= replays
+// the trace several times on the same store, so that later runs show the warmed up engine.
+public final class TraceReplay {
+    // Result of one replay.
+    public record Report(long commands, long outputBytes, long nanos, long gcPauses, long gcPauseMillis,
+                         long maxGcPauseMillis) {
+        @Override
+        public String toString() {
+            double seconds = nanos / 1e9;
+            return String.format("%d commands in %.3f s: %.0f commands/s, %.1f MB/s of output, "
+                            + "%d GC pauses, %d ms in total, %d ms at most",
+                    commands, seconds, commands / seconds, outputBytes / seconds / 1e6,
+                    gcPauses, gcPauseMillis, maxGcPauseMillis);
+        }
+    }
+
+    // Output stream that only counts the bytes written to it.
+    private static final class CountingOutputStream extends OutputStream {
+        private final AtomicLong bytes = new AtomicLong();
+
+        public void write(int b) {
+            bytes.incrementAndGet();
+        }
+
+        public void write(byte[] b, int off, int len) {
+            bytes.addAndGet(len);
+        }
+    }
+
+    // Pauses of the collectors from the notifications they send after each collection.
+    private static final class GcPauses implements NotificationListener {
+        private long count;
+        private long totalMillis;
+        private long maxMillis;
+
+        synchronized void reset() {
+            count = 0;
+            totalMillis = 0;
+            maxMillis = 0;
+        }
+
+        public synchronized void handleNotification(Notification notification, Object handback) {
+            if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info =
+                    GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            if (info.getGcAction().contains("cycle")) {
+                return; // Concurrent cycles of ZGC and Shenandoah don't stop the application
+            }
+            long millis = info.getGcInfo().getDuration();
+            count++;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+        }
+    }
+
+    private final DeviceStore smartDevices;
+    private final int numberOfThreads;
+    private final GcPauses gcPauses = new GcPauses();
+
+    public TraceReplay(DeviceStore smartDevices, int numberOfThreads) {
+        this.smartDevices = smartDevices;
+        this.numberOfThreads = numberOfThreads;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                ((NotificationEmitter) collector).addNotificationListener(gcPauses, null, null);
+            }
+        }
+    }
+
+    // Replays the trace in the given file and returns what it measured.
+    public Report replay(String traceFile) throws IOException, InterruptedException {
+        CountingOutputStream output = new CountingOutputStream();
+        BufferedResponseSink sink = new BufferedResponseSink(output, false);
+        SmartHomeManagementSystem.setResponseSink(sink);
+        gcPauses.reset();
+        long commands = 0;
+        long start = System.nanoTime();
+        try (FileChannel input = FileChannel.open(Paths.get(traceFile), StandardOpenOption.READ)) {
+            if (numberOfThreads > 1) {
+                new ConcurrentCommandExecutor(smartDevices, new StripedLocks(numberOfThreads * 16))
+                        .run(input, numberOfThreads);
+                commands = -1;
+            } else {
+                CommandTokenizer tokenizer = new CommandTokenizer(input);
+                while (tokenizer.nextLine()) {
+                    commands++;
+                    if (!SmartHomeManagementSystem.executeCommand(tokenizer, smartDevices)) {
+                        break;
+                    }
+                }
+            }
+        }
+        sink.flush();
+        long nanos = System.nanoTime() - start;
+        if (commands < 0) {
+            commands = countLines(traceFile); // The executor doesn't count its commands
+        }
+        synchronized (gcPauses) {
+            return new Report(commands, output.bytes.get(), nanos, gcPauses.count, gcPauses.totalMillis,
+                    gcPauses.maxMillis);
+        }
+    }
+
+    private static long countLines(String traceFile) throws IOException {
+        long lines = 0;
+        try (FileChannel input = FileChannel.open(Paths.get(traceFile), StandardOpenOption.READ)) {
+            CommandTokenizer tokenizer = new CommandTokenizer(input);
+            while (tokenizer.nextLine()) {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String traceFile = null;
+        int numberOfLights = 4;
+        int numberOfCameras = 2;
+        int numberOfHeaters = 4;
+        String storeType = "objects";
+        int numberOfThreads = 1;
+        int repeat = 1;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--lights=")) {
+                numberOfLights = Integer.parseInt(value);
+            } else if (arg.startsWith("--cameras=")) {
+                numberOfCameras = Integer.parseInt(value);
+            } else if (arg.startsWith("--heaters=")) {
+                numberOfHeaters = Integer.parseInt(value);
+            } else if (arg.startsWith("--store=")) {
+                storeType = value;
+            } else if (arg.startsWith("--threads=")) {
+                numberOfThreads = Integer.parseInt(value);
+            } else if (arg.startsWith("--repeat=")) {
+                repeat = Integer.parseInt(value);
+            } else if (!arg.startsWith("--")) {
+                traceFile = arg;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (traceFile == null) {
+            throw new IllegalArgumentException("No trace file given");
+        }
+
+        DeviceStore smartDevices = SmartHomeManagementSystem.initializeSmartDevices(
+                SmartHomeManagementSystem.newDeviceStore(storeType), numberOfLights, numberOfCameras, numberOfHeaters);
+        TraceReplay replay = new TraceReplay(smartDevices, numberOfThreads);
+        for (int run = 1; run <= repeat; run++) {
+            System.out.println("Run " + run + ": " + replay.replay(traceFile));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package smarthome.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+
+import smarthome.SmartHomeManagementSystem;
+import smarthome.SmartHomeManagementSystem.DeviceStore;
+import smarthome.SmartHomeManagementSystem.ResponseSink;
+
+// Inputs shared by the benchmarks. Every workload comes from a fixed seed, so two runs of the
+// same benchmark always feed the engine the same commands.
+final class Workloads {
+    static final long SEED = 20241017L;
+
+    private static final String[] BRIGHTNESS_LEVELS = {"LOW", "MEDIUM", "HIGH"};
+    private static final String[] LIGHT_COLORS = {"WHITE", "YELLOW"};
+
+    private Workloads() {
+    }
+
+    // Creates a store of the given type with the given number of devices, a third of each
+    // type, laid out like the default devices: lights, then cameras, then heaters.
+    static DeviceStore newStore(String storeType, int numberOfDevices) {
+        int numberOfLights = numberOfDevices / 3;
+        int numberOfCameras = numberOfDevices / 3;
+        int numberOfHeaters = numberOfDevices - numberOfLights - numberOfCameras;
+        return SmartHomeManagementSystem.initializeSmartDevices(SmartHomeManagementSystem.newDeviceStore(storeType),
+                numberOfLights, numberOfCameras, numberOfHeaters);
+    }
+
+    // Returns a command that changes a random device of the store, valid or not, in the mix
+    // of the assignment's sample inputs.
+    static String deviceCommand(SplittableRandom random, int numberOfDevices) {
+        int numberOfLights = numberOfDevices / 3;
+        int numberOfCameras = numberOfDevices / 3;
+        int light = random.nextInt(Math.max(1, numberOfLights));
+        int camera = numberOfLights + random.nextInt(Math.max(1, numberOfCameras));
+        int heater = numberOfLights + numberOfCameras
+                + random.nextInt(Math.max(1, numberOfDevices - numberOfLights - numberOfCameras));
+        switch (random.nextInt(12)) {
+            case 0:
+                return "TurnOn Light " + light;
+            case 1:
+                return "TurnOff Camera " + camera;
+            case 2:
+                return "TurnOn Camera " + camera;
+            case 3:
+                return "SetTemperature Heater " + heater + " " + (12 + random.nextInt(22));
+            case 4:
+                return "SetBrightness Light " + light + " " + BRIGHTNESS_LEVELS[random.nextInt(3)];
+            case 5:
+                return "SetColor Light " + light + " " + LIGHT_COLORS[random.nextInt(2)];
+            case 6:
+                return "SetAngle Camera " + camera + " " + (-70 + random.nextInt(140));
+            case 7:
+                return "StartRecording Camera " + camera;
+            case 8:
+                return "StopRecording Camera " + camera;
+            case 9:
+                return "StartCharging Light " + light;
+            case 10:
+                return "StopCharging Camera " + camera;
+            default:
+                return "TurnOff Heater " + heater;
+        }
+    }
+
+    // Returns a line for the parser: mostly device commands, with some commands for the
+    // whole store and some invalid ones.
+    static String anyCommand(SplittableRandom random, int numberOfDevices) {
+        switch (random.nextInt(20)) {
+            case 0:
+                return "AddDevice Heater";
+            case 1:
+                return "RemoveDevice Light " + random.nextInt(numberOfDevices);
+            case 2:
+                return "DisplayChangedStatus " + random.nextInt(1000);
+            case 3:
+                return "SetTemperature Heater x 20";
+            case 4:
+                return "TurnOn Lamp " + random.nextInt(numberOfDevices);
+            default:
+                return deviceCommand(random, numberOfDevices);
+        }
+    }
+
+    static byte[] asInput(String[] lines) {
+        return (String.join("\n", lines) + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Sink that drops the output but keeps its length, so the lines can't be optimized away.
+    static final class CountingSink implements ResponseSink {
+        long characters;
+
+        public void println(String line) {
+            characters += line.length() + 1;
+        }
+
+        public void flush() {
+        }
+    }
+}
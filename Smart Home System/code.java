@@ -1,12 +1,66 @@
-import java.util.Scanner;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 
 public class SmartHomeManagementSystem {
-    // Constants representing the number of devices in the system.
+    // Constants representing the number of devices the system starts with by default.
     private static final int NUMBER_OF_LIGHTS = 4;
     private static final int NUMBER_OF_CAMERAS = 2;
     private static final int NUMBER_OF_HEATERS = 4;
-    private static final int NUMBER_OF_SMART_DEVICES = NUMBER_OF_CAMERAS
-            + NUMBER_OF_HEATERS + NUMBER_OF_LIGHTS;
+
+    // Destination of every line printed by the handlers and the devices. A thread that
+    // runs commands for a client of its own can bind a sink that replaces it for the thread.
+    private static ResponseSink defaultResponseSink = new BufferedResponseSink(
+            new FileOutputStream(FileDescriptor.out), true);
+    private static final ThreadLocal<ResponseSink> THREAD_RESPONSE_SINK = new ThreadLocal<>();
 
     // Interface for devices that can be charged.
     public interface Chargeable {
@@ -26,6 +80,13 @@ public class SmartHomeManagementSystem {
         boolean isOn(); // Checks if the device is turned on.
     }
 
+    // Interface for the output of the system, written line by line.
+    public interface ResponseSink {
+        void println(String line); // Writes a line of output.
+
+        void flush(); // Writes out everything that is still buffered.
+    }
+
     // Enum representing the status of a device (ON or OFF).
     public enum Status {
         OFF, ON
@@ -41,11 +102,139 @@ public class SmartHomeManagementSystem {
         WHITE, YELLOW
     }
 
+    // Enum for the types of smart devices, with the name used for them in commands.
+    public enum DeviceType {
+        LIGHT("Light"), CAMERA("Camera"), HEATER("Heater");
+
+        private final String deviceName;
+
+        DeviceType(String deviceName) {
+            this.deviceName = deviceName;
+        }
+
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        // Returns the type with the given name, or null if there is none.
+        public static DeviceType fromName(String deviceName) {
+            switch (deviceName) {
+                case "Light":
+                    return LIGHT;
+                case "Camera":
+                    return CAMERA;
+                case "Heater":
+                    return HEATER;
+                default:
+                    return null;
+            }
+        }
+
+        public static DeviceType of(SmartDevice device) {
+            if (device instanceof Light) {
+                return LIGHT;
+            }
+            return device instanceof Camera ? CAMERA : HEATER;
+        }
+
+        // Checks if the devices of the type have the field.
+        public boolean hasField(DeviceField field) {
+            switch (field) {
+                case TYPE:
+                case STATUS:
+                    return true;
+                case CHARGING:
+                    return this != HEATER;
+                case BRIGHTNESS:
+                case COLOR:
+                    return this == LIGHT;
+                case RECORDING:
+                case ANGLE:
+                    return this == CAMERA;
+                default:
+                    return this == HEATER;
+            }
+        }
+    }
+
+    // Enum for the fields of a device's state that can change. The values of a field are
+    // passed around as ints: enum ordinals, 0 or 1 for flags, and type ordinal + 1 for TYPE.
+    public enum DeviceField {
+        TYPE, STATUS, CHARGING, RECORDING, BRIGHTNESS, COLOR, TEMPERATURE, ANGLE
+    }
+
+    // Interface for components that are told about every change of a device's state.
+    public interface DeviceChangeListener {
+        void deviceChanged(int deviceId, DeviceField field, int oldValue, int newValue);
+
+        // Whether the listener must be told about the changes of a device in the order they
+        // were made, which takes a lock per device when several threads make changes.
+        default boolean isOrderSensitive() {
+            return true;
+        }
+    }
+
+    // Listener that passes every change on to the listeners registered with it.
+    public static final class DeviceChanges implements DeviceChangeListener {
+        private DeviceChangeListener[] listeners = new DeviceChangeListener[0];
+
+        public void add(DeviceChangeListener listener) {
+            listeners = Arrays.copyOf(listeners, listeners.length + 1);
+            listeners[listeners.length - 1] = listener;
+        }
+
+        public void remove(DeviceChangeListener listener) {
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] == listener) {
+                    DeviceChangeListener[] remaining = new DeviceChangeListener[listeners.length - 1];
+                    System.arraycopy(listeners, 0, remaining, 0, i);
+                    System.arraycopy(listeners, i + 1, remaining, i, remaining.length - i);
+                    listeners = remaining;
+                    return;
+                }
+            }
+        }
+
+        public boolean isOrderSensitive() {
+            for (DeviceChangeListener listener : listeners) {
+                if (listener.isOrderSensitive()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void deviceChanged(int deviceId, DeviceField field, int oldValue, int newValue) {
+            for (DeviceChangeListener listener : listeners) {
+                listener.deviceChanged(deviceId, field, oldValue, newValue);
+            }
+        }
+    }
+
+    // Enum for the outcome of a change that is only allowed while a device is on or charging.
+    public enum UpdateResult {
+        APPLIED, // The change was made.
+        REJECTED, // The value is out of range, or the device is in that state already.
+        NO_ACCESS // The device is off and not charging, so it can't be changed.
+    }
+
     // Abstract base class for all smart devices.
+    // The state is read and written through the protected read/write methods, so that a
+    // storage engine can keep it outside of the object and use the device as a view.
+    // Every change goes through compareAndSet, which such an engine can make atomic.
     public abstract static class SmartDevice implements Controllable {
+        // Expected value that makes compareAndSet accept any current value.
+        protected static final int ANY_VALUE = Integer.MIN_VALUE;
+        // Returned by compareAndSet when access is required and the device is off and not charging.
+        protected static final long NO_ACCESS = Long.MIN_VALUE;
+        // Added by compareAndSet to the old value when the device was removed in the meantime.
+        // The change counts as made just before the removal, which discarded it again.
+        protected static final long DISCARDED = 1L << 62;
+
         protected Status status; // Current status of the device.
         protected int deviceId; // Unique ID of the device.
         protected int numberOfDevices; // Total number of devices.
+        protected DeviceChangeListener changeListener; // Told about every change, set by the store.
 
         public SmartDevice(Status status) {
             this.status = status;
@@ -64,38 +253,87 @@ public class SmartHomeManagementSystem {
         }
 
         public final Status getStatus() {
-            return status;
+            return readStatus();
         }
 
         public final void setStatus(Status status) {
+            update(DeviceField.STATUS, ANY_VALUE, status.ordinal(), false);
+        }
+
+        // Storage of the status, overridden by views over other storage engines.
+        protected Status readStatus() {
+            return status;
+        }
+
+        protected void writeStatus(Status status) {
             this.status = status;
         }
 
+        // Reads and writes any field of the device's state as an int.
+        protected abstract int readField(DeviceField field);
+
+        protected abstract void writeField(DeviceField field, int value);
+
+        // Sets the field to the value if it holds the expected value, and with accessRequired
+        // only if the device is on or charging. Returns the old value of the field, or NO_ACCESS.
+        // Here it relies on the caller for exclusive access, engines that are changed from
+        // several threads without locks override it with an atomic version.
+        protected long compareAndSet(DeviceField field, int expected, int value, boolean accessRequired) {
+            if (accessRequired && !isAccessible()) {
+                return NO_ACCESS;
+            }
+            int oldValue = readField(field);
+            if (expected == ANY_VALUE || oldValue == expected) {
+                writeField(field, value);
+            }
+            return oldValue;
+        }
+
+        // Changes a field through compareAndSet and tells the listener if the value changed.
+        protected final long update(DeviceField field, int expected, int value, boolean accessRequired) {
+            long oldValue = compareAndSet(field, expected, value, accessRequired);
+            if (oldValue >= DISCARDED) {
+                return (int) oldValue;
+            }
+            if (oldValue != NO_ACCESS && oldValue != value && (expected == ANY_VALUE || oldValue == expected)) {
+                changed(field, (int) oldValue, value);
+            }
+            return oldValue;
+        }
+
+        // Tells the listener of the store about a change of the device's state.
+        protected final void changed(DeviceField field, int oldValue, int newValue) {
+            if (changeListener != null) {
+                changeListener.deviceChanged(deviceId, field, oldValue, newValue);
+            }
+        }
+
         // Implementation of turning the device on or off.
         public final boolean turnOff() {
-            if (!isOn()) {
-                return false; // If the device is already off, return false.
-            }
-            status = Status.OFF; // Set the status to OFF.
-            return true;
+            // If the device is already off, return false.
+            return update(DeviceField.STATUS, Status.ON.ordinal(), Status.OFF.ordinal(), false)
+                    == Status.ON.ordinal();
         }
 
         public final boolean turnOn() {
-            if (isOn()) {
-                return false; // If the device is already on, return false.
-            }
-            status = Status.ON; // Set the status to ON.
-            return true;
+            // If the device is already on, return false.
+            return update(DeviceField.STATUS, Status.OFF.ordinal(), Status.ON.ordinal(), false)
+                    == Status.OFF.ordinal();
         }
 
         public final boolean isOn() {
-            return status == Status.ON; // Check if the device is ON.
+            return readStatus() == Status.ON; // Check if the device is ON.
         }
 
         // Check access to the device's status (relevant for devices that are ON).
         public final boolean checkStatusAccess() {
             return isOn();
         }
+
+        // Checks if the device can be changed: it is on, or it is charging.
+        public boolean isAccessible() {
+            return isOn();
+        }
     }
 
     // Class for a Light device, extending SmartDevice and implementing Chargeable.
@@ -114,58 +352,142 @@ public class SmartHomeManagementSystem {
             this.lightColor = lightColor;
         }
 
+        // Constructor for views that keep their state elsewhere.
+        protected Light() {
+            super(null);
+        }
+
         // Methods for managing light color and brightness.
         public final LightColor getLightColor() {
-            return lightColor;
+            return readLightColor();
         }
 
         public final void setLightColor(LightColor lightColor) {
-            this.lightColor = lightColor;
-            System.out.println("Light " + deviceId + " color is set to " + lightColor);
+            update(DeviceField.COLOR, ANY_VALUE, lightColor.ordinal(), false);
+            responseSink().println("Light " + deviceId + " color is set to " + lightColor);
+        }
+
+        // Sets the color only if the light is on or charging.
+        public final UpdateResult setLightColorIfAccessible(LightColor lightColor) {
+            if (update(DeviceField.COLOR, ANY_VALUE, lightColor.ordinal(), true) == NO_ACCESS) {
+                return UpdateResult.NO_ACCESS;
+            }
+            responseSink().println("Light " + deviceId + " color is set to " + lightColor);
+            return UpdateResult.APPLIED;
         }
 
         public final BrightnessLevel getBrightnessLevel() {
-            return brightnessLevel;
+            return readBrightnessLevel();
         }
 
         public final void setBrightnessLevel(BrightnessLevel brightnessLevel) {
-            this.brightnessLevel = brightnessLevel;
-            System.out.println("Light " + deviceId + " brightness level is set to " + brightnessLevel);
+            update(DeviceField.BRIGHTNESS, ANY_VALUE, brightnessLevel.ordinal(), false);
+            responseSink().println("Light " + deviceId + " brightness level is set to " + brightnessLevel);
+        }
+
+        // Sets the brightness level only if the light is on or charging.
+        public final UpdateResult setBrightnessLevelIfAccessible(BrightnessLevel brightnessLevel) {
+            if (update(DeviceField.BRIGHTNESS, ANY_VALUE, brightnessLevel.ordinal(), true) == NO_ACCESS) {
+                return UpdateResult.NO_ACCESS;
+            }
+            responseSink().println("Light " + deviceId + " brightness level is set to " + brightnessLevel);
+            return UpdateResult.APPLIED;
         }
 
         // Implementation of Chargeable interface methods.
         public final boolean isCharging() {
-            return charging;
+            return readCharging();
         }
 
         public final boolean startCharging() {
-            if (isCharging()) {
-                System.out.println("Light " + deviceId
+            if (update(DeviceField.CHARGING, 0, 1, false) != 0) {
+                responseSink().println("Light " + deviceId
                         + " is already charging");
                 return false;
             }
-            charging = true;
             return true;
         }
 
         public final boolean stopCharging() {
-            if (isCharging()) {
-                charging = false;
+            if (update(DeviceField.CHARGING, 1, 0, false) == 1) {
                 return true;
             }
-            System.out.println("Light " + deviceId
+            responseSink().println("Light " + deviceId
                     + " is not charging");
             return false;
         }
 
+        public final boolean isAccessible() {
+            return isOn() || isCharging();
+        }
+
+        // Storage of the light's state, overridden by views over other storage engines.
+        protected boolean readCharging() {
+            return charging;
+        }
+
+        protected void writeCharging(boolean charging) {
+            this.charging = charging;
+        }
+
+        protected BrightnessLevel readBrightnessLevel() {
+            return brightnessLevel;
+        }
+
+        protected void writeBrightnessLevel(BrightnessLevel brightnessLevel) {
+            this.brightnessLevel = brightnessLevel;
+        }
+
+        protected LightColor readLightColor() {
+            return lightColor;
+        }
+
+        protected void writeLightColor(LightColor lightColor) {
+            this.lightColor = lightColor;
+        }
+
+        protected final int readField(DeviceField field) {
+            switch (field) {
+                case STATUS:
+                    return readStatus().ordinal();
+                case CHARGING:
+                    return readCharging() ? 1 : 0;
+                case BRIGHTNESS:
+                    return readBrightnessLevel().ordinal();
+                case COLOR:
+                    return readLightColor().ordinal();
+                default:
+                    throw new IllegalArgumentException("A light has no " + field);
+            }
+        }
+
+        protected final void writeField(DeviceField field, int value) {
+            switch (field) {
+                case STATUS:
+                    writeStatus(Status.values()[value]);
+                    break;
+                case CHARGING:
+                    writeCharging(value != 0);
+                    break;
+                case BRIGHTNESS:
+                    writeBrightnessLevel(BrightnessLevel.values()[value]);
+                    break;
+                case COLOR:
+                    writeLightColor(LightColor.values()[value]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("A light has no " + field);
+            }
+        }
+
         // Display the current status of the light.
         public final String displayStatus() {
             return "Light " + deviceId + " is "
-                    + status + ", the color is "
-                    + lightColor + ", the charging status is "
-                    + charging
+                    + getStatus() + ", the color is "
+                    + getLightColor() + ", the charging status is "
+                    + isCharging()
                     + ", and the brightness level is "
-                    + brightnessLevel + ".";
+                    + getBrightnessLevel() + ".";
         }
     }
 
@@ -181,24 +503,73 @@ public class SmartHomeManagementSystem {
             this.temperature = temperature;
         }
 
+        // Constructor for views that keep their state elsewhere.
+        protected Heater() {
+            super(null);
+        }
+
         // Getter for the current temperature of the heater.
         public final int getTemperature() {
-            return temperature;
+            return readTemperature();
         }
 
         // Method to set the heater's temperature within the allowed range.
         public final boolean setTemperature(int temperature) {
             if (temperature >= MIN_HEATER_TEMP && temperature <= MAX_HEATER_TEMP) {
-                this.temperature = temperature;
+                update(DeviceField.TEMPERATURE, ANY_VALUE, temperature, false);
                 return true;
             }
             return false; // Return false if the temperature is out of range.
         }
 
+        // Sets the temperature only if the heater is on.
+        public final UpdateResult setTemperatureIfAccessible(int temperature) {
+            if (temperature < MIN_HEATER_TEMP || temperature > MAX_HEATER_TEMP) {
+                return isAccessible() ? UpdateResult.REJECTED : UpdateResult.NO_ACCESS;
+            }
+            if (update(DeviceField.TEMPERATURE, ANY_VALUE, temperature, true) == NO_ACCESS) {
+                return UpdateResult.NO_ACCESS;
+            }
+            return UpdateResult.APPLIED;
+        }
+
+        // Storage of the temperature, overridden by views over other storage engines.
+        protected int readTemperature() {
+            return temperature;
+        }
+
+        protected void writeTemperature(int temperature) {
+            this.temperature = temperature;
+        }
+
+        protected final int readField(DeviceField field) {
+            switch (field) {
+                case STATUS:
+                    return readStatus().ordinal();
+                case TEMPERATURE:
+                    return readTemperature();
+                default:
+                    throw new IllegalArgumentException("A heater has no " + field);
+            }
+        }
+
+        protected final void writeField(DeviceField field, int value) {
+            switch (field) {
+                case STATUS:
+                    writeStatus(Status.values()[value]);
+                    break;
+                case TEMPERATURE:
+                    writeTemperature(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("A heater has no " + field);
+            }
+        }
+
         // Displays the current status and temperature of the heater.
         public final String displayStatus() {
-            return "Heater " + deviceId + " is " + status
-                    + " and the temperature is " + temperature + ".";
+            return "Heater " + deviceId + " is " + getStatus()
+                    + " and the temperature is " + getTemperature() + ".";
         }
     }
 
@@ -218,620 +589,7257 @@ public class SmartHomeManagementSystem {
             this.angle = angle;
         }
 
+        // Constructor for views that keep their state elsewhere.
+        protected Camera() {
+            super(null);
+        }
+
         // Getter for the current angle of the camera.
         public final int getAngle() {
-            return angle;
+            return readAngle();
         }
 
         // Sets the camera angle within the allowed range.
         public final boolean setCameraAngle(int angle) {
             if (angle <= MAX_CAMERA_ANGLE && angle >= MIN_CAMERA_ANGLE) {
-                this.angle = angle;
+                update(DeviceField.ANGLE, ANY_VALUE, angle, false);
                 return true;
             }
             return false; // Return false if the angle is out of range.
         }
 
+        // Sets the camera angle only if the camera is on or charging.
+        public final UpdateResult setCameraAngleIfAccessible(int angle) {
+            if (angle > MAX_CAMERA_ANGLE || angle < MIN_CAMERA_ANGLE) {
+                return isAccessible() ? UpdateResult.REJECTED : UpdateResult.NO_ACCESS;
+            }
+            if (update(DeviceField.ANGLE, ANY_VALUE, angle, true) == NO_ACCESS) {
+                return UpdateResult.NO_ACCESS;
+            }
+            return UpdateResult.APPLIED;
+        }
+
         // Starts recording if the camera is not already recording.
         public final boolean startRecording() {
-            if (isRecording()) {
-                System.out.println("Camera " + deviceId + " is already recording");
+            if (update(DeviceField.RECORDING, 0, 1, false) != 0) {
+                responseSink().println("Camera " + deviceId + " is already recording");
                 return false;
             }
-            recording = true;
             return true;
         }
 
+        // Starts recording only if the camera is on or charging and not already recording.
+        public final UpdateResult startRecordingIfAccessible() {
+            long wasRecording = update(DeviceField.RECORDING, 0, 1, true);
+            if (wasRecording == NO_ACCESS) {
+                return UpdateResult.NO_ACCESS;
+            }
+            if (wasRecording != 0) {
+                responseSink().println("Camera " + deviceId + " is already recording");
+                return UpdateResult.REJECTED;
+            }
+            return UpdateResult.APPLIED;
+        }
+
         // Stops recording if the camera is currently recording.
         public final boolean stopRecording() {
-            if (isRecording()) {
-                recording = false;
+            if (update(DeviceField.RECORDING, 1, 0, false) == 1) {
                 return true;
             }
-            System.out.println("Camera " + deviceId + " is not recording");
+            responseSink().println("Camera " + deviceId + " is not recording");
             return false;
         }
 
+        // Stops recording only if the camera is on or charging and currently recording.
+        public final UpdateResult stopRecordingIfAccessible() {
+            long wasRecording = update(DeviceField.RECORDING, 1, 0, true);
+            if (wasRecording == NO_ACCESS) {
+                return UpdateResult.NO_ACCESS;
+            }
+            if (wasRecording != 1) {
+                responseSink().println("Camera " + deviceId + " is not recording");
+                return UpdateResult.REJECTED;
+            }
+            return UpdateResult.APPLIED;
+        }
+
         // Checks if the camera is currently recording.
         public final boolean isRecording() {
-            return recording;
+            return readRecording();
         }
 
         // Implementation of the Chargeable interface to check if the camera is charging.
         public final boolean isCharging() {
-            return charging;
+            return readCharging();
         }
 
         // Starts charging the camera if it's not already charging.
         public final boolean startCharging() {
-            if (isCharging()) {
-                System.out.println("Camera " + deviceId + " is already charging");
+            if (update(DeviceField.CHARGING, 0, 1, false) != 0) {
+                responseSink().println("Camera " + deviceId + " is already charging");
                 return false;
             }
-            charging = true;
             return true;
         }
 
         // Stops charging the camera if it's currently charging.
         public final boolean stopCharging() {
-            if (isCharging()) {
-                charging = false;
+            if (update(DeviceField.CHARGING, 1, 0, false) == 1) {
                 return true;
             }
-            System.out.println("Camera " + deviceId + " is not charging");
+            responseSink().println("Camera " + deviceId + " is not charging");
             return false;
         }
 
-        // Displays the current status, angle, charging, and recording status of the camera.
-        public final String displayStatus() {
-            return "Camera " + deviceId + " is " + status
-                    + ", the angle is " + angle
-                    + ", the charging status is " + charging
-                    + ", and the recording status is "
-                    + (recording && (charging || isOn())) + ".";
+        public final boolean isAccessible() {
+            return isOn() || isCharging();
         }
-    }
 
-    // Initializes an array of Light devices with default settings.
-    public static Light[] initializeLights() {
-        Light[] lightDevices = new Light[NUMBER_OF_LIGHTS];
+        // Storage of the camera's state, overridden by views over other storage engines.
+        protected boolean readCharging() {
+            return charging;
+        }
 
-        for (int i = 0; i < NUMBER_OF_LIGHTS; i++) {
-            lightDevices[i] = new Light(Status.ON, false, BrightnessLevel.LOW, LightColor.YELLOW);
+        protected void writeCharging(boolean charging) {
+            this.charging = charging;
         }
 
-        return lightDevices;
-    }
+        protected boolean readRecording() {
+            return recording;
+        }
 
-    // Initializes an array of Camera devices with default settings.
-    public static Camera[] initializeCameras() {
-        Camera[] cameraDevices = new Camera[NUMBER_OF_CAMERAS];
-        final int initialAngle = 45; // Default camera angle.
+        protected void writeRecording(boolean recording) {
+            this.recording = recording;
+        }
 
-        for (int i = 0; i < NUMBER_OF_CAMERAS; i++) {
-            cameraDevices[i] = new Camera(Status.ON, false, false, initialAngle);
+        protected int readAngle() {
+            return angle;
         }
 
-        return cameraDevices;
-    }
+        protected void writeAngle(int angle) {
+            this.angle = angle;
+        }
 
-    // Initializes an array of Heater devices with default settings.
-    public static Heater[] initializeHeaters() {
-        Heater[] heaterDevices = new Heater[NUMBER_OF_HEATERS];
-        final int initialTemperature = 20; // Default temperature for heaters.
+        protected final int readField(DeviceField field) {
+            switch (field) {
+                case STATUS:
+                    return readStatus().ordinal();
+                case CHARGING:
+                    return readCharging() ? 1 : 0;
+                case RECORDING:
+                    return readRecording() ? 1 : 0;
+                case ANGLE:
+                    return readAngle();
+                default:
+                    throw new IllegalArgumentException("A camera has no " + field);
+            }
+        }
 
-        for (int i = 0; i < NUMBER_OF_HEATERS; i++) {
-            heaterDevices[i] = new Heater(Status.ON, initialTemperature);
+        protected final void writeField(DeviceField field, int value) {
+            switch (field) {
+                case STATUS:
+                    writeStatus(Status.values()[value]);
+                    break;
+                case CHARGING:
+                    writeCharging(value != 0);
+                    break;
+                case RECORDING:
+                    writeRecording(value != 0);
+                    break;
+                case ANGLE:
+                    writeAngle(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("A camera has no " + field);
+            }
         }
 
-        return heaterDevices;
+        // Displays the current status, angle, charging, and recording status of the camera.
+        public final String displayStatus() {
+            boolean charging = isCharging();
+            return "Camera " + deviceId + " is " + getStatus()
+                    + ", the angle is " + getAngle()
+                    + ", the charging status is " + charging
+                    + ", and the recording status is "
+                    + (isRecording() && (charging || isOn())) + ".";
+        }
     }
 
-    // Combines all smart devices (lights, cameras, and heaters) into a single array.
-    public static SmartDevice[] initializeSmartDevices() {
-        SmartDevice[] smartDevices = new SmartDevice[NUMBER_OF_SMART_DEVICES];
-        Light[] lightDevices = initializeLights();
-        Camera[] cameraDevices = initializeCameras();
-        Heater[] heaterDevices = initializeHeaters();
+    // Creates a Light device with default settings.
+    public static Light newLight() {
+        return new Light(Status.ON, false, BrightnessLevel.LOW, LightColor.YELLOW);
+    }
 
-        int index = 0;
-        System.arraycopy(lightDevices, 0, smartDevices, index, NUMBER_OF_LIGHTS);
-        index += NUMBER_OF_LIGHTS;
-        System.arraycopy(cameraDevices, 0, smartDevices, index, NUMBER_OF_CAMERAS);
-        index += NUMBER_OF_CAMERAS;
-        System.arraycopy(heaterDevices, 0, smartDevices, index, NUMBER_OF_HEATERS);
+    // Creates a Camera device with default settings.
+    public static Camera newCamera() {
+        final int initialAngle = 45; // Default camera angle.
+        return new Camera(Status.ON, false, false, initialAngle);
+    }
 
-        return smartDevices;
+    // Creates a Heater device with default settings.
+    public static Heater newHeater() {
+        final int initialTemperature = 20; // Default temperature for heaters.
+        return new Heater(Status.ON, initialTemperature);
     }
 
-    // Checks if a device with the given name and ID exists in the system.
-    public static boolean isNotThereInSystem(String deviceName, int deviceId) {
-        switch (deviceName) {
-            case "Light":
-                if (deviceId >= 0 && deviceId < NUMBER_OF_LIGHTS) {
-                    return false;
-                }
-                System.out.println("The smart device was not found");
-                return true;
-            case "Camera":
-                if (deviceId >= NUMBER_OF_LIGHTS && deviceId < NUMBER_OF_LIGHTS + NUMBER_OF_CAMERAS) {
-                    return false;
-                }
-                System.out.println("The smart device was not found");
-                return true;
-            case "Heater":
-                if (deviceId >= NUMBER_OF_LIGHTS + NUMBER_OF_CAMERAS && deviceId < NUMBER_OF_SMART_DEVICES) {
-                    return false;
-                }
+    // Creates a device of the given type with default settings.
+    public static SmartDevice newDevice(DeviceType deviceType) {
+        switch (deviceType) {
+            case LIGHT:
+                return newLight();
+            case CAMERA:
+                return newCamera();
             default:
-                System.out.println("The smart device was not found");
-                return true;
+                return newHeater();
         }
     }
 
-    // Displays the status of all smart devices in the system.
-    public static void displayAllStatus(String[] commandTerms, SmartDevice[] smartDevices) {
-        final int numberOfFields = 1; // Expected number of command terms.
-        if (commandTerms.length != numberOfFields) {
-            printInvalidCommand(); // Print an error if the command is invalid.
-            return;
-        }
+    // Interface for the storage engines that hold the smart devices, indexed by device ID.
+    public interface DeviceStore {
+        int add(SmartDevice device); // Adds a device with the state of the given one and returns its ID.
 
-        for (int i = 0; i < NUMBER_OF_SMART_DEVICES; i++) {
-            smartDevices[i].setDeviceId(i); // Assign IDs to devices dynamically.
-            System.out.println(smartDevices[i].displayStatus()); // Print the status of each device.
-        }
-    }
+        boolean remove(int deviceId); // Removes the device with the given ID.
 
+        SmartDevice get(int deviceId); // Returns the device with the given ID, or null.
 
-    // Method to turn on a smart device
-    public static void turnOn(String[] commandTerms, SmartDevice[] smartDevices) {
-        final int numberOfFields = 3;
+        DeviceType typeOf(int deviceId); // Returns the type of the device with the given ID, or null.
 
-        // Validate command input: must have exactly 3 terms, and the 3rd term must be a number
-        if (commandTerms.length != numberOfFields || isNotNumber(commandTerms[2])) {
-            printInvalidCommand(); // Print an error message if validation fails
-            return;
-        }
+        boolean contains(DeviceType deviceType, int deviceId); // Checks the ID against the type.
 
-        String deviceName = commandTerms[1]; // Extract the device name
-        int deviceId = Integer.parseInt(commandTerms[2]); // Parse the device ID
+        int size(); // Upper bound of the device IDs.
 
-        // Check if the device exists in the system
-        if (isNotThereInSystem(deviceName, deviceId)) {
-            return; // Exit if the device is not found
-        }
+        int count(); // Number of devices in the store.
 
-        // Attempt to turn the device on
-        if (smartDevices[deviceId].turnOn()) {
-            System.out.println(deviceName + " " + deviceId + " is on");
-        } else {
-            System.out.println(deviceName + " " + deviceId + " is already on");
-        }
-    }
+        DeviceChanges changes(); // Listeners told about every change of the devices in the store.
 
-    // Method to turn off a smart device
-    public static void turnOff(String[] commandTerms, SmartDevice[] smartDevices) {
-        final int numberOfFields = 3;
+        StatusCache statusCache(); // Status lines of the devices, rendered once per change.
 
-        // Validate command input
-        if (commandTerms.length != numberOfFields || isNotNumber(commandTerms[2])) {
-            printInvalidCommand();
-            return;
-        }
+        CommandScheduler scheduler(); // Deferred and recurring commands on the devices of the store.
 
-        String deviceName = commandTerms[1];
-        int deviceId = Integer.parseInt(commandTerms[2]);
+        RuleEngine rules(); // Rules that run commands when the devices of the store change.
 
-        // Check if the device exists in the system
-        if (isNotThereInSystem(deviceName, deviceId)) {
-            return;
-        }
+        DeviceIndex index(); // Bitmap indexes over the state of the devices in the store.
 
-        smartDevices[deviceId].setDeviceId(deviceId); // Set the device ID for further actions
+        UsageMeter usage(); // Time the devices of the store were on, charging and recording, once enabled.
 
-        // Attempt to turn the device off
-        if (smartDevices[deviceId].turnOff()) {
-            System.out.println(deviceName + " " + deviceId + " is off");
-        } else {
-            System.out.println(deviceName + " " + deviceId + " is already off");
+        DeviceHistory history(); // Past values of the devices in the store, recorded once enabled.
+
+        // Applies the same change to every device of the type with an ID in [from, to], in one
+        // pass over the IDs. See SmartDevice.compareAndSet for the arguments.
+        default BulkUpdate updateAll(DeviceType deviceType, int from, int to, DeviceField field,
+                                     int expected, int value, boolean accessRequired) {
+            BulkUpdate result = new BulkUpdate();
+            int last = Math.min(to, size() - 1);
+            for (int deviceId = Math.max(from, 0); deviceId <= last; deviceId++) {
+                if (contains(deviceType, deviceId)) {
+                    result.add(get(deviceId).update(field, expected, value, accessRequired), expected, value);
+                }
+            }
+            return result;
         }
     }
 
-    // Method to start charging a chargeable device
-    public static void startCharging(String[] commandTerms, SmartDevice[] smartDevices) {
-        final int numberOfFields = 3;
-
-        // Validate command input
-        if (commandTerms.length != numberOfFields || isNotNumber(commandTerms[2])) {
-            printInvalidCommand();
-            return;
+    // Cache of the status line of every device, kept up to date as a listener of its store.
+    // A change of a device drops its line, so only devices that changed since the last
+    // DisplayAllStatus are rendered again. Each change is also stamped with the current
+    // version, which lets DisplayChangedStatus print just the devices that changed since a
+    // version it handed out earlier. Changes may arrive from several threads at once, so the
+    // slots are accessed through VarHandles and the pages are never moved.
+    public static final class StatusCache implements DeviceChangeListener {
+        private static final int PAGE_SHIFT = 12; // 4096 devices per page.
+        private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+        private static final int PAGE_MASK = PAGE_SIZE - 1;
+        private static final VarHandle LINES = MethodHandles.arrayElementVarHandle(Object[].class);
+        private static final VarHandle VERSIONS = MethodHandles.arrayElementVarHandle(long[].class);
+
+        // A slot holds the line, null once the device changed, or the claim of a thread that
+        // is rendering the line. Removed devices keep the line that reports their removal.
+        private volatile Object[][] linePages = new Object[1][];
+        private volatile long[][] versionPages = new long[1][];
+        private volatile long version = 1;
+
+        // Drops the line of the device and stamps the change with the current version.
+        public void deviceChanged(int deviceId, DeviceField field, int oldValue, int newValue) {
+            int pageIndex = deviceId >>> PAGE_SHIFT;
+            int index = deviceId & PAGE_MASK;
+            if (pageIndex >= linePages.length || linePages[pageIndex] == null) {
+                allocatePage(pageIndex);
+            }
+            long[] versions = versionPages[pageIndex];
+            long stamp = version;
+            VERSIONS.setVolatile(versions, index, stamp);
+            if (version != stamp) {
+                VERSIONS.setVolatile(versions, index, version); // The version moved on meanwhile.
+            }
+            Object line = field == DeviceField.TYPE && newValue == 0
+                    ? DeviceType.values()[oldValue - 1].getDeviceName() + " " + deviceId + " is removed" : null;
+            LINES.setVolatile(linePages[pageIndex], index, line);
         }
 
-        String deviceName = commandTerms[1];
-        int deviceId = Integer.parseInt(commandTerms[2]);
+        // Lines are only ever dropped, so the order of the changes doesn't matter.
+        public boolean isOrderSensitive() {
+            return false;
+        }
 
-        // Check if the device exists in the system
-        if (isNotThereInSystem(deviceName, deviceId)) {
-            return;
+        private synchronized void allocatePage(int pageIndex) {
+            Object[][] linePages = this.linePages;
+            long[][] versionPages = this.versionPages;
+            if (pageIndex >= linePages.length) {
+                int length = Math.max(linePages.length * 2, pageIndex + 1);
+                linePages = Arrays.copyOf(linePages, length);
+                versionPages = Arrays.copyOf(versionPages, length);
+            }
+            if (linePages[pageIndex] == null) {
+                versionPages[pageIndex] = new long[PAGE_SIZE];
+                linePages[pageIndex] = new Object[PAGE_SIZE];
+            }
+            this.versionPages = versionPages;
+            this.linePages = linePages;
         }
 
-        smartDevices[deviceId].setDeviceId(deviceId);
+        // Returns the status line of the device, rendering it only if the device changed since
+        // the line was rendered last.
+        public String statusLine(SmartDevice device) {
+            int deviceId = device.getDeviceId();
+            int pageIndex = deviceId >>> PAGE_SHIFT;
+            if (pageIndex >= linePages.length || linePages[pageIndex] == null) {
+                allocatePage(pageIndex); // Devices restored from a file were never announced.
+            }
+            Object[] lines = linePages[pageIndex];
+            int index = deviceId & PAGE_MASK;
+            Object line = LINES.getVolatile(lines, index);
+            if (line instanceof String) {
+                return (String) line;
+            }
 
-        // Check if the device is chargeable
-        if (!(smartDevices[deviceId] instanceof Chargeable)) {
-            System.out.println(deviceName + " " + deviceId + " is not chargeable");
-            return;
+            // Claim the slot first, a change made while rendering drops the claim and with it
+            // the line that may be out of date already
+            Object claim = new Object();
+            boolean claimed = LINES.compareAndSet(lines, index, line, claim);
+            String rendered = device.displayStatus();
+            if (claimed) {
+                LINES.compareAndSet(lines, index, claim, rendered);
+            }
+            return rendered;
         }
 
-        // Start charging
-        if (((Chargeable) smartDevices[deviceId]).startCharging()) {
-            System.out.println(deviceName + " " + deviceId + " is charging");
+        // Returns the line that reports the removal of the device with the given ID, or null.
+        public String removedLine(int deviceId) {
+            int pageIndex = deviceId >>> PAGE_SHIFT;
+            if (pageIndex >= linePages.length || linePages[pageIndex] == null) {
+                return null;
+            }
+            Object line = LINES.getVolatile(linePages[pageIndex], deviceId & PAGE_MASK);
+            return line instanceof String ? (String) line : null;
         }
+
+        // Returns the version of the last change of the device with the given ID, 0 if none was seen.
+        public long versionOf(int deviceId) {
+            int pageIndex = deviceId >>> PAGE_SHIFT;
+            if (pageIndex >= versionPages.length || versionPages[pageIndex] == null) {
+                return 0;
+            }
+            return (long) VERSIONS.getVolatile(versionPages[pageIndex], deviceId & PAGE_MASK);
+        }
+
+        // Starts a new version and returns it. Changes from now on are stamped with it.
+        public synchronized long nextVersion() {
+            return ++version;
+        }
+    }
+
+    // Bitmap indexes over the state of the devices, kept up to date as a listener of its
+    // store, which answer List and Count without looking at the devices. There is a bitmap
+    // per type, per flag, per brightness level and per color, and the temperature and the
+    // angle are bit-sliced: the level minus LEVEL_MIN is spread over seven bitmaps, one per
+    // bit, so a range is compared for 64 devices at once. A change flips the bits of the old
+    // and the new value. Flips commute, so changes from several threads need atomic words
+    // but no order. The bitmaps of 64 devices are next to each other in a page, and pages
+    // are never moved. The index is built by the first query, from then on it follows the
+    // changes, so a store that is never queried doesn't pay for it on every change.
+    public static final class DeviceIndex implements DeviceChangeListener {
+        private static final int PAGE_SHIFT = 12; // 4096 devices per page.
+        private static final int WORDS_PER_PAGE = 1 << PAGE_SHIFT - 6;
+        private static final int LEVEL_MIN = -64;
+        private static final int LEVEL_BITS = 7;
+        private static final int LEVEL_MAX = LEVEL_MIN + (1 << LEVEL_BITS) - 1;
+        private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+        // Bitmaps of a word of devices, by their offset in the word.
+        private static final int TYPES = 0; // One per type, by ordinal. Removed devices have none.
+        private static final int ON = 3;
+        private static final int CHARGING = 4;
+        private static final int RECORDING = 5;
+        private static final int BRIGHTNESS = 6; // One per brightness level, by ordinal.
+        private static final int COLOR = 9; // One per light color, by ordinal.
+        private static final int LEVEL = 11; // One per bit of the temperature or the angle.
+        private static final int BITMAPS = LEVEL + LEVEL_BITS;
+        private static final int ALL_TYPES = (1 << DeviceType.values().length) - 1;
+
+        private final DeviceStore smartDevices;
+        private volatile long[][] pages = new long[1][];
+        private volatile boolean built;
+
+        public DeviceIndex(DeviceStore smartDevices) {
+            this.smartDevices = smartDevices;
+        }
+
+        // Indexes the devices of the store and starts to follow its changes, unless that was
+        // done already. Runs while no other command does, like the queries.
+        private void build() {
+            if (!built) {
+                addAll();
+                smartDevices.changes().add(this);
+                built = true;
+            }
+        }
+
+        public void deviceChanged(int deviceId, DeviceField field, int oldValue, int newValue) {
+            switch (field) {
+                case TYPE:
+                    if (oldValue == 0) {
+                        deviceAdded(deviceId, newValue);
+                    } else {
+                        flip(deviceId, TYPES + oldValue - 1); // IDs are not reused, so the other bits can stay
+                    }
+                    break;
+                case STATUS:
+                    flip(deviceId, ON);
+                    break;
+                case CHARGING:
+                    flip(deviceId, CHARGING);
+                    break;
+                case RECORDING:
+                    flip(deviceId, RECORDING);
+                    break;
+                case BRIGHTNESS:
+                    flip(deviceId, BRIGHTNESS + oldValue);
+                    flip(deviceId, BRIGHTNESS + newValue);
+                    break;
+                case COLOR:
+                    flip(deviceId, COLOR + oldValue);
+                    flip(deviceId, COLOR + newValue);
+                    break;
+                default:
+                    flipLevel(deviceId, levelBits(oldValue) ^ levelBits(newValue));
+            }
+        }
+
+        // Flips commute, so the order of the changes doesn't matter.
+        public boolean isOrderSensitive() {
+            return false;
+        }
+
+        // Sets the bits of a new device. Stores announce a device with its type only, so
+        // the rest of its state is read from the store.
+        private void deviceAdded(int deviceId, int typeCode) {
+            flip(deviceId, TYPES + typeCode - 1);
+            SmartDevice device = smartDevices.get(deviceId);
+            if (device.isOn()) {
+                flip(deviceId, ON);
+            }
+            if (device instanceof Light) {
+                Light light = (Light) device;
+                if (light.isCharging()) {
+                    flip(deviceId, CHARGING);
+                }
+                flip(deviceId, BRIGHTNESS + light.getBrightnessLevel().ordinal());
+                flip(deviceId, COLOR + light.getLightColor().ordinal());
+            } else if (device instanceof Camera) {
+                Camera camera = (Camera) device;
+                if (camera.isCharging()) {
+                    flip(deviceId, CHARGING);
+                }
+                if (camera.isRecording()) {
+                    flip(deviceId, RECORDING);
+                }
+                flipLevel(deviceId, levelBits(camera.getAngle()));
+            } else {
+                flipLevel(deviceId, levelBits(((Heater) device).getTemperature()));
+            }
+        }
+
+        // Indexes the devices the store holds already.
+        private void addAll() {
+            for (int deviceId = 0; deviceId < smartDevices.size(); deviceId++) {
+                DeviceType deviceType = smartDevices.typeOf(deviceId);
+                if (deviceType != null) {
+                    deviceAdded(deviceId, deviceType.ordinal() + 1);
+                }
+            }
+        }
+
+        private static int levelBits(int level) {
+            return Math.max(LEVEL_MIN, Math.min(LEVEL_MAX, level)) - LEVEL_MIN;
+        }
+
+        private void flipLevel(int deviceId, int bits) {
+            for (; bits != 0; bits &= bits - 1) {
+                flip(deviceId, LEVEL + Integer.numberOfTrailingZeros(bits));
+            }
+        }
+
+        private void flip(int deviceId, int bitmap) {
+            int pageIndex = deviceId >>> PAGE_SHIFT;
+            if (pageIndex >= pages.length || pages[pageIndex] == null) {
+                allocatePage(pageIndex);
+            }
+            int word = (deviceId >>> 6 & WORDS_PER_PAGE - 1) * BITMAPS + bitmap;
+            WORDS.getAndBitwiseXor(pages[pageIndex], word, 1L << deviceId);
+        }
+
+        private synchronized void allocatePage(int pageIndex) {
+            long[][] pages = this.pages;
+            if (pageIndex >= pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(pages.length * 2, pageIndex + 1));
+            }
+            if (pages[pageIndex] == null) {
+                pages[pageIndex] = new long[WORDS_PER_PAGE * BITMAPS];
+            }
+            this.pages = pages;
+        }
+
+        // Counts the devices that match the query.
+        public long count(Query query) {
+            build();
+            long count = 0;
+            long[][] pages = this.pages;
+            for (int pageIndex = 0; pageIndex < pages.length; pageIndex++) {
+                long[] page = pages[pageIndex];
+                for (int word = 0; page != null && word < WORDS_PER_PAGE; word++) {
+                    count += Long.bitCount(query.matches(page, word * BITMAPS));
+                }
+            }
+            return count;
+        }
+
+        // Hands the IDs of the devices that match the query to the consumer, in order, and
+        // returns how many it handed over.
+        public long forEach(Query query, IntConsumer consumer) {
+            build();
+            long count = 0;
+            long[][] pages = this.pages;
+            for (int pageIndex = 0; pageIndex < pages.length; pageIndex++) {
+                long[] page = pages[pageIndex];
+                for (int word = 0; page != null && word < WORDS_PER_PAGE; word++) {
+                    for (long matches = query.matches(page, word * BITMAPS); matches != 0; matches &= matches - 1) {
+                        consumer.accept(pageIndex << PAGE_SHIFT | word << 6 | Long.numberOfTrailingZeros(matches));
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        // Query over the indexed state: terms joined by OR, each of them conditions joined
+        // by AND. A term keeps the types it allows, the bitmaps that must be set and the ones
+        // that must be clear, and the range of the level.
+        public static final class Query {
+            private int[] types = {ALL_TYPES};
+            private int[] setBitmaps = {0};
+            private int[] clearBitmaps = {0};
+            private int[] levelFrom = {LEVEL_MIN};
+            private int[] levelTo = {LEVEL_MAX};
+            private int terms = 1;
+
+            // Starts the next term.
+            public Query or() {
+                types = Arrays.copyOf(types, terms + 1);
+                setBitmaps = Arrays.copyOf(setBitmaps, terms + 1);
+                clearBitmaps = Arrays.copyOf(clearBitmaps, terms + 1);
+                levelFrom = Arrays.copyOf(levelFrom, terms + 1);
+                levelTo = Arrays.copyOf(levelTo, terms + 1);
+                types[terms] = ALL_TYPES;
+                levelFrom[terms] = LEVEL_MIN;
+                levelTo[terms] = LEVEL_MAX;
+                terms++;
+                return this;
+            }
+
+            // Adds a condition on the type of the device to the current term.
+            public Query type(DeviceType deviceType) {
+                types[terms - 1] &= 1 << deviceType.ordinal();
+                return this;
+            }
+
+            // Adds a condition on a field to the current term, with the value as
+            // parseFieldValue gives it.
+            public Query field(DeviceField field, int value) {
+                int term = terms - 1;
+                switch (field) {
+                    case STATUS:
+                    case CHARGING:
+                    case RECORDING:
+                        int bitmap = field == DeviceField.STATUS ? ON : field == DeviceField.CHARGING ? CHARGING : RECORDING;
+                        if (value == 0) {
+                            clearBitmaps[term] |= 1 << bitmap;
+                        } else {
+                            setBitmaps[term] |= 1 << bitmap;
+                        }
+                        return this;
+                    case BRIGHTNESS:
+                        setBitmaps[term] |= 1 << BRIGHTNESS + value;
+                        return this;
+                    case COLOR:
+                        setBitmaps[term] |= 1 << COLOR + value;
+                        return this;
+                    default:
+                        return range(field, value, value);
+                }
+            }
+
+            // Adds a condition on the temperature or the angle, from and to included, to the
+            // current term.
+            public Query range(DeviceField field, int from, int to) {
+                int term = terms - 1;
+                type(field == DeviceField.TEMPERATURE ? DeviceType.HEATER : DeviceType.CAMERA);
+                levelFrom[term] = Math.max(levelFrom[term], from);
+                levelTo[term] = Math.min(levelTo[term], to);
+                return this;
+            }
+
+            // Returns the devices of the word at the given offset in the page that match.
+            long matches(long[] page, int offset) {
+                long matches = 0;
+                for (int term = 0; term < terms; term++) {
+                    long word = 0;
+                    for (int bits = types[term]; bits != 0; bits &= bits - 1) {
+                        word |= page[offset + TYPES + Integer.numberOfTrailingZeros(bits)];
+                    }
+                    for (int bits = setBitmaps[term]; bits != 0 && word != 0; bits &= bits - 1) {
+                        word &= bitmap(page, offset, Integer.numberOfTrailingZeros(bits));
+                    }
+                    for (int bits = clearBitmaps[term]; bits != 0 && word != 0; bits &= bits - 1) {
+                        word &= ~bitmap(page, offset, Integer.numberOfTrailingZeros(bits));
+                    }
+                    if (word != 0 && (levelFrom[term] > LEVEL_MIN || levelTo[term] < LEVEL_MAX)) {
+                        word &= levelInRange(page, offset, levelFrom[term], levelTo[term]);
+                    }
+                    matches |= word;
+                }
+                return matches;
+            }
+
+            // A camera that is off and not charging keeps its recording flag but is displayed
+            // as not recording, and the query goes by the display.
+            private static long bitmap(long[] page, int offset, int bitmap) {
+                long word = page[offset + bitmap];
+                return bitmap == RECORDING ? word & (page[offset + ON] | page[offset + CHARGING]) : word;
+            }
+
+            // Compares the bit-sliced levels with both ends of the range, from the highest bit
+            // down. A device is above the lower end once a bit is set where the end has it
+            // clear while the bits above were equal, and the other way around for the upper end.
+            private static long levelInRange(long[] page, int offset, int from, int to) {
+                if (from > to || to < LEVEL_MIN || from > LEVEL_MAX) {
+                    return 0;
+                }
+                int low = levelBits(from);
+                int high = levelBits(to);
+                long above = 0;
+                long below = 0;
+                long equalToLow = -1L;
+                long equalToHigh = -1L;
+                for (int bit = LEVEL_BITS - 1; bit >= 0; bit--) {
+                    long slice = page[offset + LEVEL + bit];
+                    if ((low >>> bit & 1) == 0) {
+                        above |= equalToLow & slice;
+                        equalToLow &= ~slice;
+                    } else {
+                        equalToLow &= slice;
+                    }
+                    if ((high >>> bit & 1) == 1) {
+                        below |= equalToHigh & ~slice;
+                        equalToHigh &= slice;
+                    } else {
+                        equalToHigh &= ~slice;
+                    }
+                }
+                return (above | equalToLow) & (below | equalToHigh);
+            }
+        }
+    }
+
+    // Usage of the devices, kept up to date as a listener of its store: the seconds each
+    // device was on, charging and recording, and the degree-seconds of the heaters, which is
+    // the temperature of a heater summed over the seconds it was on. Time is the clock of
+    // the store's scheduler, which runs in real time unless it is simulated, so a change is
+    // timed when it happens. Instead of the start of each interval the meter keeps a sum and
+    // a rate: a change at second t that raises the rate by r subtracts r * t from the sum,
+    // and the usage until now is sum + rate * now. Sums and rates only ever have values
+    // added, so changes from several threads need atomic adds but no order. The totals of
+    // each type are LongAdders, which threads update without contending. The meter only
+    // follows the store once it is enabled, with --usage.
+    public static final class UsageMeter implements DeviceChangeListener {
+        public static final int ON = 0;
+        public static final int CHARGING = 1;
+        public static final int RECORDING = 2;
+        public static final int DEGREES = 3;
+        private static final int METRICS = 4;
+
+        private static final int PAGE_SHIFT = 12; // 4096 devices per page.
+        private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+        private static final int SLOTS = 1 + METRICS; // State of a device and its sums.
+        private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(long[].class);
+
+        // State of a device: the flags and the type code in the low bits, which changes flip,
+        // and the temperature in the high int, which changes add to.
+        private static final long ON_BIT = 1;
+        private static final long CHARGING_BIT = 2;
+        private static final long RECORDING_BIT = 4;
+        private static final int TYPE_SHIFT = 3;
+        private static final int TEMPERATURE_SHIFT = 32;
+
+        private final DeviceStore smartDevices;
+        private final LongAdder[] typeSums = new LongAdder[DeviceType.values().length * METRICS];
+        private final LongAdder[] typeRates = new LongAdder[DeviceType.values().length * METRICS];
+        private volatile long[][] pages = new long[1][];
+        private volatile boolean enabled;
+
+        public UsageMeter(DeviceStore smartDevices) {
+            this.smartDevices = smartDevices;
+            for (int i = 0; i < typeSums.length; i++) {
+                typeSums[i] = new LongAdder();
+                typeRates[i] = new LongAdder();
+            }
+        }
+
+        public void deviceChanged(int deviceId, DeviceField field, int oldValue, int newValue) {
+            long before;
+            long after;
+            switch (field) {
+                case TYPE:
+                    if (oldValue == 0) {
+                        deviceAdded(deviceId, smartDevices.get(deviceId));
+                    } else {
+                        before = (long) SLOT.getAndSet(page(deviceId), slot(deviceId), 0L);
+                        account(deviceId, before, 0); // Closes the intervals of the removed device.
+                    }
+                    return;
+                case STATUS:
+                    before = (long) SLOT.getAndBitwiseXor(page(deviceId), slot(deviceId), ON_BIT);
+                    after = before ^ ON_BIT;
+                    break;
+                case CHARGING:
+                    before = (long) SLOT.getAndBitwiseXor(page(deviceId), slot(deviceId), CHARGING_BIT);
+                    after = before ^ CHARGING_BIT;
+                    break;
+                case RECORDING:
+                    before = (long) SLOT.getAndBitwiseXor(page(deviceId), slot(deviceId), RECORDING_BIT);
+                    after = before ^ RECORDING_BIT;
+                    break;
+                case TEMPERATURE:
+                    long delta = (long) (newValue - oldValue) << TEMPERATURE_SHIFT;
+                    before = (long) SLOT.getAndAdd(page(deviceId), slot(deviceId), delta);
+                    after = before + delta;
+                    break;
+                default:
+                    return; // The brightness, the color and the angle don't count.
+            }
+            account(deviceId, before, after);
+        }
+
+        // Sums and rates only add up, so the order of the changes doesn't matter.
+        public boolean isOrderSensitive() {
+            return false;
+        }
+
+        // Opens the intervals of a new device. Stores announce a device with its type only,
+        // so the rest of its state is read from the store.
+        private void deviceAdded(int deviceId, SmartDevice device) {
+            long state = (long) (DeviceType.of(device).ordinal() + 1) << TYPE_SHIFT | (device.isOn() ? ON_BIT : 0);
+            if (device instanceof Light) {
+                state |= ((Light) device).isCharging() ? CHARGING_BIT : 0;
+            } else if (device instanceof Camera) {
+                Camera camera = (Camera) device;
+                state |= (camera.isCharging() ? CHARGING_BIT : 0) | (camera.isRecording() ? RECORDING_BIT : 0);
+            } else {
+                state |= (long) ((Heater) device).getTemperature() << TEMPERATURE_SHIFT;
+            }
+            long before = (long) SLOT.getAndAdd(page(deviceId), slot(deviceId), state);
+            account(deviceId, before, before + state);
+        }
+
+        // Starts to meter the store, from the devices it holds now.
+        public void enable() {
+            if (!enabled) {
+                addAll();
+                smartDevices.changes().add(this);
+                enabled = true;
+            }
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        // Opens the intervals of the devices the store holds already.
+        private void addAll() {
+            for (int deviceId = 0; deviceId < smartDevices.size(); deviceId++) {
+                SmartDevice device = smartDevices.get(deviceId);
+                if (device != null) {
+                    deviceAdded(deviceId, device);
+                }
+            }
+        }
+
+        // Moves the sums of the device and of its type by the change of each rate.
+        private void account(int deviceId, long before, long after) {
+            int typeCode = (int) ((before | after) >>> TYPE_SHIFT & 3);
+            if (typeCode == 0) {
+                return; // A late change of a removed device.
+            }
+            long now = smartDevices.scheduler().seconds();
+            long[] page = page(deviceId);
+            int slot = slot(deviceId);
+            for (int metric = 0; metric < METRICS; metric++) {
+                long change = rate(after, metric) - rate(before, metric);
+                if (change != 0) {
+                    SLOT.getAndAdd(page, slot + 1 + metric, -change * now);
+                    typeSums[(typeCode - 1) * METRICS + metric].add(-change * now);
+                    typeRates[(typeCode - 1) * METRICS + metric].add(change);
+                }
+            }
+        }
+
+        // Rate at which a device in the given state uses a metric per second. A camera that
+        // is off and not charging is displayed as not recording, so it doesn't count.
+        private static long rate(long state, int metric) {
+            switch (metric) {
+                case ON:
+                    return state & ON_BIT;
+                case CHARGING:
+                    return (state & CHARGING_BIT) >>> 1;
+                case RECORDING:
+                    return (state & RECORDING_BIT) != 0 && (state & (ON_BIT | CHARGING_BIT)) != 0 ? 1 : 0;
+                default:
+                    return (state & ON_BIT) != 0 ? state >> TEMPERATURE_SHIFT : 0;
+            }
+        }
+
+        // Returns the usage of a metric by the devices of a type until now, in seconds.
+        public long total(DeviceType deviceType, int metric) {
+            int index = deviceType.ordinal() * METRICS + metric;
+            return typeSums[index].sum() + typeRates[index].sum() * smartDevices.scheduler().seconds();
+        }
+
+        // Returns the usage of a metric by the device with the given ID until now, in seconds.
+        public long usageOf(int deviceId, int metric) {
+            long[] page = page(deviceId);
+            int slot = slot(deviceId);
+            long state = (long) SLOT.getVolatile(page, slot);
+            return (long) SLOT.getVolatile(page, slot + 1 + metric) + rate(state, metric) * smartDevices.scheduler().seconds();
+        }
+
+        private long[] page(int deviceId) {
+            int pageIndex = deviceId >>> PAGE_SHIFT;
+            if (pageIndex >= pages.length || pages[pageIndex] == null) {
+                allocatePage(pageIndex);
+            }
+            return pages[pageIndex];
+        }
+
+        private static int slot(int deviceId) {
+            return (deviceId & PAGE_MASK) * SLOTS;
+        }
+
+        private synchronized void allocatePage(int pageIndex) {
+            long[][] pages = this.pages;
+            if (pageIndex >= pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(pages.length * 2, pageIndex + 1));
+            }
+            if (pages[pageIndex] == null) {
+                pages[pageIndex] = new long[(PAGE_MASK + 1) * SLOTS];
+            }
+            this.pages = pages;
+        }
+    }
+
+    // History of the changes of each device, for the value of a field at a past time and for
+    // the changes within a range of time. Changes are timed in seconds of the scheduler's
+    // clock when they happen, changes within the same second share their time. The changes of
+    // a device are appended to blocks of bytes, each as a varint of the seconds since the
+    // change before with the field in the low bits, and a varint of the zigzag-encoded
+    // difference between the new and the old value, so most changes take three bytes or
+    // less. Past values are found backwards from the current ones, so blocks need no snapshot
+    // of the state, and whole blocks are dropped once their last change is older than the
+    // retention, by the clock's ticker every minute or by AdvanceClock. A device's changes are
+    // only appended by the thread that holds the device, and read and pruned by commands
+    // that hold every lock.
+    public static final class DeviceHistory implements DeviceChangeListener {
+        public static final int BLOCK_SIZE = 256;
+        public static final long UNKNOWN = Long.MIN_VALUE; // A value from before the history kept.
+        private static final int MAX_CHANGE_BYTES = 15; // Varints of a long and of an int.
+        private static final int FIELD_BITS = 3;
+        private static final int FIELD_MASK = (1 << FIELD_BITS) - 1;
+        private static final int PAGE_SHIFT = 12; // 4096 devices per page.
+        private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+        // Receives the value of a field at a time, in seconds.
+        public interface ValueVisitor {
+            void value(long time, long value);
+        }
+
+        // Block of changes of a device, in the order they were made.
+        private static final class Block {
+            final byte[] bytes = new byte[BLOCK_SIZE];
+            final long firstTime;
+            long lastTime;
+            int length;
+            int count; // Changes in the block.
+            Block next;
+
+            Block(long time) {
+                this.firstTime = time;
+                this.lastTime = time;
+            }
+        }
+
+        // Blocks of one device from the oldest kept to the newest.
+        private static final class Series {
+            Block first;
+            Block last;
+            long prunedUntil = -1; // Time of the last change dropped, -1 while none was.
+        }
+
+        // Reads the changes of a series one at a time.
+        private static final class Cursor {
+            private Block block;
+            private int position;
+            long time;
+            int field;
+            long delta;
+
+            Cursor(Series series) {
+                this.block = series.first;
+                this.time = block == null ? 0 : block.firstTime;
+            }
+
+            boolean next() {
+                while (block != null && position == block.length) {
+                    block = block.next;
+                    position = 0;
+                    time = block == null ? 0 : block.firstTime;
+                }
+                if (block == null) {
+                    return false;
+                }
+                long head = readVarint();
+                time += head >>> FIELD_BITS;
+                field = (int) (head & FIELD_MASK);
+                long zigzag = readVarint();
+                delta = zigzag >>> 1 ^ -(zigzag & 1);
+                return true;
+            }
+
+            private long readVarint() {
+                long value = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = block.bytes[position++];
+                    value |= (long) (b & 0x7F) << shift;
+                    if (b >= 0) {
+                        return value;
+                    }
+                }
+            }
+        }
+
+        private final DeviceStore smartDevices;
+        private final LongAdder changes = new LongAdder();
+        private final LongAdder blocks = new LongAdder();
+        private final AtomicLong oldestBlock = new AtomicLong(Long.MAX_VALUE); // Lower bound of the first blocks' last times.
+        private volatile Series[][] pages = new Series[1][];
+        private volatile long retention = -1; // Minutes the changes are kept, -1 while the history is off.
+        private long enabledAt;
+
+        public DeviceHistory(DeviceStore smartDevices) {
+            this.smartDevices = smartDevices;
+        }
+
+        // Starts recording the changes of the store, keeping them for the given minutes.
+        public void enable(long retentionMinutes) {
+            if (retention < 0) {
+                enabledAt = smartDevices.scheduler().seconds();
+                smartDevices.changes().add(this);
+            }
+            retention = retentionMinutes;
+        }
+
+        public boolean isEnabled() {
+            return retention >= 0;
+        }
+
+        public void deviceChanged(int deviceId, DeviceField field, int oldValue, int newValue) {
+            Series series = series(deviceId);
+            long now = smartDevices.scheduler().seconds();
+            Block last = series.last;
+            if (last == null || last.length > BLOCK_SIZE - MAX_CHANGE_BYTES) {
+                Block block = new Block(now);
+                if (last == null) {
+                    series.first = block;
+                    oldestBlock.accumulateAndGet(now, Math::min);
+                } else {
+                    last.next = block;
+                }
+                series.last = block;
+                last = block;
+                blocks.increment();
+            }
+            long delta = (long) newValue - oldValue;
+            int position = writeVarint(last.bytes, last.length, (now - last.lastTime) << FIELD_BITS | field.ordinal());
+            last.length = writeVarint(last.bytes, position, delta << 1 ^ delta >> 63);
+            last.lastTime = now;
+            last.count++;
+            changes.increment();
+        }
+
+        private static int writeVarint(byte[] bytes, int position, long value) {
+            while ((value & ~0x7FL) != 0) {
+                bytes[position++] = (byte) (value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            bytes[position++] = (byte) value;
+            return position;
+        }
+
+        // Drops the blocks whose changes are all older than the retention. Only a clock that
+        // moved past the oldest block kept makes a pass over the devices.
+        public void prune() {
+            long retention = this.retention;
+            long cutoff = smartDevices.scheduler().seconds() - (retention > Long.MAX_VALUE / 60 ? Long.MAX_VALUE : retention * 60);
+            if (retention < 0 || cutoff <= oldestBlock.get()) {
+                return;
+            }
+            long oldest = Long.MAX_VALUE;
+            for (Series[] page : pages) {
+                if (page == null) {
+                    continue;
+                }
+                for (Series series : page) {
+                    if (series == null) {
+                        continue;
+                    }
+                    while (series.first != null && series.first.lastTime < cutoff) {
+                        series.prunedUntil = series.first.lastTime;
+                        changes.add(-series.first.count);
+                        blocks.decrement();
+                        series.first = series.first.next;
+                    }
+                    if (series.first == null) {
+                        series.last = null;
+                    } else {
+                        oldest = Math.min(oldest, series.first.lastTime);
+                    }
+                }
+            }
+            oldestBlock.set(oldest);
+        }
+
+        // Tells the visitor the value of the field at the time from, then each change of it
+        // until the time to, given the current value. Returns false without a visit when the
+        // history doesn't reach back to from.
+        public boolean replay(int deviceId, DeviceField field, int current, long from, long to,
+                              ValueVisitor visitor) {
+            Series series = seriesOrNull(deviceId);
+            if (from < startOf(series)) {
+                return false;
+            }
+            long value = current;
+            if (series != null) {
+                for (Cursor cursor = new Cursor(series); cursor.next(); ) {
+                    if (cursor.time > from && cursor.field == field.ordinal()) {
+                        value -= cursor.delta;
+                    }
+                }
+            }
+            visitor.value(from, value);
+            if (series != null && to > from) {
+                for (Cursor cursor = new Cursor(series); cursor.next() && cursor.time <= to; ) {
+                    if (cursor.time > from && cursor.field == field.ordinal()) {
+                        value += cursor.delta;
+                        visitor.value(cursor.time, value);
+                    }
+                }
+            }
+            return true;
+        }
+
+        // Returns the first second the history knows the values of the device at.
+        public long startOf(int deviceId) {
+            return startOf(seriesOrNull(deviceId));
+        }
+
+        private long startOf(Series series) {
+            return series == null ? enabledAt : Math.max(enabledAt, series.prunedUntil);
+        }
+
+        public long changes() {
+            return changes.sum();
+        }
+
+        public long blocks() {
+            return blocks.sum();
+        }
+
+        private Series seriesOrNull(int deviceId) {
+            Series[][] pages = this.pages;
+            int pageIndex = deviceId >>> PAGE_SHIFT;
+            return pageIndex < pages.length && pages[pageIndex] != null ? pages[pageIndex][deviceId & PAGE_MASK] : null;
+        }
+
+        private Series series(int deviceId) {
+            int pageIndex = deviceId >>> PAGE_SHIFT;
+            if (pageIndex >= pages.length || pages[pageIndex] == null) {
+                allocatePage(pageIndex);
+            }
+            Series[] page = pages[pageIndex];
+            Series series = page[deviceId & PAGE_MASK];
+            if (series == null) {
+                series = new Series();
+                page[deviceId & PAGE_MASK] = series;
+            }
+            return series;
+        }
+
+        private synchronized void allocatePage(int pageIndex) {
+            Series[][] pages = this.pages;
+            if (pageIndex >= pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(pages.length * 2, pageIndex + 1));
+            }
+            if (pages[pageIndex] == null) {
+                pages[pageIndex] = new Series[PAGE_MASK + 1];
+            }
+            this.pages = pages;
+        }
+    }
+
+    // Ring buffer that publishes the changes of the devices to any number of subscribers, so
+    // that other systems can follow them without polling DisplayAllStatus. Events are written
+    // into preallocated arrays, so publishing one allocates nothing. There is one producer:
+    // the thread that changes the devices, or any of them one at a time for a shared ring.
+    // The producer never waits for the subscribers. Each reads at its own pace, and one that
+    // falls more than the capacity behind skips the events that were overwritten and counts
+    // them as missed.
+    public static final class DeviceChangeRing implements DeviceChangeListener {
+        private static final DeviceField[] DEVICE_FIELDS = DeviceField.values();
+
+        private final int capacity;
+        private final int mask;
+        private final int[] deviceIds;
+        private final byte[] fields;
+        private final int[] oldValues;
+        private final int[] newValues;
+        private final boolean sharedProducer; // Changes come from several threads, one at a time.
+        private volatile long claimed; // Events the producer has started to write.
+        private volatile long published; // Events the subscribers can read.
+
+        public DeviceChangeRing(int minimumCapacity, boolean sharedProducer) {
+            this.capacity = Integer.highestOneBit(Math.max(1, minimumCapacity - 1) << 1);
+            this.mask = capacity - 1;
+            this.deviceIds = new int[capacity];
+            this.fields = new byte[capacity];
+            this.oldValues = new int[capacity];
+            this.newValues = new int[capacity];
+            this.sharedProducer = sharedProducer;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public void deviceChanged(int deviceId, DeviceField field, int oldValue, int newValue) {
+            if (sharedProducer) {
+                synchronized (this) {
+                    publish(deviceId, field, oldValue, newValue);
+                }
+            } else {
+                publish(deviceId, field, oldValue, newValue);
+            }
+        }
+
+        private void publish(int deviceId, DeviceField field, int oldValue, int newValue) {
+            long sequence = published;
+            int index = (int) sequence & mask;
+            claimed = sequence + 1;
+            VarHandle.releaseFence(); // The claim is seen before the slot is overwritten.
+            deviceIds[index] = deviceId;
+            fields[index] = (byte) field.ordinal();
+            oldValues[index] = oldValue;
+            newValues[index] = newValue;
+            published = sequence + 1;
+        }
+
+        // Starts a subscription at the next event to be published.
+        public Subscription subscribe() {
+            return new Subscription(published);
+        }
+
+        // Position of one subscriber in the ring, to be polled by a single thread.
+        public final class Subscription {
+            private long cursor; // Sequence of the next event to read.
+            private long missed; // Events overwritten before they were read.
+
+            private Subscription(long cursor) {
+                this.cursor = cursor;
+            }
+
+            public long getMissed() {
+                return missed;
+            }
+
+            // Hands up to the given number of events to the listener, oldest first, and
+            // returns how many it handed over.
+            public int poll(DeviceChangeListener listener, int maxEvents) {
+                long available = published;
+                if (available - cursor > capacity) {
+                    missed += available - capacity - cursor;
+                    cursor = available - capacity;
+                }
+                int count = (int) Math.min(maxEvents, available - cursor);
+                for (int i = 0; i < count; i++) {
+                    int index = (int) cursor & mask;
+                    int deviceId = deviceIds[index];
+                    int field = fields[index];
+                    int oldValue = oldValues[index];
+                    int newValue = newValues[index];
+                    VarHandle.acquireFence(); // The slot is read before the claim is checked.
+                    if (claimed - capacity > cursor) {
+                        return i; // Overwritten while being read, the next poll skips ahead.
+                    }
+                    listener.deviceChanged(deviceId, DEVICE_FIELDS[field], oldValue, newValue);
+                    cursor++;
+                }
+                return count;
+            }
+        }
+    }
+
+    // Subscriber of a change ring that writes every change to a file as a line
+    // "<device ID> <field> <old value> <new value>", from a thread of its own.
+    public static final class AuditLog implements DeviceChangeListener, Closeable {
+        private static final int BATCH_SIZE = 1024; // Events taken from the ring at once.
+
+        private final DeviceChangeRing.Subscription subscription;
+        private final BufferedResponseSink output;
+        private final OutputStream file;
+        private final Thread writer;
+        private volatile boolean running = true;
+
+        public AuditLog(DeviceChangeRing ring, Path path) throws IOException {
+            this.subscription = ring.subscribe();
+            this.file = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            this.output = new BufferedResponseSink(file, false);
+            this.writer = new Thread(this::writeChanges, "audit-log");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        public void deviceChanged(int deviceId, DeviceField field, int oldValue, int newValue) {
+            output.println(deviceId + " " + field + " " + oldValue + " " + newValue);
+        }
+
+        private void writeChanges() {
+            while (running) {
+                if (subscription.poll(this, BATCH_SIZE) == 0) {
+                    output.flush();
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        // Writes out the changes published so far and closes the file.
+        public void close() throws IOException {
+            running = false;
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            while (subscription.poll(this, BATCH_SIZE) > 0) {
+                // Drain what is left
+            }
+            if (subscription.getMissed() > 0) {
+                output.println("Missed " + subscription.getMissed() + " changes");
+            }
+            output.flush();
+            file.close();
+        }
+    }
+
+    // Totals of a change applied to many devices at once.
+    public static final class BulkUpdate {
+        private int changed; // Devices the change was made to.
+        private int unchanged; // Devices that were in that state already.
+        private int noAccess; // Devices that were off and not charging.
+
+        // Counts the result of a compareAndSet, returning true if the device changed.
+        boolean add(long oldValue, int expected, int value) {
+            if (oldValue == SmartDevice.NO_ACCESS) {
+                noAccess++;
+                return false;
+            }
+            if (oldValue >= SmartDevice.DISCARDED) {
+                return false; // Removed in the meantime.
+            }
+            if (oldValue == value || expected != SmartDevice.ANY_VALUE && oldValue != expected) {
+                unchanged++;
+                return false;
+            }
+            changed++;
+            return true;
+        }
+
+        public int getChanged() {
+            return changed;
+        }
+
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        public int getNoAccess() {
+            return noAccess;
+        }
+
+        public int matched() {
+            return changed + unchanged + noAccess;
+        }
+    }
+
+    // Registry of all smart devices, indexed by device ID. Devices are kept in fixed-size
+    // pages, so growing the registry only copies the page directory, never the devices.
+    // The type of every ID is kept in a compact byte table to check IDs in O(1).
+    public static final class DeviceRegistry implements DeviceStore {
+        private static final int PAGE_SHIFT = 12; // 4096 devices per page.
+        private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+        private static final int PAGE_MASK = PAGE_SIZE - 1;
+        private static final byte NO_DEVICE = 0; // Type code of a free or removed ID.
+
+        private SmartDevice[][] devicePages = new SmartDevice[1][];
+        private byte[][] typePages = new byte[1][];
+        private int size; // Number of IDs handed out, including removed ones.
+        private int count; // Number of devices currently in the registry.
+        private final DeviceChanges changes = new DeviceChanges();
+        private final StatusCache statusCache = new StatusCache();
+        private final CommandScheduler scheduler = new CommandScheduler();
+        private final RuleEngine rules = new RuleEngine(this);
+        private final DeviceIndex index = new DeviceIndex(this);
+        private final UsageMeter usage = new UsageMeter(this);
+        private final DeviceHistory history = new DeviceHistory(this);
+
+        public DeviceRegistry() {
+            changes.add(statusCache);
+            changes.add(rules);
+        }
+
+        // Adds a device under the next free ID and returns that ID.
+        public int add(SmartDevice device) {
+            int deviceId = size;
+            int page = deviceId >>> PAGE_SHIFT;
+            if (page == devicePages.length) {
+                devicePages = Arrays.copyOf(devicePages, page * 2);
+                typePages = Arrays.copyOf(typePages, page * 2);
+            }
+            if (devicePages[page] == null) {
+                devicePages[page] = new SmartDevice[PAGE_SIZE];
+                typePages[page] = new byte[PAGE_SIZE];
+            }
+
+            devicePages[page][deviceId & PAGE_MASK] = device;
+            int typeCode = DeviceType.of(device).ordinal() + 1;
+            typePages[page][deviceId & PAGE_MASK] = (byte) typeCode;
+            device.setDeviceId(deviceId);
+            device.changeListener = changes;
+            size++;
+            count++;
+            changes.deviceChanged(deviceId, DeviceField.TYPE, NO_DEVICE, typeCode);
+            return deviceId;
+        }
+
+        // Removes the device with the given ID. Its ID is not handed out again.
+        public boolean remove(int deviceId) {
+            int typeCode = typeCode(deviceId);
+            if (typeCode == NO_DEVICE) {
+                return false;
+            }
+            devicePages[deviceId >>> PAGE_SHIFT][deviceId & PAGE_MASK].changeListener = null;
+            devicePages[deviceId >>> PAGE_SHIFT][deviceId & PAGE_MASK] = null;
+            typePages[deviceId >>> PAGE_SHIFT][deviceId & PAGE_MASK] = NO_DEVICE;
+            count--;
+            changes.deviceChanged(deviceId, DeviceField.TYPE, typeCode, NO_DEVICE);
+            return true;
+        }
+
+        // Returns the device with the given ID, or null if there is none.
+        public SmartDevice get(int deviceId) {
+            if (deviceId < 0 || deviceId >= size) {
+                return null;
+            }
+            return devicePages[deviceId >>> PAGE_SHIFT][deviceId & PAGE_MASK];
+        }
+
+        // Returns the type of the device with the given ID, or null if there is none.
+        public DeviceType typeOf(int deviceId) {
+            int typeCode = typeCode(deviceId);
+            return typeCode == NO_DEVICE ? null : DeviceType.values()[typeCode - 1];
+        }
+
+        // Checks in O(1) whether the ID belongs to a device of the given type.
+        public boolean contains(DeviceType deviceType, int deviceId) {
+            return deviceType != null && typeCode(deviceId) == deviceType.ordinal() + 1;
+        }
+
+        private int typeCode(int deviceId) {
+            if (deviceId < 0 || deviceId >= size) {
+                return NO_DEVICE;
+            }
+            return typePages[deviceId >>> PAGE_SHIFT][deviceId & PAGE_MASK];
+        }
+
+        // Upper bound of the device IDs, removed devices leave gaps below it.
+        public int size() {
+            return size;
+        }
+
+        // Number of devices currently in the registry.
+        public int count() {
+            return count;
+        }
+
+        public DeviceChanges changes() {
+            return changes;
+        }
+
+        public StatusCache statusCache() {
+            return statusCache;
+        }
+
+        public CommandScheduler scheduler() {
+            return scheduler;
+        }
+
+        public RuleEngine rules() {
+            return rules;
+        }
+
+        public DeviceIndex index() {
+            return index;
+        }
+
+        public UsageMeter usage() {
+            return usage;
+        }
+
+        public DeviceHistory history() {
+            return history;
+        }
+    }
+
+    // Base class for storage engines that keep the device state in primitive fields
+    // instead of one object per device. get returns a lightweight view over the state.
+    // Each device has a type code, three flags, a light settings byte holding the
+    // brightness and color, and an int level holding the temperature or the angle.
+    public abstract static class PrimitiveDeviceStore implements DeviceStore {
+        protected static final int FLAG_ON = 0;
+        protected static final int FLAG_CHARGING = 1;
+        protected static final int FLAG_RECORDING = 2;
+        protected static final int COLOR_SHIFT = 2; // Light settings hold the color above the brightness.
+        protected static final int BRIGHTNESS_MASK = (1 << COLOR_SHIFT) - 1;
+        private static final DeviceType[] DEVICE_TYPES = DeviceType.values();
+        private static final BrightnessLevel[] BRIGHTNESS_LEVELS = BrightnessLevel.values();
+        private static final LightColor[] LIGHT_COLORS = LightColor.values();
+
+        private final DeviceChanges changes = new DeviceChanges();
+        private final StatusCache statusCache = new StatusCache();
+        private final CommandScheduler scheduler = new CommandScheduler();
+        private final RuleEngine rules = new RuleEngine(this);
+        private final DeviceIndex index = new DeviceIndex(this);
+        private final UsageMeter usage = new UsageMeter(this);
+        private final DeviceHistory history = new DeviceHistory(this);
+
+        protected PrimitiveDeviceStore() {
+            changes.add(statusCache);
+            changes.add(rules);
+        }
+
+        protected abstract int allocate(); // Reserves storage for the next device ID and returns it.
+
+        protected abstract void addToCount(int delta); // Updates the number of devices in the store.
+
+        protected abstract int typeCode(int deviceId); // Type ordinal + 1, 0 for no device.
+
+        protected abstract void setTypeCode(int deviceId, int typeCode);
+
+        protected abstract boolean flag(int deviceId, int flag);
+
+        protected abstract void setFlag(int deviceId, int flag, boolean value);
+
+        protected abstract int lightSettings(int deviceId);
+
+        protected abstract void setLightSettings(int deviceId, int lightSettings);
+
+        protected abstract int level(int deviceId);
+
+        protected abstract void setLevel(int deviceId, int level);
+
+        // Copies the state of the given device into the store.
+        public final int add(SmartDevice device) {
+            int deviceId = allocate();
+            setTypeCode(deviceId, DeviceType.of(device).ordinal() + 1);
+            setFlag(deviceId, FLAG_ON, device.isOn());
+            if (device instanceof Light) {
+                Light light = (Light) device;
+                setFlag(deviceId, FLAG_CHARGING, light.isCharging());
+                setFlag(deviceId, FLAG_RECORDING, false);
+                setLightSettings(deviceId, light.getBrightnessLevel().ordinal()
+                        | light.getLightColor().ordinal() << COLOR_SHIFT);
+            } else if (device instanceof Camera) {
+                Camera camera = (Camera) device;
+                setFlag(deviceId, FLAG_CHARGING, camera.isCharging());
+                setFlag(deviceId, FLAG_RECORDING, camera.isRecording());
+                setLevel(deviceId, camera.getAngle());
+            } else {
+                setFlag(deviceId, FLAG_CHARGING, false);
+                setFlag(deviceId, FLAG_RECORDING, false);
+                setLevel(deviceId, ((Heater) device).getTemperature());
+            }
+            addToCount(1);
+            changes.deviceChanged(deviceId, DeviceField.TYPE, 0, typeCode(deviceId));
+            return deviceId;
+        }
+
+        public final boolean remove(int deviceId) {
+            if (typeOf(deviceId) == null) {
+                return false;
+            }
+            int typeCode = typeCode(deviceId);
+            clear(deviceId);
+            addToCount(-1);
+            changes.deviceChanged(deviceId, DeviceField.TYPE, typeCode, 0);
+            return true;
+        }
+
+        // Marks the ID as free and clears the flags of the device that had it.
+        protected void clear(int deviceId) {
+            setTypeCode(deviceId, 0);
+            setFlag(deviceId, FLAG_ON, false);
+            setFlag(deviceId, FLAG_CHARGING, false);
+            setFlag(deviceId, FLAG_RECORDING, false);
+        }
+
+        public final DeviceChanges changes() {
+            return changes;
+        }
+
+        public final StatusCache statusCache() {
+            return statusCache;
+        }
+
+        public final CommandScheduler scheduler() {
+            return scheduler;
+        }
+
+        public final RuleEngine rules() {
+            return rules;
+        }
+
+        public final DeviceIndex index() {
+            return index;
+        }
+
+        public final UsageMeter usage() {
+            return usage;
+        }
+
+        public final DeviceHistory history() {
+            return history;
+        }
+
+        // Runs over the columns directly, without creating a view per device.
+        public final BulkUpdate updateAll(DeviceType deviceType, int from, int to, DeviceField field,
+                                          int expected, int value, boolean accessRequired) {
+            BulkUpdate result = new BulkUpdate();
+            int typeCode = deviceType.ordinal() + 1;
+            int last = Math.min(to, size() - 1);
+            for (int deviceId = Math.max(from, 0); deviceId <= last; deviceId++) {
+                if (typeCode(deviceId) != typeCode) {
+                    continue;
+                }
+                long oldValue = compareAndSet(deviceId, field, expected, value, accessRequired);
+                if (result.add(oldValue, expected, value)) {
+                    changes.deviceChanged(deviceId, field, (int) oldValue, value);
+                }
+            }
+            return result;
+        }
+
+        public final SmartDevice get(int deviceId) {
+            DeviceType deviceType = typeOf(deviceId);
+            if (deviceType == null) {
+                return null;
+            }
+            switch (deviceType) {
+                case LIGHT:
+                    return new LightView(deviceId);
+                case CAMERA:
+                    return new CameraView(deviceId);
+                default:
+                    return new HeaterView(deviceId);
+            }
+        }
+
+        public final DeviceType typeOf(int deviceId) {
+            if (deviceId < 0 || deviceId >= size()) {
+                return null;
+            }
+            int typeCode = typeCode(deviceId);
+            return typeCode == 0 ? null : DEVICE_TYPES[typeCode - 1];
+        }
+
+        public final boolean contains(DeviceType deviceType, int deviceId) {
+            return deviceType != null && deviceId >= 0 && deviceId < size()
+                    && typeCode(deviceId) == deviceType.ordinal() + 1;
+        }
+
+        // Sets a field of a device if it holds the expected value, see SmartDevice.compareAndSet.
+        // Engines that are changed from several threads without locks override it.
+        protected long compareAndSet(int deviceId, DeviceField field, int expected, int value,
+                                     boolean accessRequired) {
+            if (accessRequired && !flag(deviceId, FLAG_ON) && !flag(deviceId, FLAG_CHARGING)) {
+                return SmartDevice.NO_ACCESS;
+            }
+            int oldValue = fieldValue(deviceId, field);
+            if (expected == SmartDevice.ANY_VALUE || oldValue == expected) {
+                setFieldValue(deviceId, field, value);
+            }
+            return oldValue;
+        }
+
+        private int fieldValue(int deviceId, DeviceField field) {
+            switch (field) {
+                case STATUS:
+                    return readStatus(deviceId).ordinal();
+                case CHARGING:
+                    return flag(deviceId, FLAG_CHARGING) ? 1 : 0;
+                case RECORDING:
+                    return flag(deviceId, FLAG_RECORDING) ? 1 : 0;
+                case BRIGHTNESS:
+                    return lightSettings(deviceId) & BRIGHTNESS_MASK;
+                case COLOR:
+                    return lightSettings(deviceId) >>> COLOR_SHIFT;
+                case TEMPERATURE:
+                case ANGLE:
+                    return level(deviceId);
+                default:
+                    return typeCode(deviceId);
+            }
+        }
+
+        private void setFieldValue(int deviceId, DeviceField field, int value) {
+            switch (field) {
+                case STATUS:
+                    writeStatus(deviceId, Status.values()[value]);
+                    break;
+                case CHARGING:
+                    setFlag(deviceId, FLAG_CHARGING, value != 0);
+                    break;
+                case RECORDING:
+                    setFlag(deviceId, FLAG_RECORDING, value != 0);
+                    break;
+                case BRIGHTNESS:
+                    setLightSettings(deviceId, lightSettings(deviceId) & ~BRIGHTNESS_MASK | value);
+                    break;
+                case COLOR:
+                    setLightSettings(deviceId, lightSettings(deviceId) & BRIGHTNESS_MASK | value << COLOR_SHIFT);
+                    break;
+                case TEMPERATURE:
+                case ANGLE:
+                    setLevel(deviceId, value);
+                    break;
+                default:
+                    setTypeCode(deviceId, value);
+            }
+        }
+
+        private Status readStatus(int deviceId) {
+            return flag(deviceId, FLAG_ON) ? Status.ON : Status.OFF;
+        }
+
+        private void writeStatus(int deviceId, Status status) {
+            setFlag(deviceId, FLAG_ON, status == Status.ON);
+        }
+
+        // Light backed by the state in the store.
+        private final class LightView extends Light {
+            LightView(int deviceId) {
+                setDeviceId(deviceId);
+                changeListener = changes;
+            }
+
+            protected long compareAndSet(DeviceField field, int expected, int value, boolean accessRequired) {
+                return PrimitiveDeviceStore.this.compareAndSet(deviceId, field, expected, value, accessRequired);
+            }
+
+            protected Status readStatus() {
+                return PrimitiveDeviceStore.this.readStatus(deviceId);
+            }
+
+            protected void writeStatus(Status status) {
+                PrimitiveDeviceStore.this.writeStatus(deviceId, status);
+            }
+
+            protected boolean readCharging() {
+                return flag(deviceId, FLAG_CHARGING);
+            }
+
+            protected void writeCharging(boolean charging) {
+                setFlag(deviceId, FLAG_CHARGING, charging);
+            }
+
+            protected BrightnessLevel readBrightnessLevel() {
+                return BRIGHTNESS_LEVELS[lightSettings(deviceId) & BRIGHTNESS_MASK];
+            }
+
+            protected void writeBrightnessLevel(BrightnessLevel brightnessLevel) {
+                setLightSettings(deviceId, lightSettings(deviceId) & ~BRIGHTNESS_MASK | brightnessLevel.ordinal());
+            }
+
+            protected LightColor readLightColor() {
+                return LIGHT_COLORS[lightSettings(deviceId) >>> COLOR_SHIFT];
+            }
+
+            protected void writeLightColor(LightColor lightColor) {
+                setLightSettings(deviceId, lightSettings(deviceId) & BRIGHTNESS_MASK
+                        | lightColor.ordinal() << COLOR_SHIFT);
+            }
+        }
+
+        // Camera backed by the state in the store.
+        private final class CameraView extends Camera {
+            CameraView(int deviceId) {
+                setDeviceId(deviceId);
+                changeListener = changes;
+            }
+
+            protected long compareAndSet(DeviceField field, int expected, int value, boolean accessRequired) {
+                return PrimitiveDeviceStore.this.compareAndSet(deviceId, field, expected, value, accessRequired);
+            }
+
+            protected Status readStatus() {
+                return PrimitiveDeviceStore.this.readStatus(deviceId);
+            }
+
+            protected void writeStatus(Status status) {
+                PrimitiveDeviceStore.this.writeStatus(deviceId, status);
+            }
+
+            protected boolean readCharging() {
+                return flag(deviceId, FLAG_CHARGING);
+            }
+
+            protected void writeCharging(boolean charging) {
+                setFlag(deviceId, FLAG_CHARGING, charging);
+            }
+
+            protected boolean readRecording() {
+                return flag(deviceId, FLAG_RECORDING);
+            }
+
+            protected void writeRecording(boolean recording) {
+                setFlag(deviceId, FLAG_RECORDING, recording);
+            }
+
+            protected int readAngle() {
+                return level(deviceId);
+            }
+
+            protected void writeAngle(int angle) {
+                setLevel(deviceId, angle);
+            }
+        }
+
+        // Heater backed by the state in the store.
+        private final class HeaterView extends Heater {
+            HeaterView(int deviceId) {
+                setDeviceId(deviceId);
+                changeListener = changes;
+            }
+
+            protected long compareAndSet(DeviceField field, int expected, int value, boolean accessRequired) {
+                return PrimitiveDeviceStore.this.compareAndSet(deviceId, field, expected, value, accessRequired);
+            }
+
+            protected Status readStatus() {
+                return PrimitiveDeviceStore.this.readStatus(deviceId);
+            }
+
+            protected void writeStatus(Status status) {
+                PrimitiveDeviceStore.this.writeStatus(deviceId, status);
+            }
+
+            protected int readTemperature() {
+                return level(deviceId);
+            }
+
+            protected void writeTemperature(int temperature) {
+                setLevel(deviceId, temperature);
+            }
+        }
+    }
+
+    // Storage engine that keeps the state of all devices in primitive columns instead of
+    // one object per device: bitsets for the on, charging and recording flags, a byte per
+    // device for the type and for the light settings, and an int per device for the heater
+    // temperature or the camera angle.
+    public static final class ColumnarDeviceStore extends PrimitiveDeviceStore {
+        private static final int INITIAL_CAPACITY = 64;
+
+        private byte[] types = new byte[INITIAL_CAPACITY];
+        private long[][] flags = new long[3][INITIAL_CAPACITY / Long.SIZE]; // A bitset per flag.
+        private byte[] lightSettings = new byte[INITIAL_CAPACITY];
+        private int[] levels = new int[INITIAL_CAPACITY];
+        private int size;
+        private int count;
+
+        protected int allocate() {
+            if (size == types.length) {
+                grow();
+            }
+            return size++;
+        }
+
+        // Doubles every column. The bitsets grow along with the other columns.
+        private void grow() {
+            int capacity = types.length * 2;
+            types = Arrays.copyOf(types, capacity);
+            for (int flag = 0; flag < flags.length; flag++) {
+                flags[flag] = Arrays.copyOf(flags[flag], capacity / Long.SIZE);
+            }
+            lightSettings = Arrays.copyOf(lightSettings, capacity);
+            levels = Arrays.copyOf(levels, capacity);
+        }
+
+        protected void addToCount(int delta) {
+            count += delta;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int count() {
+            return count;
+        }
+
+        // Counts the devices that are on, a word at a time.
+        public int countOn() {
+            int devicesOn = 0;
+            for (long word : flags[FLAG_ON]) {
+                devicesOn += Long.bitCount(word);
+            }
+            return devicesOn;
+        }
+
+        protected int typeCode(int deviceId) {
+            return types[deviceId];
+        }
+
+        protected void setTypeCode(int deviceId, int typeCode) {
+            types[deviceId] = (byte) typeCode;
+        }
+
+        protected boolean flag(int deviceId, int flag) {
+            return (flags[flag][deviceId >>> 6] & 1L << deviceId) != 0;
+        }
+
+        protected void setFlag(int deviceId, int flag, boolean value) {
+            if (value) {
+                flags[flag][deviceId >>> 6] |= 1L << deviceId;
+            } else {
+                flags[flag][deviceId >>> 6] &= ~(1L << deviceId);
+            }
+        }
+
+        protected int lightSettings(int deviceId) {
+            return lightSettings[deviceId];
+        }
+
+        protected void setLightSettings(int deviceId, int lightSettings) {
+            this.lightSettings[deviceId] = (byte) lightSettings;
+        }
+
+        protected int level(int deviceId) {
+            return levels[deviceId];
+        }
+
+        protected void setLevel(int deviceId, int level) {
+            levels[deviceId] = level;
+        }
+    }
+
+    // Storage engine that packs the whole state of a device into one long and changes it with
+    // compare-and-set through a VarHandle, so any number of threads can change devices without
+    // locks. The word of a device holds:
+    //   bits 0-1 type code, bit 2 on, bit 3 charging, bit 4 recording,
+    //   bits 5-6 brightness, bit 7 color, bits 8-31 sequence, bits 32-63 temperature or angle
+    // The words live in pages that are never moved, so growing the store can't lose a change
+    // made to an old copy. Adding and removing devices must still be done one at a time.
+    // A thread that is sequenced takes the next sequence number of the device in the same
+    // compare-and-set as its change, or as its look at the device if nothing changes, which
+    // orders everything sequenced threads did to a device without a lock.
+    public static final class AtomicDeviceStore extends PrimitiveDeviceStore {
+        private static final int PAGE_SHIFT = 12; // 4096 devices per page.
+        private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+        private static final int PAGE_MASK = PAGE_SIZE - 1;
+        private static final long TYPE_MASK = 3;
+        private static final int FLAG_SHIFT = 2;
+        private static final int LIGHT_SETTINGS_SHIFT = 5;
+        private static final long LIGHT_SETTINGS_MASK = 7L << LIGHT_SETTINGS_SHIFT;
+        private static final int SEQUENCE_SHIFT = 8;
+        private static final int SEQUENCE_LIMIT = 1 << 24; // Sequence numbers wrap around at this value.
+        private static final long SEQUENCE_MASK = (long) (SEQUENCE_LIMIT - 1) << SEQUENCE_SHIFT;
+        private static final int LEVEL_SHIFT = 32;
+        private static final long LEVEL_MASK = 0xffffffffL << LEVEL_SHIFT;
+        private static final long ACCESS_MASK = 1L << FLAG_SHIFT + FLAG_ON | 1L << FLAG_SHIFT + FLAG_CHARGING;
+        private static final VarHandle STATES = MethodHandles.arrayElementVarHandle(long[].class);
+
+        private volatile long[][] pages = new long[1][];
+        private int allocated; // IDs handed out, published to other threads through size.
+        private volatile int size;
+        private volatile int count;
+        private final ThreadLocal<Sequences> sequences = new ThreadLocal<>();
+
+        // Sequence numbers the compare-and-sets of a thread took, with their devices.
+        public static final class Sequences {
+            private int[] deviceIds = new int[2];
+            private int[] numbers = new int[2];
+            private int size;
+
+            private void add(int deviceId, int number) {
+                if (size == numbers.length) {
+                    deviceIds = Arrays.copyOf(deviceIds, size * 2);
+                    numbers = Arrays.copyOf(numbers, size * 2);
+                }
+                deviceIds[size] = deviceId;
+                numbers[size++] = number;
+            }
+
+            public int size() {
+                return size;
+            }
+
+            public int deviceId(int index) {
+                return deviceIds[index];
+            }
+
+            public int number(int index) {
+                return numbers[index];
+            }
+
+            public void clear() {
+                size = 0;
+            }
+        }
+
+        // Returns the sequence number a device takes after the given one.
+        public static int nextSequence(int number) {
+            return number + 1 & SEQUENCE_LIMIT - 1;
+        }
+
+        // Sequences the current thread, noting the numbers it takes in the given sequences,
+        // or stops sequencing it with null.
+        public void sequence(Sequences sequences) {
+            if (sequences != null) {
+                this.sequences.set(sequences);
+            } else {
+                this.sequences.remove();
+            }
+        }
+
+        protected int allocate() {
+            int deviceId = allocated;
+            long[][] pages = this.pages;
+            int pageIndex = deviceId >>> PAGE_SHIFT;
+            if (pageIndex == pages.length) {
+                pages = Arrays.copyOf(pages, pages.length * 2);
+            }
+            if (pages[pageIndex] == null) {
+                pages[pageIndex] = new long[PAGE_SIZE];
+            }
+            this.pages = pages;
+            allocated++;
+            return deviceId;
+        }
+
+        // Publishes the devices allocated so far along with the count, once their state is written.
+        protected void addToCount(int delta) {
+            count += delta;
+            size = allocated;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int count() {
+            return count;
+        }
+
+        // Marks the ID as free but keeps the rest of the word, so a change racing with the
+        // removal can still tell what the device looked like just before it.
+        protected void clear(int deviceId) {
+            updateBits(deviceId, TYPE_MASK, 0);
+        }
+
+        private long word(int deviceId) {
+            return (long) STATES.getVolatile(pages[deviceId >>> PAGE_SHIFT], deviceId & PAGE_MASK);
+        }
+
+        // Replaces the masked bits of a word, retrying until no other thread got in between.
+        private void updateBits(int deviceId, long mask, long bits) {
+            long[] page = pages[deviceId >>> PAGE_SHIFT];
+            int index = deviceId & PAGE_MASK;
+            long word;
+            do {
+                word = (long) STATES.getVolatile(page, index);
+            } while (!STATES.compareAndSet(page, index, word, word & ~mask | bits));
+        }
+
+        protected int typeCode(int deviceId) {
+            return (int) (word(deviceId) & TYPE_MASK);
+        }
+
+        protected void setTypeCode(int deviceId, int typeCode) {
+            updateBits(deviceId, TYPE_MASK, typeCode);
+        }
+
+        protected boolean flag(int deviceId, int flag) {
+            return (word(deviceId) & 1L << FLAG_SHIFT + flag) != 0;
+        }
+
+        protected void setFlag(int deviceId, int flag, boolean value) {
+            long bit = 1L << FLAG_SHIFT + flag;
+            updateBits(deviceId, bit, value ? bit : 0);
+        }
+
+        protected int lightSettings(int deviceId) {
+            return (int) ((word(deviceId) & LIGHT_SETTINGS_MASK) >>> LIGHT_SETTINGS_SHIFT);
+        }
+
+        protected void setLightSettings(int deviceId, int lightSettings) {
+            updateBits(deviceId, LIGHT_SETTINGS_MASK, (long) lightSettings << LIGHT_SETTINGS_SHIFT);
+        }
+
+        protected int level(int deviceId) {
+            return (int) (word(deviceId) >>> LEVEL_SHIFT);
+        }
+
+        protected void setLevel(int deviceId, int level) {
+            updateBits(deviceId, LEVEL_MASK, (long) level << LEVEL_SHIFT);
+        }
+
+        // Checks access, compares and sets the field in one compare-and-set of the word, so the
+        // rules of the devices hold even while other threads change the same device. A
+        // sequenced thread takes the next sequence number in the same step, changed or not.
+        protected long compareAndSet(int deviceId, DeviceField field, int expected, int value,
+                                     boolean accessRequired) {
+            long[] page = pages[deviceId >>> PAGE_SHIFT];
+            int index = deviceId & PAGE_MASK;
+            int shift = shiftOf(field);
+            long mask = maskOf(field);
+            Sequences sequences = this.sequences.get();
+            while (true) {
+                long word = (long) STATES.getVolatile(page, index);
+                long newWord = word;
+                long result;
+                if (accessRequired && (word & ACCESS_MASK) == 0) {
+                    result = SmartDevice.NO_ACCESS;
+                } else {
+                    int oldValue = (int) ((word & mask) >>> shift);
+                    result = oldValue;
+                    if (expected == SmartDevice.ANY_VALUE || oldValue == expected) {
+                        if ((word & TYPE_MASK) == 0) {
+                            result = SmartDevice.DISCARDED | oldValue & 0xffffffffL;
+                        } else {
+                            newWord = word & ~mask | (long) value << shift & mask;
+                        }
+                    }
+                }
+                if (sequences != null) {
+                    newWord = newWord & ~SEQUENCE_MASK | word + (1L << SEQUENCE_SHIFT) & SEQUENCE_MASK;
+                }
+                if (newWord == word || STATES.compareAndSet(page, index, word, newWord)) {
+                    if (sequences != null) {
+                        sequences.add(deviceId, (int) ((word & SEQUENCE_MASK) >>> SEQUENCE_SHIFT));
+                    }
+                    return result;
+                }
+            }
+        }
+
+        private static int shiftOf(DeviceField field) {
+            switch (field) {
+                case STATUS:
+                    return FLAG_SHIFT + FLAG_ON;
+                case CHARGING:
+                    return FLAG_SHIFT + FLAG_CHARGING;
+                case RECORDING:
+                    return FLAG_SHIFT + FLAG_RECORDING;
+                case BRIGHTNESS:
+                    return LIGHT_SETTINGS_SHIFT;
+                case COLOR:
+                    return LIGHT_SETTINGS_SHIFT + COLOR_SHIFT;
+                case TEMPERATURE:
+                case ANGLE:
+                    return LEVEL_SHIFT;
+                default:
+                    return 0;
+            }
+        }
+
+        private static long maskOf(DeviceField field) {
+            switch (field) {
+                case BRIGHTNESS:
+                    return (long) BRIGHTNESS_MASK << LIGHT_SETTINGS_SHIFT;
+                case TEMPERATURE:
+                case ANGLE:
+                    return LEVEL_MASK;
+                case TYPE:
+                    return TYPE_MASK;
+                default:
+                    return 1L << shiftOf(field);
+            }
+        }
+    }
+
+    // Storage engine that keeps the devices in a memory-mapped file, so their state survives
+    // a restart. The file holds a header followed by one fixed-width record per device ID:
+    //   header: magic, version, record size, capacity, size, count (ints), padded to 64 bytes
+    //   record: type code, flags, light settings, unused (bytes), level (int)
+    // Reopening the file only maps it and validates the header, and writing the changes back
+    // to disk is left to the page cache.
+    public static final class MappedDeviceStore extends PrimitiveDeviceStore implements Closeable {
+        private static final int MAGIC = 0x53484d53; // "SHMS"
+        private static final int VERSION = 1;
+        private static final int HEADER_SIZE = 64;
+        private static final int RECORD_SIZE = 8;
+        private static final int INITIAL_CAPACITY = 1024;
+        private static final int MAGIC_OFFSET = 0;
+        private static final int VERSION_OFFSET = 4;
+        private static final int RECORD_SIZE_OFFSET = 8;
+        private static final int CAPACITY_OFFSET = 12;
+        private static final int SIZE_OFFSET = 16;
+        private static final int COUNT_OFFSET = 20;
+        private static final int TYPE_OFFSET = 0;
+        private static final int FLAGS_OFFSET = 1;
+        private static final int LIGHT_SETTINGS_OFFSET = 2;
+        private static final int LEVEL_OFFSET = 4;
+
+        private final FileChannel channel;
+        private final boolean restored;
+        private MappedByteBuffer records;
+        private int capacity;
+        private int size;
+
+        private MappedDeviceStore(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.restored = channel.size() > 0;
+            if (restored) {
+                validate();
+            } else {
+                map(INITIAL_CAPACITY);
+                records.putInt(MAGIC_OFFSET, MAGIC);
+                records.putInt(VERSION_OFFSET, VERSION);
+                records.putInt(RECORD_SIZE_OFFSET, RECORD_SIZE);
+            }
+        }
+
+        // Opens the store in the given file, restoring the devices if the file already exists.
+        public static MappedDeviceStore open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            try {
+                return new MappedDeviceStore(channel);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        // Checks that an existing file has a layout this version can map.
+        private void validate() throws IOException {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Device file is too short for its header");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(MAGIC_OFFSET) != MAGIC) {
+                throw new IOException("Not a device file");
+            }
+            if (header.getInt(VERSION_OFFSET) != VERSION || header.getInt(RECORD_SIZE_OFFSET) != RECORD_SIZE) {
+                throw new IOException("Unsupported device file version " + header.getInt(VERSION_OFFSET));
+            }
+            int storedCapacity = header.getInt(CAPACITY_OFFSET);
+            int storedSize = header.getInt(SIZE_OFFSET);
+            int storedCount = header.getInt(COUNT_OFFSET);
+            if (storedSize < 0 || storedSize > storedCapacity || storedCount < 0 || storedCount > storedSize
+                    || channel.size() < HEADER_SIZE + (long) storedCapacity * RECORD_SIZE) {
+                throw new IOException("Device file header is inconsistent");
+            }
+            map(storedCapacity);
+            size = storedSize;
+        }
+
+        // Maps the header and the given number of records, extending the file if needed.
+        private void map(int capacity) throws IOException {
+            records = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            records.putInt(CAPACITY_OFFSET, capacity);
+            this.capacity = capacity;
+        }
+
+        // Whether the devices were restored from an existing file.
+        public boolean isRestored() {
+            return restored;
+        }
+
+        protected int allocate() {
+            if (size == capacity) {
+                try {
+                    map(capacity * 2);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            records.putInt(SIZE_OFFSET, size + 1);
+            return size++;
+        }
+
+        protected void addToCount(int delta) {
+            records.putInt(COUNT_OFFSET, records.getInt(COUNT_OFFSET) + delta);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int count() {
+            return records.getInt(COUNT_OFFSET);
+        }
+
+        private static int offset(int deviceId) {
+            return HEADER_SIZE + deviceId * RECORD_SIZE;
+        }
+
+        protected int typeCode(int deviceId) {
+            return records.get(offset(deviceId) + TYPE_OFFSET);
+        }
+
+        protected void setTypeCode(int deviceId, int typeCode) {
+            records.put(offset(deviceId) + TYPE_OFFSET, (byte) typeCode);
+        }
+
+        protected boolean flag(int deviceId, int flag) {
+            return (records.get(offset(deviceId) + FLAGS_OFFSET) & 1 << flag) != 0;
+        }
+
+        protected void setFlag(int deviceId, int flag, boolean value) {
+            int index = offset(deviceId) + FLAGS_OFFSET;
+            int flags = records.get(index);
+            records.put(index, (byte) (value ? flags | 1 << flag : flags & ~(1 << flag)));
+        }
+
+        protected int lightSettings(int deviceId) {
+            return records.get(offset(deviceId) + LIGHT_SETTINGS_OFFSET);
+        }
+
+        protected void setLightSettings(int deviceId, int lightSettings) {
+            records.put(offset(deviceId) + LIGHT_SETTINGS_OFFSET, (byte) lightSettings);
+        }
+
+        protected int level(int deviceId) {
+            return records.getInt(offset(deviceId) + LEVEL_OFFSET);
+        }
+
+        protected void setLevel(int deviceId, int level) {
+            records.putInt(offset(deviceId) + LEVEL_OFFSET, level);
+        }
+
+        // Asks the OS to write the mapped records to disk now instead of eventually.
+        public void sync() {
+            records.force();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // Applies a change of a field directly to a device, the way the change happened before.
+    // Used to restore devices without going through the command handlers, so nothing is printed.
+    public static void applyChange(DeviceStore smartDevices, int deviceId, DeviceField field, int value) {
+        if (field == DeviceField.TYPE) {
+            if (value == 0) {
+                smartDevices.remove(deviceId);
+            } else if (smartDevices.add(newDevice(DeviceType.values()[value - 1])) != deviceId) {
+                throw new IllegalStateException("Device " + deviceId + " was restored under another ID");
+            }
+            return;
+        }
+
+        SmartDevice device = smartDevices.get(deviceId);
+        if (device == null) {
+            throw new IllegalStateException("Device " + deviceId + " is not there to be restored");
+        }
+        device.update(field, SmartDevice.ANY_VALUE, value, false);
+    }
+
+    // Append-only binary journal of the accepted changes to the devices. Records are
+    // collected in a buffer and made durable together (group commit) by a flusher thread,
+    // once the commit window since the first uncommitted record has passed. A change only
+    // writes to the disk itself when the buffer is full. Every checkpoint interval the
+    // flusher writes the whole device table to a checkpoint file and the journal starts
+    // over, so recovery loads the checkpoint and replays only the tail.
+    //   journal:    magic, version (ints), generation (long), then records of
+    //               device ID, field, new value, check (ints)
+    //   checkpoint: magic, version (ints), generation (long), size (int), then per device ID
+    //               type code, flags, light settings, unused (bytes), level (int)
+    // A journal whose generation is older than the checkpoint's is already in the checkpoint.
+    public static final class DeviceJournal implements DeviceChangeListener, Closeable {
+        private static final int MAGIC = 0x53484a4c; // "SHJL"
+        private static final int CHECKPOINT_MAGIC = 0x5348434b; // "SHCK"
+        private static final int VERSION = 1;
+        private static final int HEADER_SIZE = 16;
+        private static final int RECORD_SIZE = 16;
+        private static final int BUFFER_SIZE = 1 << 16;
+        private static final DeviceField[] DEVICE_FIELDS = DeviceField.values();
+
+        private final DeviceStore smartDevices;
+        private final Path checkpointPath;
+        private final FileChannel channel;
+        private final Object commitLock = new Object(); // Held while records go to the disk.
+        private ByteBuffer pending = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private ByteBuffer committing = ByteBuffer.allocateDirect(BUFFER_SIZE); // Swapped with pending.
+        private final long groupCommitNanos;
+        private final long checkpointInterval;
+        private final Thread flusher;
+        private long firstPendingNanos;
+        private long recordsSinceCheckpoint;
+        private long generation;
+        private long replayedRecords;
+        private boolean closed;
+        private UncheckedIOException flushFailure; // Failed commit of the flusher, thrown on the next use.
+
+        private DeviceJournal(DeviceStore smartDevices, Path journalPath, FileChannel channel,
+                              long groupCommitMillis, long checkpointInterval) {
+            this.smartDevices = smartDevices;
+            this.checkpointPath = journalPath.resolveSibling(journalPath.getFileName() + ".checkpoint");
+            this.channel = channel;
+            this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(groupCommitMillis);
+            this.checkpointInterval = checkpointInterval;
+            this.flusher = new Thread(this::flushPending, "journal-flusher");
+            flusher.setDaemon(true);
+        }
+
+        // Opens the journal and restores the devices from its checkpoint and tail. Without a
+        // checkpoint the initializer fills the empty store and a first checkpoint is taken.
+        // From then on every change to the store is appended to the journal.
+        public static DeviceJournal open(Path journalPath, DeviceStore smartDevices, Runnable initializer,
+                                         long groupCommitMillis, long checkpointInterval) throws IOException {
+            FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            DeviceJournal journal = new DeviceJournal(smartDevices, journalPath, channel,
+                    groupCommitMillis, checkpointInterval);
+            try {
+                if (Files.exists(journal.checkpointPath)) {
+                    journal.loadCheckpoint();
+                    journal.replay();
+                } else {
+                    initializer.run();
+                    journal.checkpoint();
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            smartDevices.changes().add(journal);
+            journal.flusher.start();
+            return journal;
+        }
+
+        // Number of journal records applied on top of the checkpoint when the journal was opened.
+        public long getReplayedRecords() {
+            return replayedRecords;
+        }
+
+        // Appends the record of the change, committing first only if the buffer is full.
+        public void deviceChanged(int deviceId, DeviceField field, int oldValue, int newValue) {
+            while (!append(deviceId, field.ordinal(), newValue)) {
+                commit();
+            }
+        }
+
+        // Appends a record to the pending ones, or returns false if the buffer is full.
+        private synchronized boolean append(int deviceId, int field, int value) {
+            throwFlushFailure();
+            if (!pending.hasRemaining()) {
+                return false;
+            }
+            if (pending.position() == 0) {
+                firstPendingNanos = System.nanoTime();
+                notifyAll(); // A new window starts for the flusher.
+            }
+            pending.putInt(deviceId).putInt(field).putInt(value).putInt(check(deviceId, field, value));
+            if (++recordsSinceCheckpoint == checkpointInterval) {
+                notifyAll(); // The flusher takes the checkpoint.
+            }
+            return true;
+        }
+
+        private static int check(int deviceId, int field, int value) {
+            return MAGIC ^ deviceId * 0x9e3779b9 ^ Integer.rotateLeft(field, 24) ^ value * 0x85ebca6b;
+        }
+
+        // Commits the pending records once the commit window since the first of them has
+        // passed, and takes a checkpoint once enough records were appended since the last.
+        private void flushPending() {
+            try {
+                while (true) {
+                    boolean checkpointDue;
+                    synchronized (this) {
+                        while (true) {
+                            if (closed) {
+                                return;
+                            }
+                            checkpointDue = recordsSinceCheckpoint >= checkpointInterval;
+                            long remaining = pending.position() == 0 ? 0
+                                    : firstPendingNanos + groupCommitNanos - System.nanoTime();
+                            if (checkpointDue || pending.position() > 0 && remaining <= 0) {
+                                break;
+                            } else if (remaining > 0) {
+                                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                            } else {
+                                wait();
+                            }
+                        }
+                    }
+                    if (checkpointDue) {
+                        checkpointUnchecked();
+                    } else {
+                        commit();
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                synchronized (this) {
+                    flushFailure = e;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void throwFlushFailure() {
+            if (flushFailure != null) {
+                throw flushFailure;
+            }
+        }
+
+        // Makes every record appended so far durable. Called before a response leaves the
+        // process, so a client never sees the result of a change that a crash could lose.
+        public void sync() {
+            synchronized (this) {
+                throwFlushFailure();
+            }
+            commit();
+        }
+
+        // Stream that syncs the journal before anything is written to the given stream.
+        public OutputStream syncBeforeWrite(OutputStream out) {
+            return new OutputStream() {
+                public void write(int b) throws IOException {
+                    sync();
+                    out.write(b);
+                }
+
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    sync();
+                    out.write(bytes, offset, length);
+                }
+
+                public void flush() throws IOException {
+                    out.flush();
+                }
+            };
+        }
+
+        // Writes the pending records and forces them to disk with a single sync. The records
+        // are swapped for an empty buffer first, so changes go on appending meanwhile.
+        public void commit() {
+            synchronized (commitLock) {
+                ByteBuffer records;
+                synchronized (this) {
+                    if (closed || pending.position() == 0) {
+                        return;
+                    }
+                    records = pending;
+                    pending = committing;
+                    committing = records;
+                }
+                try {
+                    writeFully(channel, records);
+                    channel.force(false);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        private void checkpointUnchecked() {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Writes the whole device table to a new checkpoint and starts the journal over.
+        // Changes go on appending while the table is written. Their records stay pending
+        // and go to the new journal, where replaying them again does no harm.
+        public void checkpoint() throws IOException {
+            synchronized (commitLock) {
+                commit();
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                }
+                writeCheckpoint();
+            }
+        }
+
+        private void writeCheckpoint() throws IOException {
+            long nextGeneration = generation + 1;
+            Path temporaryPath = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+            try (FileChannel checkpoint = FileChannel.open(temporaryPath, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                buffer.putInt(CHECKPOINT_MAGIC).putInt(VERSION).putLong(nextGeneration).putInt(smartDevices.size());
+                for (int deviceId = 0; deviceId < smartDevices.size(); deviceId++) {
+                    if (buffer.remaining() < 8) {
+                        writeFully(checkpoint, buffer);
+                    }
+                    putDevice(buffer, smartDevices.get(deviceId));
+                }
+                writeFully(checkpoint, buffer);
+                checkpoint.force(true);
+            }
+            Files.move(temporaryPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            // The checkpoint holds everything up to here, the journal starts over from it
+            generation = nextGeneration;
+            resetJournal();
+            synchronized (this) {
+                recordsSinceCheckpoint = pending.position() / RECORD_SIZE;
+            }
+        }
+
+        private static void putDevice(ByteBuffer buffer, SmartDevice device) {
+            if (device == null) {
+                buffer.putLong(0); // Removed device.
+                return;
+            }
+            int flags = device.isOn() ? 1 : 0;
+            int lightSettings = 0;
+            int level = 0;
+            if (device instanceof Light) {
+                Light light = (Light) device;
+                flags |= light.isCharging() ? 2 : 0;
+                lightSettings = light.getBrightnessLevel().ordinal() | light.getLightColor().ordinal() << 2;
+            } else if (device instanceof Camera) {
+                Camera camera = (Camera) device;
+                flags |= (camera.isCharging() ? 2 : 0) | (camera.isRecording() ? 4 : 0);
+                level = camera.getAngle();
+            } else {
+                level = ((Heater) device).getTemperature();
+            }
+            buffer.put((byte) (DeviceType.of(device).ordinal() + 1)).put((byte) flags)
+                    .put((byte) lightSettings).put((byte) 0).putInt(level);
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void resetJournal() throws IOException {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(generation).flip();
+            channel.write(header, 0);
+            channel.position(HEADER_SIZE);
+            channel.force(true);
+        }
+
+        // Restores the device table from the checkpoint into the empty store.
+        private void loadCheckpoint() throws IOException {
+            try (FileChannel checkpoint = FileChannel.open(checkpointPath, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                readAtLeast(checkpoint, buffer, 20);
+                if (buffer.getInt() != CHECKPOINT_MAGIC || buffer.getInt() != VERSION) {
+                    throw new IOException("Unsupported checkpoint " + checkpointPath);
+                }
+                generation = buffer.getLong();
+                int size = buffer.getInt();
+                for (int deviceId = 0; deviceId < size; deviceId++) {
+                    readAtLeast(checkpoint, buffer, 8);
+                    int typeCode = buffer.get();
+                    int flags = buffer.get();
+                    int lightSettings = buffer.get();
+                    buffer.get();
+                    int level = buffer.getInt();
+                    if (typeCode == 0) {
+                        smartDevices.remove(smartDevices.add(newLight())); // Keeps the ID of a removed device.
+                        continue;
+                    }
+
+                    applyChange(smartDevices, deviceId, DeviceField.TYPE, typeCode);
+                    applyChange(smartDevices, deviceId, DeviceField.STATUS, flags & 1);
+                    if (typeCode == DeviceType.LIGHT.ordinal() + 1) {
+                        applyChange(smartDevices, deviceId, DeviceField.CHARGING, flags >> 1 & 1);
+                        applyChange(smartDevices, deviceId, DeviceField.BRIGHTNESS, lightSettings & 3);
+                        applyChange(smartDevices, deviceId, DeviceField.COLOR, lightSettings >> 2);
+                    } else if (typeCode == DeviceType.CAMERA.ordinal() + 1) {
+                        applyChange(smartDevices, deviceId, DeviceField.CHARGING, flags >> 1 & 1);
+                        applyChange(smartDevices, deviceId, DeviceField.RECORDING, flags >> 2 & 1);
+                        applyChange(smartDevices, deviceId, DeviceField.ANGLE, level);
+                    } else {
+                        applyChange(smartDevices, deviceId, DeviceField.TEMPERATURE, level);
+                    }
+                }
+            }
+        }
+
+        // Makes sure the buffer holds at least the given number of unread bytes.
+        private static void readAtLeast(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+            if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+                buffer.limit(0); // Nothing was read yet.
+            }
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Checkpoint is truncated");
+                }
+            }
+            buffer.flip();
+        }
+
+        // Applies the journal records of the checkpoint's generation. A torn or corrupt
+        // tail, left by a crash in the middle of a commit, is cut off.
+        private void replay() throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION
+                    || header.getLong() != generation) {
+                resetJournal(); // Missing, or already part of the checkpoint.
+                return;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            long position = HEADER_SIZE;
+            long validEnd = HEADER_SIZE;
+            boolean corrupt = false;
+            while (!corrupt && channel.read(buffer, position) > 0) {
+                buffer.flip();
+                if (buffer.remaining() < RECORD_SIZE) {
+                    break; // Only part of a record was written.
+                }
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    int deviceId = buffer.getInt();
+                    int field = buffer.getInt();
+                    int value = buffer.getInt();
+                    if (buffer.getInt() != check(deviceId, field, value)
+                            || field < 0 || field >= DEVICE_FIELDS.length) {
+                        corrupt = true;
+                        break;
+                    }
+                    applyChange(smartDevices, deviceId, DEVICE_FIELDS[field], value);
+                    validEnd += RECORD_SIZE;
+                    replayedRecords++;
+                }
+                position = validEnd;
+                buffer.clear();
+            }
+            channel.truncate(validEnd);
+            channel.position(validEnd);
+            recordsSinceCheckpoint = replayedRecords;
+        }
+
+        public void close() throws IOException {
+            synchronized (commitLock) {
+                commit();
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    notifyAll();
+                }
+            }
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+            throwFlushFailure();
+        }
+    }
+
+    // Fills a store with the given number of lights, cameras and heaters, in that order.
+    public static DeviceStore initializeSmartDevices(DeviceStore smartDevices, int numberOfLights,
+                                                     int numberOfCameras, int numberOfHeaters) {
+        for (int i = 0; i < numberOfLights; i++) {
+            smartDevices.add(newLight());
+        }
+        for (int i = 0; i < numberOfCameras; i++) {
+            smartDevices.add(newCamera());
+        }
+        for (int i = 0; i < numberOfHeaters; i++) {
+            smartDevices.add(newHeater());
+        }
+        return smartDevices;
+    }
+
+    // Creates the default set of smart devices (lights, cameras, and heaters).
+    public static DeviceStore initializeSmartDevices() {
+        return initializeSmartDevices(new DeviceRegistry(),
+                NUMBER_OF_LIGHTS, NUMBER_OF_CAMERAS, NUMBER_OF_HEATERS);
+    }
+
+    // Returns the device with the given name and ID, or prints that it was not found and returns null.
+    public static SmartDevice findDevice(String deviceName, int deviceId, DeviceStore smartDevices) {
+        DeviceType deviceType = DeviceType.fromName(deviceName);
+        SmartDevice device = deviceType == null ? null : smartDevices.get(deviceId);
+        if (device == null || DeviceType.of(device) != deviceType) {
+            printDeviceNotFound();
+            return null;
+        }
+        return device;
+    }
+
+    // Checks if a device with the given name and ID exists in the system.
+    public static boolean isNotThereInSystem(String deviceName, int deviceId, DeviceStore smartDevices) {
+        if (smartDevices.contains(DeviceType.fromName(deviceName), deviceId)) {
+            return false;
+        }
+        printDeviceNotFound();
+        return true;
+    }
+
+    // Adds a new device of the given type with default settings.
+    public static void addDevice(String deviceName, DeviceStore smartDevices) {
+        DeviceType deviceType = DeviceType.fromName(deviceName);
+        if (deviceType == null) {
+            printInvalidCommand();
+            return;
+        }
+
+        int deviceId = smartDevices.add(newDevice(deviceType));
+        responseSink().println(deviceName + " " + deviceId + " is added");
+    }
+
+    // Removes a device from the system.
+    public static void removeDevice(String deviceName, int deviceId, DeviceStore smartDevices) {
+        if (isNotThereInSystem(deviceName, deviceId, smartDevices)) {
+            return;
+        }
+
+        smartDevices.remove(deviceId);
+        responseSink().println(deviceName + " " + deviceId + " is removed");
+    }
+
+    // Displays the status of all smart devices in the system.
+    // Lines of devices that didn't change since the last time come from the status cache.
+    public static void displayAllStatus(DeviceStore smartDevices) {
+        StatusCache statusCache = smartDevices.statusCache();
+        for (int i = 0; i < smartDevices.size(); i++) {
+            SmartDevice smartDevice = smartDevices.get(i);
+            if (smartDevice == null) {
+                continue; // Skip the IDs of removed devices.
+            }
+            responseSink().println(statusCache.statusLine(smartDevice)); // Print the status of each device.
+        }
+    }
+
+    // Displays the status of the devices that changed since the given version, including the
+    // devices that were added or removed, followed by the version to pass the next time.
+    // A device that changes while this runs may be displayed again the next time.
+    public static void displayChangedStatus(long sinceVersion, DeviceStore smartDevices) {
+        StatusCache statusCache = smartDevices.statusCache();
+        long version = statusCache.nextVersion();
+        for (int i = 0; i < smartDevices.size(); i++) {
+            if (statusCache.versionOf(i) < sinceVersion) {
+                continue; // Skip the devices that didn't change.
+            }
+            SmartDevice smartDevice = smartDevices.get(i);
+            String statusLine = smartDevice != null ? statusCache.statusLine(smartDevice) : statusCache.removedLine(i);
+            if (statusLine != null) {
+                responseSink().println(statusLine);
+            }
+        }
+        responseSink().println("The status version is " + version);
+    }
+
+    // Displays the status of the devices that match the query, in the order of their IDs.
+    // The devices are found in the bitmap indexes of the store, see parseQuery.
+    public static void listDevices(String query, DeviceStore smartDevices) {
+        DeviceIndex.Query parsedQuery = parseQuery(query);
+        if (parsedQuery == null) {
+            printInvalidCommand();
+            return;
+        }
+        StatusCache statusCache = smartDevices.statusCache();
+        long listed = smartDevices.index().forEach(parsedQuery, deviceId -> {
+            SmartDevice smartDevice = smartDevices.get(deviceId);
+            if (smartDevice != null) {
+                responseSink().println(statusCache.statusLine(smartDevice));
+            }
+        });
+        if (listed == 0) {
+            responseSink().println("No device matches");
+        }
+    }
+
+    // Displays the number of devices that match the query, counted in the bitmap indexes.
+    public static void countDevices(String query, DeviceStore smartDevices) {
+        DeviceIndex.Query parsedQuery = parseQuery(query);
+        if (parsedQuery == null) {
+            printInvalidCommand();
+            return;
+        }
+        long count = smartDevices.index().count(parsedQuery);
+        responseSink().println(count + (count == 1 ? " device matches" : " devices match"));
+    }
+
+    // Displays the usage of each type of device and of the whole home until the time of the
+    // scheduler's clock.
+    public static void displayUsage(DeviceStore smartDevices) {
+        UsageMeter usage = smartDevices.usage();
+        if (!usage.isEnabled()) {
+            responseSink().println("The usage meter is off");
+            return;
+        }
+        long[] home = new long[4];
+        for (DeviceType deviceType : DeviceType.values()) {
+            long[] totals = new long[4];
+            for (int metric = 0; metric < totals.length; metric++) {
+                totals[metric] = usage.total(deviceType, metric);
+                home[metric] += totals[metric];
+            }
+            responseSink().println(deviceType.getDeviceName() + ": " + formatUsage(deviceType, totals));
+        }
+        responseSink().println("Home: " + formatUsage(null, home));
+    }
+
+    // Displays the usage of one device until the time of the scheduler's clock.
+    public static void displayUsage(String deviceName, int deviceId, DeviceStore smartDevices) {
+        SmartDevice device = findDevice(deviceName, deviceId, smartDevices);
+        if (device == null) {
+            return;
+        }
+        if (!smartDevices.usage().isEnabled()) {
+            responseSink().println("The usage meter is off");
+            return;
+        }
+        long[] totals = new long[4];
+        for (int metric = 0; metric < totals.length; metric++) {
+            totals[metric] = smartDevices.usage().usageOf(deviceId, metric);
+        }
+        responseSink().println(deviceName + " " + deviceId + ": " + formatUsage(DeviceType.of(device), totals));
+    }
+
+    // Formats the metrics a device of the type has, or all of them for no type. Seconds are
+    // shown as whole minutes, degree-seconds as degree-hours with one decimal.
+    private static String formatUsage(DeviceType deviceType, long[] totals) {
+        StringBuilder line = new StringBuilder("on for ").append(totals[UsageMeter.ON] / 60).append(" minutes");
+        if (deviceType != DeviceType.HEATER) {
+            line.append(", charging for ").append(totals[UsageMeter.CHARGING] / 60).append(" minutes");
+        }
+        if (deviceType == null || deviceType == DeviceType.CAMERA) {
+            line.append(", recording for ").append(totals[UsageMeter.RECORDING] / 60).append(" minutes");
+        }
+        if (deviceType == null || deviceType == DeviceType.HEATER) {
+            long tenths = totals[UsageMeter.DEGREES] / 360;
+            line.append(", ").append(tenths / 10).append('.').append(Math.abs(tenths % 10)).append(" degree-hours");
+        }
+        return line.toString();
+    }
+
+    // Displays how many changes the history keeps and in how much memory, or for "<device name>
+    // <ID> <field> <from> <to>" the value of the field at the first time and each change of it
+    // until the second. Times are written D:HH:MM or D:HH:MM:SS, see parseClockTime.
+    public static void displayHistory(String arguments, DeviceStore smartDevices) {
+        DeviceHistory history = smartDevices.history();
+        if (arguments.isEmpty()) {
+            if (!history.isEnabled()) {
+                responseSink().println("The history is off");
+                return;
+            }
+            long changes = history.changes();
+            responseSink().println("The history keeps " + changes + (changes == 1 ? " change" : " changes")
+                    + " in " + history.blocks() * DeviceHistory.BLOCK_SIZE + " bytes");
+            return;
+        }
+        String[] historyTerms = arguments.split(" ");
+        long from = historyTerms.length == 5 ? parseClockTime(historyTerms[3]) : -1;
+        long to = historyTerms.length == 5 ? parseClockTime(historyTerms[4]) : -1;
+        if (from < 0 || to < from) {
+            printInvalidCommand();
+            return;
+        }
+        replayHistory(historyTerms, from, to, smartDevices);
+    }
+
+    // Displays the value of a field at a time, for "<device name> <ID> <field> <time>".
+    public static void displayValueAt(String arguments, DeviceStore smartDevices) {
+        String[] historyTerms = arguments.split(" ");
+        long time = historyTerms.length == 4 ? parseClockTime(historyTerms[3]) : -1;
+        if (time < 0) {
+            printInvalidCommand();
+            return;
+        }
+        replayHistory(historyTerms, time, time, smartDevices);
+    }
+
+    private static void replayHistory(String[] historyTerms, long from, long to, DeviceStore smartDevices) {
+        DeviceType deviceType = DeviceType.fromName(historyTerms[0]);
+        int field = keywordOrdinal(historyTerms[2], DEVICE_FIELDS);
+        if (isNotNumber(historyTerms[1]) || field <= DeviceField.TYPE.ordinal()
+                || deviceType != null && !deviceType.hasField(DEVICE_FIELDS[field])) {
+            printInvalidCommand();
+            return;
+        }
+        int deviceId = Integer.parseInt(historyTerms[1]);
+        SmartDevice device = findDevice(historyTerms[0], deviceId, smartDevices);
+        if (device == null) {
+            return;
+        }
+        DeviceHistory history = smartDevices.history();
+        if (!history.isEnabled()) {
+            responseSink().println("The history is off");
+            return;
+        }
+        DeviceField deviceField = DEVICE_FIELDS[field];
+        String prefix = historyTerms[0] + " " + deviceId + " " + deviceField + " ";
+        boolean kept = history.replay(deviceId, deviceField, device.readField(deviceField), from, to, (time, value) ->
+                responseSink().println(prefix + (time == from ? "was " : "changed to ")
+                        + formatFieldValue(deviceField, (int) value) + " at " + CommandScheduler.formatSeconds(time)));
+        if (!kept) {
+            responseSink().println("The history of " + historyTerms[0] + " " + deviceId + " starts at "
+                    + CommandScheduler.formatSeconds(history.startOf(deviceId)));
+        }
+    }
+
+    // Formats a value of a field the way parseFieldValue takes it.
+    private static String formatFieldValue(DeviceField field, int value) {
+        switch (field) {
+            case STATUS:
+                return Status.values()[value].name();
+            case CHARGING:
+            case RECORDING:
+                return value != 0 ? "true" : "false";
+            case BRIGHTNESS:
+                return BRIGHTNESS_LEVELS[value].name();
+            case COLOR:
+                return LIGHT_COLORS[value].name();
+            default:
+                return String.valueOf(value);
+        }
+    }
+
+    // Parses the conditions of List and Count: device names, and fields followed by a value
+    // as parseFieldValue takes it or, for the temperature and the angle, a range "from..to".
+    // Conditions next to each other or joined by "and" must all hold, and "or" joins such
+    // groups. No condition at all matches every device. Returns null for a malformed query.
+    private static DeviceIndex.Query parseQuery(String query) {
+        DeviceIndex.Query parsedQuery = new DeviceIndex.Query();
+        String[] queryTerms = query.isEmpty() ? new String[0] : query.split(" ");
+        boolean afterCondition = false;
+        for (int i = 0; i < queryTerms.length; i++) {
+            if (queryTerms[i].equals("and") || queryTerms[i].equals("or")) {
+                if (!afterCondition || i == queryTerms.length - 1) {
+                    return null;
+                }
+                if (queryTerms[i].equals("or")) {
+                    parsedQuery.or();
+                }
+                afterCondition = false;
+                continue;
+            }
+            afterCondition = true;
+            DeviceType deviceType = DeviceType.fromName(queryTerms[i]);
+            if (deviceType != null) {
+                parsedQuery.type(deviceType);
+                continue;
+            }
+
+            int field = keywordOrdinal(queryTerms[i], DEVICE_FIELDS);
+            if (field <= DeviceField.TYPE.ordinal() || i == queryTerms.length - 1) {
+                return null;
+            }
+            String value = queryTerms[++i];
+            int range = value.indexOf("..");
+            if (range >= 0 && (field == DeviceField.TEMPERATURE.ordinal() || field == DeviceField.ANGLE.ordinal())) {
+                int from = parseFieldValue(DEVICE_FIELDS[field], value.substring(0, range));
+                int to = parseFieldValue(DEVICE_FIELDS[field], value.substring(range + 2));
+                if (from == SmartDevice.ANY_VALUE || to == SmartDevice.ANY_VALUE) {
+                    return null;
+                }
+                parsedQuery.range(DEVICE_FIELDS[field], from, to);
+            } else {
+                int fieldValue = parseFieldValue(DEVICE_FIELDS[field], value);
+                if (fieldValue == SmartDevice.ANY_VALUE) {
+                    return null;
+                }
+                parsedQuery.field(DEVICE_FIELDS[field], fieldValue);
+            }
+        }
+        return parsedQuery;
+    }
+
+    // Schedules the command of At or Every, which must be one that can run on its own.
+    public static void scheduleCommand(Command command, DeviceStore smartDevices) {
+        Command scheduledCommand = parseCommand(command.line());
+        if (!scheduledCommand.opcode().isSchedulable()) {
+            printInvalidCommand();
+            return;
+        }
+
+        CommandScheduler scheduler = smartDevices.scheduler();
+        if (command.opcode() == Opcode.AT) {
+            long deadline = scheduler.nextTimeOfDay(command.argument());
+            int taskId = scheduler.schedule(scheduledCommand, deadline, 0);
+            responseSink().println("Task " + taskId + " is scheduled at " + CommandScheduler.formatTime(deadline));
+        } else {
+            int period = command.argument();
+            int taskId = scheduler.schedule(scheduledCommand, scheduler.now() + period, period);
+            responseSink().println("Task " + taskId + " is scheduled every " + period + " minutes");
+        }
+    }
+
+    // Cancels a scheduled task so that it doesn't run again.
+    public static void cancelTask(int taskId, DeviceStore smartDevices) {
+        if (smartDevices.scheduler().cancel(taskId)) {
+            responseSink().println("Task " + taskId + " is canceled");
+        } else {
+            responseSink().println("The task was not found");
+        }
+    }
+
+    // Moves the clock of the scheduler forward, running the tasks that fall due on the way.
+    public static void advanceClock(int minutes, DeviceStore smartDevices) {
+        CommandScheduler scheduler = smartDevices.scheduler();
+        scheduler.fastForward(minutes, smartDevices);
+        smartDevices.history().prune();
+        responseSink().println("The time is " + CommandScheduler.formatTime(scheduler.now()));
+    }
+
+    // Adds a rule, given as "<device name> <ID or selector> <field> <comparison> <value> <command>".
+    // The ID of the command may be "$" for the device that made the rule fire.
+    public static void addRule(String rule, DeviceStore smartDevices) {
+        String[] ruleTerms = rule.split(" ", 6);
+        if (ruleTerms.length < 6) {
+            printInvalidCommand();
+            return;
+        }
+        DeviceType deviceType = DeviceType.fromName(ruleTerms[0]);
+        int[] selected = isDeviceSelector(ruleTerms[1]) ? parseDeviceSelector(ruleTerms[1])
+                : isNotNumber(ruleTerms[1]) ? null : new int[] {Integer.parseInt(ruleTerms[1]), Integer.parseInt(ruleTerms[1])};
+        int field = keywordOrdinal(ruleTerms[2], DEVICE_FIELDS);
+        RuleEngine.Comparison comparison = RuleEngine.Comparison.fromSymbol(ruleTerms[3]);
+        if (deviceType == null || selected == null || field <= DeviceField.TYPE.ordinal() || comparison == null) {
+            printInvalidCommand();
+            return;
+        }
+        int value = parseFieldValue(DEVICE_FIELDS[field], ruleTerms[4]);
+
+        // The command runs on the device that fired the rule when its ID is "$"
+        String[] actionTerms = ruleTerms[5].split(" ", 4);
+        boolean onFiringDevice = actionTerms.length >= 3 && actionTerms[2].equals("$");
+        Command action = parseCommand(onFiringDevice
+                ? actionTerms[0] + " " + actionTerms[1] + " 0" + (actionTerms.length == 4 ? " " + actionTerms[3] : "")
+                : ruleTerms[5]);
+        if (value == SmartDevice.ANY_VALUE || !action.opcode().isSchedulable()
+                || onFiringDevice && !action.opcode().isDeviceCommand()) {
+            printInvalidCommand();
+            return;
+        }
+
+        int ruleId = smartDevices.rules().add(rule, deviceType, selected[0], selected[1], DEVICE_FIELDS[field],
+                comparison, value, action, onFiringDevice);
+        responseSink().println("Rule " + ruleId + " is added");
+    }
+
+    // Parses the value of a field as a rule compares it: a number for the temperature and the
+    // angle, ON or OFF, true or false for the flags, and the names of the brightness levels
+    // and the light colors. Returns ANY_VALUE if the value doesn't fit the field.
+    private static int parseFieldValue(DeviceField field, String value) {
+        switch (field) {
+            case TEMPERATURE:
+            case ANGLE:
+                return isNotNumber(value) || value.equals(String.valueOf(SmartDevice.ANY_VALUE))
+                        ? SmartDevice.ANY_VALUE : Integer.parseInt(value);
+            case STATUS:
+                int status = keywordOrdinal(value, Status.values());
+                return status < 0 ? SmartDevice.ANY_VALUE : status;
+            case CHARGING:
+            case RECORDING:
+                return value.equals("true") ? 1 : value.equals("false") ? 0 : SmartDevice.ANY_VALUE;
+            case BRIGHTNESS:
+                int level = keywordOrdinal(value, BRIGHTNESS_LEVELS);
+                return level < 0 ? SmartDevice.ANY_VALUE : level;
+            case COLOR:
+                int color = keywordOrdinal(value, LIGHT_COLORS);
+                return color < 0 ? SmartDevice.ANY_VALUE : color;
+            default:
+                return SmartDevice.ANY_VALUE;
+        }
+    }
+
+    public static void removeRule(int ruleId, DeviceStore smartDevices) {
+        if (smartDevices.rules().remove(ruleId)) {
+            responseSink().println("Rule " + ruleId + " is removed");
+        } else {
+            responseSink().println("The rule was not found");
+        }
+    }
+
+    // Displays every rule with what it cost so far: how often its condition was evaluated,
+    // how often its command ran, how often a loop stopped it, and the time all of that took.
+    public static void displayRules(DeviceStore smartDevices) {
+        RuleEngine.Rule[] rules = smartDevices.rules().getRules();
+        if (rules.length == 0) {
+            responseSink().println("There are no rules");
+            return;
+        }
+        for (RuleEngine.Rule rule : rules) {
+            responseSink().println("Rule " + rule.getRuleId() + ": When " + rule.getText() + ", evaluated "
+                    + rule.getEvaluations() + " times, ran " + rule.getActions() + " times, stopped "
+                    + rule.getStopped() + " times, took " + rule.getNanos() / 1000 + " us");
+        }
+    }
+
+    // Displays the number of commands of each opcode that ran so far with the 50th, 99th and
+    // 99.9th percentile of their latency, if they are timed, followed by the number of
+    // rejections by reason and the number of setters that --coalesce-ms dropped.
+    public static void displayStats() {
+        CommandStats stats = getCommandStats();
+        if (!stats.isTiming()) {
+            responseSink().println("Command timing is off");
+        }
+        for (Opcode opcode : Opcode.values()) {
+            long count = stats.count(opcode);
+            if (count == 0) {
+                continue;
+            }
+            String commandName = opcode.getCommandName() != null ? opcode.getCommandName()
+                    : opcode == Opcode.BULK ? "Bulk" : "Invalid";
+            responseSink().println(commandName + ": " + count + " commands, p50 " + stats.percentile(opcode, 0.5)
+                    + " ns, p99 " + stats.percentile(opcode, 0.99) + " ns, p999 " + stats.percentile(opcode, 0.999)
+                    + " ns");
+        }
+        StringBuilder rejections = new StringBuilder("Rejected:");
+        for (RejectionReason reason : RejectionReason.values()) {
+            rejections.append(reason.ordinal() == 0 ? " " : ", ")
+                    .append(stats.rejections(reason)).append(' ').append(reason.getLabel());
+        }
+        responseSink().println(rejections.toString());
+        responseSink().println("Coalesced: " + stats.coalesced() + " commands");
+        StagedPipeline pipeline = StagedPipeline.running();
+        if (pipeline != null) {
+            responseSink().println("Pipeline queues: " + pipeline.describeQueues());
+        }
+    }
+
+    // Method to turn on a smart device
+    public static void turnOn(String deviceName, int deviceId, DeviceStore smartDevices) {
+        // Check if the device exists in the system
+        SmartDevice device = findDevice(deviceName, deviceId, smartDevices);
+        if (device == null) {
+            return; // Exit if the device is not found
+        }
+
+        // Attempt to turn the device on
+        if (device.turnOn()) {
+            responseSink().println(deviceName + " " + deviceId + " is on");
+        } else {
+            responseSink().println(deviceName + " " + deviceId + " is already on");
+        }
+    }
+
+    // Method to turn off a smart device
+    public static void turnOff(String deviceName, int deviceId, DeviceStore smartDevices) {
+        // Check if the device exists in the system
+        SmartDevice device = findDevice(deviceName, deviceId, smartDevices);
+        if (device == null) {
+            return;
+        }
+
+        // Attempt to turn the device off
+        if (device.turnOff()) {
+            responseSink().println(deviceName + " " + deviceId + " is off");
+        } else {
+            responseSink().println(deviceName + " " + deviceId + " is already off");
+        }
+    }
+
+    // Method to start charging a chargeable device
+    public static void startCharging(String deviceName, int deviceId, DeviceStore smartDevices) {
+        // Check if the device exists in the system
+        SmartDevice device = findDevice(deviceName, deviceId, smartDevices);
+        if (device == null) {
+            return;
+        }
+
+        // Check if the device is chargeable
+        if (!(device instanceof Chargeable)) {
+            printRejection(RejectionReason.WRONG_TYPE, deviceName + " " + deviceId + " is not chargeable");
+            return;
+        }
+
+        // Start charging
+        if (((Chargeable) device).startCharging()) {
+            responseSink().println(deviceName + " " + deviceId + " is charging");
+        }
+    }
+
+    // Method to stop charging a chargeable device
+    public static void stopCharging(String deviceName, int deviceId, DeviceStore smartDevices) {
+        // Check if the device exists in the system
+        SmartDevice device = findDevice(deviceName, deviceId, smartDevices);
+        if (device == null) {
+            return;
+        }
+
+        // Check if the device is chargeable
+        if (!(device instanceof Chargeable)) {
+            printRejection(RejectionReason.WRONG_TYPE, deviceName + " " + deviceId + " is not chargeable");
+            return;
+        }
+
+        // Stop charging
+        if (((Chargeable) device).stopCharging()) {
+            responseSink().println(deviceName + " " + deviceId + " stopped charging");
+        }
+    }
+
+    // Method to set the temperature of a Heater device
+    public static void setTemperature(String deviceName, int deviceId, int temperature, DeviceStore smartDevices) {
+        // Check if the device exists in the system
+        SmartDevice device = findDevice(deviceName, deviceId, smartDevices);
+        if (device == null) {
+            return;
+        }
+
+        // Check if the device is a Heater
+        if (!(device instanceof Heater)) {
+            printRejection(RejectionReason.WRONG_TYPE, deviceName + " " + deviceId + " is not a heater");
+            return;
+        }
+
+        // Set the temperature if the heater is on, checking access in the same step
+        switch (((Heater) device).setTemperatureIfAccessible(temperature)) {
+            case APPLIED:
+                responseSink().println(deviceName + " " + deviceId + " temperature is set to " + temperature);
+                break;
+            case REJECTED:
+                printRejection(RejectionReason.OUT_OF_RANGE, "Heater " + deviceId + " temperature should be in the range [15, 30]");
+                break;
+            default:
+                printNotStatusAccess(deviceName, deviceId);
+        }
+    }
+
+    // Method to set the brightness level of a Light device
+    public static void setBrightness(String deviceName, int deviceId, BrightnessLevel brightnessLevel,
+                                     DeviceStore smartDevices) {
+        // Check if the device exists in the system
+        SmartDevice device = findDevice(deviceName, deviceId, smartDevices);
+        if (device == null) {
+            return;
+        }
+
+        // Check if the device is a Light
+        if (!(device instanceof Light)) {
+            printRejection(RejectionReason.WRONG_TYPE, deviceName + " " + deviceId + " is not a light");
+            return;
+        }
+
+        if (brightnessLevel == null) {
+            printRejection(RejectionReason.OUT_OF_RANGE, "The brightness can only be one of \"LOW\", \"MEDIUM\", or \"HIGH\"");
+            return;
+        }
+
+        // Set the brightness level if the light is on or charging
+        if (((Light) device).setBrightnessLevelIfAccessible(brightnessLevel) == UpdateResult.NO_ACCESS) {
+            printNotStatusAccess(deviceName, deviceId);
+        }
+    }
+
+    // Method to set the color of a Light device
+    public static void setColor(String deviceName, int deviceId, LightColor lightColor, DeviceStore smartDevices) {
+        // Check if the device exists in the system
+        SmartDevice device = findDevice(deviceName, deviceId, smartDevices);
+        if (device == null) {
+            return;
+        }
+
+        // Check if the device is a Light
+        if (!(device instanceof Light)) {
+            printRejection(RejectionReason.WRONG_TYPE, deviceName + " " + deviceId + " is not a light");
+            return;
+        }
+
+        if (lightColor == null) {
+            printRejection(RejectionReason.OUT_OF_RANGE, "The light color can only be \"YELLOW\" or \"WHITE\"");
+            return;
+        }
+
+        // Set the light color if the light is on or charging
+        if (((Light) device).setLightColorIfAccessible(lightColor) == UpdateResult.NO_ACCESS) {
+            printNotStatusAccess(deviceName, deviceId);
+        }
+    }
+
+    // Method to set the angle of a Camera device
+    public static void setAngle(String deviceName, int deviceId, int angle, DeviceStore smartDevices) {
+        // Check if the device exists in the system
+        SmartDevice device = findDevice(deviceName, deviceId, smartDevices);
+        if (device == null) {
+            return;
+        }
+
+        // Check if the device is a Camera
+        if (!(device instanceof Camera)) {
+            printRejection(RejectionReason.WRONG_TYPE, deviceName + " " + deviceId + " is not a camera");
+            return;
+        }
+
+        // Set the camera angle if the camera is on or charging
+        switch (((Camera) device).setCameraAngleIfAccessible(angle)) {
+            case APPLIED:
+                responseSink().println(deviceName + " " + deviceId + " angle is set to " + angle);
+                break;
+            case REJECTED:
+                printRejection(RejectionReason.OUT_OF_RANGE, "Camera " + deviceId + " angle should be in the range [-60, 60]");
+                break;
+            default:
+                printNotStatusAccess(deviceName, deviceId);
+        }
+    }
+
+    public static void startRecording(String deviceName, int deviceId, DeviceStore smartDevices) {
+        // Check if the device exists in the system
+        SmartDevice device = findDevice(deviceName, deviceId, smartDevices);
+        if (device == null) {
+            return; // Exit if the device is not found
+        }
+
+        // Check if the device is of type Camera
+        if (!(device instanceof Camera)) {
+            printRejection(RejectionReason.WRONG_TYPE, deviceName + " " + deviceId + " is not a camera"); // Error if not a camera
+            return; // Exit the method
+        }
+
+        // Start recording if the camera is on or charging, checking access in the same step
+        switch (((Camera) device).startRecordingIfAccessible()) {
+            case APPLIED:
+                responseSink().println(deviceName + " " + deviceId + " started recording"); // Recording started
+                break;
+            case NO_ACCESS:
+                printNotStatusAccess(deviceName, deviceId); // Error if the device is off
+                break;
+            default:
+                break; // The camera already printed why nothing changed
+        }
+    }
+
+    public static void stopRecording(String deviceName, int deviceId, DeviceStore smartDevices) {
+        // Check if the device exists in the system
+        SmartDevice device = findDevice(deviceName, deviceId, smartDevices);
+        if (device == null) {
+            return; // Exit if the device is not found
+        }
+
+        // Check if the device is of type Camera
+        if (!(device instanceof Camera)) {
+            printRejection(RejectionReason.WRONG_TYPE, deviceName + " " + deviceId + " is not a camera"); // Error if not a camera
+            return; // Exit the method
+        }
+
+        // Stop recording if the camera is on or charging, checking access in the same step
+        switch (((Camera) device).stopRecordingIfAccessible()) {
+            case APPLIED:
+                responseSink().println(deviceName + " " + deviceId + " stopped recording"); // Recording stopped
+                break;
+            case NO_ACCESS:
+                printNotStatusAccess(deviceName, deviceId); // Error if the device is off
+                break;
+            default:
+                break; // The camera already printed why nothing changed
+        }
+    }
+
+    // Checks if a term selects several devices, "*" for all of them or "first..last" for a range.
+    public static boolean isDeviceSelector(String term) {
+        return term.indexOf('*') >= 0 || term.indexOf('.') >= 0;
+    }
+
+    private static boolean isDeviceSelector(CommandTokenizer tokenizer, int term) {
+        for (int i = 0; i < tokenizer.termLength(term); i++) {
+            byte b = tokenizer.termByte(term, i);
+            if (b == '*' || b == '.') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Parses a device selector into the first and last ID it selects, or returns null if it is invalid.
+    private static int[] parseDeviceSelector(String selector) {
+        if (selector.equals("*")) {
+            return new int[] {0, Integer.MAX_VALUE};
+        }
+        int separator = selector.indexOf("..");
+        if (separator < 0) {
+            return null;
+        }
+        String first = selector.substring(0, separator);
+        String last = selector.substring(separator + 2);
+        if (isNotNumber(first) || isNotNumber(last) || Integer.parseInt(first) > Integer.parseInt(last)) {
+            return null;
+        }
+        return new int[] {Integer.parseInt(first), Integer.parseInt(last)};
+    }
+
+    // Executes the bulk form of a command, which has a device selector in place of the ID:
+    //   TurnOff Light *
+    //   SetTemperature Heater 6..500 22
+    // The change is applied in one pass over the devices of the type, with the same rules as
+    // for a single device, and a single line reports how many devices changed, how many were
+    // in that state already and, where it matters, how many were off.
+    // Returns false if the line is not a bulk command.
+    public static boolean executeBulkCommand(String[] commandTerms, DeviceStore smartDevices) {
+        if (commandTerms.length < 3 || !isDeviceSelector(commandTerms[2])) {
+            return false;
+        }
+
+        int numberOfFields = 3;
+        DeviceField field;
+        int expected = SmartDevice.ANY_VALUE;
+        int value;
+        boolean accessRequired = false;
+        switch (commandTerms[0]) {
+            case "TurnOn":
+                field = DeviceField.STATUS;
+                expected = Status.OFF.ordinal();
+                value = Status.ON.ordinal();
+                break;
+            case "TurnOff":
+                field = DeviceField.STATUS;
+                expected = Status.ON.ordinal();
+                value = Status.OFF.ordinal();
+                break;
+            case "StartCharging":
+                field = DeviceField.CHARGING;
+                expected = 0;
+                value = 1;
+                break;
+            case "StopCharging":
+                field = DeviceField.CHARGING;
+                expected = 1;
+                value = 0;
+                break;
+            case "StartRecording":
+                field = DeviceField.RECORDING;
+                expected = 0;
+                value = 1;
+                accessRequired = true;
+                break;
+            case "StopRecording":
+                field = DeviceField.RECORDING;
+                expected = 1;
+                value = 0;
+                accessRequired = true;
+                break;
+            case "SetTemperature":
+            case "SetAngle":
+                numberOfFields = 4;
+                field = commandTerms[0].equals("SetAngle") ? DeviceField.ANGLE : DeviceField.TEMPERATURE;
+                value = commandTerms.length == numberOfFields && !isNotNumber(commandTerms[3])
+                        ? Integer.parseInt(commandTerms[3]) : 0;
+                accessRequired = true;
+                break;
+            case "SetBrightness":
+                numberOfFields = 4;
+                field = DeviceField.BRIGHTNESS;
+                value = commandTerms.length == numberOfFields ? keywordOrdinal(commandTerms[3], BrightnessLevel.values()) : -1;
+                accessRequired = true;
+                break;
+            case "SetColor":
+                numberOfFields = 4;
+                field = DeviceField.COLOR;
+                value = commandTerms.length == numberOfFields ? keywordOrdinal(commandTerms[3], LightColor.values()) : -1;
+                accessRequired = true;
+                break;
+            default:
+                return false;
+        }
+
+        // Validate the command the way the single device form does
+        int[] selected = parseDeviceSelector(commandTerms[2]);
+        if (commandTerms.length != numberOfFields || selected == null
+                || (field == DeviceField.TEMPERATURE || field == DeviceField.ANGLE) && isNotNumber(commandTerms[3])) {
+            printInvalidCommand();
+            return true;
+        }
+        String deviceName = commandTerms[1];
+        String selector = commandTerms[2];
+        DeviceType deviceType = DeviceType.fromName(deviceName);
+        if (deviceType == null) {
+            printDeviceNotFound();
+            return true;
+        }
+
+        // Check that the command applies to the type, and that the value is valid for it
+        switch (field) {
+            case CHARGING:
+                if (deviceType == DeviceType.HEATER) {
+                    printRejection(RejectionReason.WRONG_TYPE, deviceName + " " + selector + " is not chargeable");
+                    return true;
+                }
+                break;
+            case RECORDING:
+            case ANGLE:
+                if (deviceType != DeviceType.CAMERA) {
+                    printRejection(RejectionReason.WRONG_TYPE, deviceName + " " + selector + " is not a camera");
+                    return true;
+                }
+                if (field == DeviceField.ANGLE && (value < -60 || value > 60)) {
+                    printRejection(RejectionReason.OUT_OF_RANGE, "Camera " + selector + " angle should be in the range [-60, 60]");
+                    return true;
+                }
+                break;
+            case TEMPERATURE:
+                if (deviceType != DeviceType.HEATER) {
+                    printRejection(RejectionReason.WRONG_TYPE, deviceName + " " + selector + " is not a heater");
+                    return true;
+                }
+                if (value < 15 || value > 30) {
+                    printRejection(RejectionReason.OUT_OF_RANGE, "Heater " + selector + " temperature should be in the range [15, 30]");
+                    return true;
+                }
+                break;
+            case BRIGHTNESS:
+            case COLOR:
+                if (deviceType != DeviceType.LIGHT) {
+                    printRejection(RejectionReason.WRONG_TYPE, deviceName + " " + selector + " is not a light");
+                    return true;
+                }
+                if (value < 0) {
+                    printRejection(RejectionReason.OUT_OF_RANGE, field == DeviceField.BRIGHTNESS
+                            ? "The brightness can only be one of \"LOW\", \"MEDIUM\", or \"HIGH\""
+                            : "The light color can only be \"YELLOW\" or \"WHITE\"");
+                    return true;
+                }
+                break;
+            default:
+                break;
+        }
+
+        BulkUpdate result = smartDevices.updateAll(deviceType, selected[0], selected[1], field,
+                expected, value, accessRequired);
+        if (result.matched() == 0) {
+            printDeviceNotFound();
+            return true;
+        }
+        responseSink().println(deviceName + " " + selector + ": " + result.getChanged() + " changed, "
+                + result.getUnchanged() + " already in that state"
+                + (accessRequired ? ", " + result.getNoAccess() + " off" : ""));
+        return true;
+    }
+
+    // Returns the ordinal of the constant named by the keyword, or -1 if there is none.
+    private static int keywordOrdinal(String keyword, Enum<?>[] constants) {
+        for (Enum<?> constant : constants) {
+            if (constant.name().equals(keyword)) {
+                return constant.ordinal();
+            }
+        }
+        return -1;
+    }
+
+    public static boolean isNotNumber(String str) {
+        // Check if the given string can be parsed as an integer, following the rules
+        // of Integer.parseInt but without throwing and catching an exception
+        if (str == null || str.isEmpty()) {
+            return true;
+        }
+
+        int index = 0;
+        boolean negative = false;
+        char first = str.charAt(0);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            index = 1;
+            if (str.length() == 1) {
+                return true; // A lone sign is not a number
+            }
+        }
+
+        long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+        long value = 0;
+        for (; index < str.length(); index++) {
+            int digit = Character.digit(str.charAt(index), 10);
+            if (digit < 0) {
+                return true; // Return true if a character is not a digit
+            }
+            value = value * 10 + digit;
+            if (value > limit) {
+                return true; // Return true if the value does not fit into an int
+            }
+        }
+        return false; // Return false if parsing succeeds
+    }
+
+    public static void printNotStatusAccess(String deviceName, int deviceId) {
+        // Print a message indicating the device is off and cannot be accessed
+        printRejection(RejectionReason.OFF, "You can't change the "
+                + "status of the " + deviceName + " "
+                + deviceId + " while it is off");
+    }
+
+    public static void printInvalidCommand() {
+        // Print a message indicating the command is invalid
+        printRejection(RejectionReason.INVALID, "Invalid command");
+    }
+
+    public static void printDeviceNotFound() {
+        printRejection(RejectionReason.NOT_FOUND, "The smart device was not found");
+    }
+
+    // Prints why a command was rejected and counts the reason for the Stats command.
+    private static void printRejection(RejectionReason reason, String message) {
+        COMMAND_STATS.reject(reason);
+        responseSink().println(message);
+    }
+
+    // Tokenizer that reads commands from a channel in large byte chunks and splits
+    // each line in place, so the hot path never builds a String or String[] per line.
+    // Lines are split the same way as String.split(" ") splits them.
+    public static final class CommandTokenizer {
+        private static final int INITIAL_BUFFER_SIZE = 1 << 16; // Bytes read from the channel at once.
+        private static final int MAX_TERMS = 4; // Longest command has four terms.
+
+        // Returned by parseNumber when a term is not a valid int.
+        public static final long NOT_A_NUMBER = Long.MIN_VALUE;
+
+        private final ReadableByteChannel channel;
+        private final boolean growable; // Whether the buffer may grow for lines longer than it.
+        private ByteBuffer buffer;
+        private byte[] bytes; // Backing array of the buffer.
+        private int position; // Start of the unconsumed bytes.
+        private boolean endOfInput;
+
+        private int lineStart;
+        private int lineEnd;
+        private boolean asciiLine;
+        private int termCount;
+        private final int[] termStarts = new int[MAX_TERMS];
+        private final int[] termEnds = new int[MAX_TERMS];
+
+        public CommandTokenizer(ReadableByteChannel channel) {
+            this(channel, INITIAL_BUFFER_SIZE, true);
+        }
+
+        // Creates a tokenizer whose buffer never grows, for input that must not take up more
+        // memory than that. A line longer than the buffer fails with an IOException.
+        public CommandTokenizer(ReadableByteChannel channel, int bufferSize) {
+            this(channel, bufferSize, false);
+        }
+
+        private CommandTokenizer(ReadableByteChannel channel, int bufferSize, boolean growable) {
+            this.channel = channel;
+            this.growable = growable;
+            this.buffer = ByteBuffer.allocate(bufferSize);
+            this.bytes = buffer.array();
+            buffer.limit(0);
+        }
+
+        // Creates a tokenizer for lines handed over in byte arrays, see reset.
+        public CommandTokenizer() {
+            this.channel = null;
+            this.growable = false;
+            this.endOfInput = true;
+        }
+
+        // Starts over on the lines in the first length bytes of the array.
+        public void reset(byte[] lines, int length) {
+            buffer = ByteBuffer.wrap(lines, 0, length);
+            bytes = lines;
+            position = 0;
+        }
+
+        // Advances to the next line, returning false once the input is exhausted.
+        public boolean nextLine() throws IOException {
+            int scan = position;
+            while (true) {
+                int limit = buffer.limit();
+                while (scan < limit && bytes[scan] != '\n' && bytes[scan] != '\r') {
+                    scan++;
+                }
+
+                if (scan < limit) {
+                    // A '\r' at the end of the buffer may be the first half of "\r\n".
+                    if (bytes[scan] == '\r' && scan + 1 == limit && !endOfInput) {
+                        scan = fill(scan);
+                        continue;
+                    }
+                    int terminatorLength = bytes[scan] == '\r' && scan + 1 < limit && bytes[scan + 1] == '\n' ? 2 : 1;
+                    tokenize(position, scan);
+                    position = scan + terminatorLength;
+                    return true;
+                }
+
+                if (endOfInput) {
+                    if (position == limit) {
+                        return false;
+                    }
+                    tokenize(position, limit); // Last line without a terminator.
+                    position = limit;
+                    return true;
+                }
+                scan = fill(scan);
+            }
+        }
+
+        // Moves the unconsumed bytes to the front, grows the buffer for long lines
+        // and reads the next chunk. Returns the scan index shifted accordingly.
+        private int fill(int scan) throws IOException {
+            int shift = position;
+            buffer.position(position);
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                if (!growable) {
+                    throw new IOException("A line is longer than " + buffer.capacity() + " bytes");
+                }
+                ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+                bytes = buffer.array();
+            }
+            position = 0;
+            if (channel.read(buffer) < 0) {
+                endOfInput = true;
+            }
+            buffer.flip();
+            return scan - shift;
+        }
+
+        // Splits [start, end) on single spaces, dropping trailing empty terms like String.split.
+        private void tokenize(int start, int end) {
+            lineStart = start;
+            lineEnd = end;
+            asciiLine = true;
+            termCount = 0;
+
+            int term = 0;
+            int termStart = start;
+            boolean separatorSeen = false;
+            for (int i = start; i <= end; i++) {
+                if (i < end && bytes[i] != ' ') {
+                    if (bytes[i] < 0) {
+                        asciiLine = false;
+                    }
+                    continue;
+                }
+                if (i < end) {
+                    separatorSeen = true;
+                }
+                if (term < MAX_TERMS) {
+                    termStarts[term] = termStart;
+                    termEnds[term] = i;
+                }
+                term++;
+                if (i > termStart) {
+                    termCount = term; // Only non-empty terms extend the count.
+                }
+                termStart = i + 1;
+            }
+
+            if (!separatorSeen) {
+                termCount = 1; // A line without spaces is a single term, even when empty.
+            }
+        }
+
+        public int termCount() {
+            return termCount;
+        }
+
+        public int lineLength() {
+            return lineEnd - lineStart;
+        }
+
+        // Copies the bytes of the current line, without its terminator, into the array.
+        public void copyLine(byte[] destination, int offset) {
+            System.arraycopy(bytes, lineStart, destination, offset, lineEnd - lineStart);
+        }
+
+        // Length of the current line after the first term and the space that follows it.
+        public int restLength() {
+            return Math.max(0, lineEnd - termEnds[0] - 1);
+        }
+
+        // Copies the bytes of the current line after the first term and the space that
+        // follows it into the array.
+        public void copyRest(byte[] destination, int offset) {
+            System.arraycopy(bytes, termEnds[0] + 1, destination, offset, restLength());
+        }
+
+        // Lines with non-ASCII bytes are handed back as strings so that they are decoded
+        // and split exactly like Scanner would do it.
+        public boolean isAsciiLine() {
+            return asciiLine;
+        }
+
+        public String lineAsString() {
+            return new String(bytes, lineStart, lineEnd - lineStart, Charset.defaultCharset());
+        }
+
+        public boolean termEquals(int term, byte[] literal) {
+            int start = termStarts[term];
+            int length = termEnds[term] - start;
+            if (length != literal.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[start + i] != literal[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public String termAsString(int term) {
+            return new String(bytes, termStarts[term], termEnds[term] - termStarts[term], Charset.defaultCharset());
+        }
+
+        public int termLength(int term) {
+            return termEnds[term] - termStarts[term];
+        }
+
+        public byte termByte(int term, int index) {
+            return bytes[termStarts[term] + index];
+        }
+
+        // Parses a term with the rules of Integer.parseInt, returning NOT_A_NUMBER instead of throwing.
+        public long parseNumber(int term) {
+            int index = termStarts[term];
+            int end = termEnds[term];
+            if (index == end) {
+                return NOT_A_NUMBER;
+            }
+
+            boolean negative = false;
+            if (bytes[index] == '-' || bytes[index] == '+') {
+                negative = bytes[index] == '-';
+                index++;
+                if (index == end) {
+                    return NOT_A_NUMBER;
+                }
+            }
+
+            long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+            long value = 0;
+            for (; index < end; index++) {
+                int digit = bytes[index] - '0';
+                if (digit < 0 || digit > 9) {
+                    return NOT_A_NUMBER;
+                }
+                value = value * 10 + digit;
+                if (value > limit) {
+                    return NOT_A_NUMBER;
+                }
+            }
+            return negative ? -value : value;
+        }
+    }
+
+    // Sink that encodes lines into a reusable byte buffer and writes them out in batches,
+    // once the buffer is full or when flush is called. In immediate mode every line is
+    // written out right away, which is what an interactive session needs.
+    public static final class BufferedResponseSink implements ResponseSink {
+        private static final int DEFAULT_BATCH_SIZE = 1 << 16; // Bytes buffered before a write.
+
+        private final OutputStream out;
+        private final byte[] buffer;
+        private final byte[] lineSeparator = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+        private final boolean immediateFlush;
+        private int size; // Number of buffered bytes.
+
+        public BufferedResponseSink(OutputStream out, boolean immediateFlush) {
+            this(out, DEFAULT_BATCH_SIZE, immediateFlush);
+        }
+
+        public BufferedResponseSink(OutputStream out, int batchSize, boolean immediateFlush) {
+            this.out = out;
+            this.buffer = new byte[batchSize];
+            this.immediateFlush = immediateFlush;
+        }
+
+        public boolean isImmediateFlush() {
+            return immediateFlush;
+        }
+
+        public void println(String line) {
+            int length = line.length();
+            if (length + lineSeparator.length > buffer.length - size) {
+                flush();
+                if (length + lineSeparator.length > buffer.length) {
+                    write(line.getBytes(Charset.defaultCharset())); // Too long to be buffered.
+                    write(lineSeparator);
+                    return;
+                }
+            }
+
+            // All messages are ASCII, anything else is encoded with the default charset.
+            int start = size;
+            for (int i = 0; i < length; i++) {
+                char c = line.charAt(i);
+                if (c >= 0x80) {
+                    size = start;
+                    byte[] encoded = line.getBytes(Charset.defaultCharset());
+                    if (encoded.length + lineSeparator.length > buffer.length - size) {
+                        flush();
+                        write(encoded);
+                        write(lineSeparator);
+                        return;
+                    }
+                    System.arraycopy(encoded, 0, buffer, size, encoded.length);
+                    size += encoded.length;
+                    break;
+                }
+                buffer[size++] = (byte) c;
+            }
+            System.arraycopy(lineSeparator, 0, buffer, size, lineSeparator.length);
+            size += lineSeparator.length;
+
+            if (immediateFlush) {
+                flush();
+            }
+        }
+
+        public void flush() {
+            if (size > 0) {
+                write(buffer, size);
+                size = 0;
+            }
+        }
+
+        private void write(byte[] bytes) {
+            write(bytes, bytes.length);
+        }
+
+        private void write(byte[] bytes, int length) {
+            try {
+                out.write(bytes, 0, length);
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Returns the sink of the current thread.
+    private static ResponseSink responseSink() {
+        ResponseSink responseSink = THREAD_RESPONSE_SINK.get();
+        return responseSink != null ? responseSink : defaultResponseSink;
+    }
+
+    public static ResponseSink getResponseSink() {
+        return responseSink();
+    }
+
+    public static void setResponseSink(ResponseSink responseSink) {
+        defaultResponseSink = responseSink;
+    }
+
+    // Makes the current thread print into the given sink instead of the default one.
+    public static void bindResponseSink(ResponseSink responseSink) {
+        THREAD_RESPONSE_SINK.set(responseSink);
+    }
+
+    public static void unbindResponseSink() {
+        THREAD_RESPONSE_SINK.remove();
+    }
+
+    // Locks for the devices, striped by device ID so that a fixed number of locks covers any
+    // number of devices. The 64 devices that share a word of the columnar bitsets share a
+    // stripe, so no two threads ever update the same word at once.
+    public static final class StripedLocks {
+        private static final int IDS_PER_STRIPE_SHIFT = 6;
+
+        private final ReentrantLock[] stripes;
+        private final int mask;
+
+        public StripedLocks(int minimumStripes) {
+            int numberOfStripes = Integer.highestOneBit(Math.max(1, minimumStripes - 1) << 1);
+            this.stripes = new ReentrantLock[numberOfStripes];
+            this.mask = numberOfStripes - 1;
+            for (int i = 0; i < numberOfStripes; i++) {
+                stripes[i] = new ReentrantLock();
+            }
+        }
+
+        public ReentrantLock stripeOf(int deviceId) {
+            int group = deviceId >>> IDS_PER_STRIPE_SHIFT;
+            return stripes[(group ^ group >>> 16) * 0x45d9f3b >>> 8 & mask];
+        }
+
+        // Takes every stripe, always in the same order, for commands that touch all devices.
+        public void lockAll() {
+            for (ReentrantLock stripe : stripes) {
+                stripe.lock();
+            }
+        }
+
+        public void unlockAll() {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                stripes[i].unlock();
+            }
+        }
+    }
+
+    // Sink that lets several threads print into one sink, a line at a time.
+    public static final class SynchronizedResponseSink implements ResponseSink {
+        private final ResponseSink responseSink;
+
+        public SynchronizedResponseSink(ResponseSink responseSink) {
+            this.responseSink = responseSink;
+        }
+
+        public synchronized void println(String line) {
+            responseSink.println(line);
+        }
+
+        public synchronized void flush() {
+            responseSink.flush();
+        }
+    }
+
+    // Runs commands against one store from several threads. A command for a single device
+    // runs under the stripe lock of that device, so commands for the same device are
+    // linearizable while commands for other devices run in parallel. Commands that read or
+    // change the whole store (DisplayAllStatus, AddDevice, RemoveDevice) take every stripe.
+    // Output is printed while the lock is held, so it follows the order the commands ran in.
+    // With an atomic store, and only listeners that don't care about the order of changes,
+    // a command for a single device takes no lock at all. The store numbers the changes of
+    // each device instead, and run prints the lines of a command in the order of its number.
+    // A command that takes every stripe also waits for the lock-free ones that are running.
+    public static final class ConcurrentCommandExecutor {
+        private static final int BATCH_SIZE = 1 << 16; // Bytes of input handed to a worker at once.
+
+        private final DeviceStore smartDevices;
+        private final StripedLocks locks;
+        private final boolean lockFree; // Single devices are changed without taking a stripe.
+        private final LongAdder lockFreeCommands = new LongAdder(); // Lock-free commands running.
+        private final ThreadLocal<CommandTokenizer> workerTokenizer = ThreadLocal.withInitial(CommandTokenizer::new);
+        private final ThreadLocal<CommandLines> workerLines = ThreadLocal.withInitial(CommandLines::new);
+        private volatile boolean exclusive; // A command holds every stripe, lock-free ones wait for it.
+        private volatile ResponseSink output;
+        private OrderedOutput orderedOutput; // Orders the lines of lock-free commands while run runs.
+        private ExecutorService workers;
+        private byte[] batch; // Lines read but not handed to a worker yet.
+        private int batchLength;
+
+        // Lines a lock-free command printed, with the sequence numbers its changes took.
+        private static final class CommandLines implements ResponseSink {
+            private final List<String> lines = new ArrayList<>();
+            private final AtomicDeviceStore.Sequences sequences = new AtomicDeviceStore.Sequences();
+
+            public void println(String line) {
+                lines.add(line);
+            }
+
+            public void flush() {
+            }
+        }
+
+        // Prints the lines of lock-free commands for each device in the order of their
+        // sequence numbers. Lines that got ahead of those of an earlier number wait for them.
+        private static final class OrderedOutput {
+            private final ResponseSink output;
+            private final Map<Long, List<String>> waiting = new HashMap<>();
+            private int[] nextNumbers = new int[64]; // Next sequence number to print, by device.
+
+            private OrderedOutput(ResponseSink output) {
+                this.output = output;
+            }
+
+            synchronized void print(int deviceId, int number, List<String> lines) {
+                if (deviceId >= nextNumbers.length) {
+                    nextNumbers = Arrays.copyOf(nextNumbers, Math.max(nextNumbers.length * 2, deviceId + 1));
+                }
+                if (number != nextNumbers[deviceId]) {
+                    waiting.put((long) deviceId << 32 | number, new ArrayList<>(lines));
+                    return;
+                }
+                while (lines != null) {
+                    for (String line : lines) {
+                        output.println(line);
+                    }
+                    number = AtomicDeviceStore.nextSequence(number);
+                    nextNumbers[deviceId] = number;
+                    lines = waiting.isEmpty() ? null : waiting.remove((long) deviceId << 32 | number);
+                }
+            }
+        }
+
+        public ConcurrentCommandExecutor(DeviceStore smartDevices, StripedLocks locks) {
+            this.smartDevices = smartDevices;
+            this.locks = locks;
+            // Listeners such as the journal must see the changes of a device in order, which
+            // only the stripe locks guarantee
+            this.lockFree = smartDevices instanceof AtomicDeviceStore && !smartDevices.changes().isOrderSensitive();
+        }
+
+        public DeviceStore getSmartDevices() {
+            return smartDevices;
+        }
+
+        public StripedLocks getLocks() {
+            return locks;
+        }
+
+        // Executes the current line of the tokenizer under the locks it needs, from any thread.
+        // Returns false when the "end" command is issued.
+        public boolean execute(CommandTokenizer tokenizer) {
+            if (!tokenizer.isAsciiLine()) {
+                lockAll();
+                try {
+                    return executeCommandLines(tokenizer.lineAsString(), smartDevices);
+                } finally {
+                    unlockAll();
+                }
+            }
+            return execute(parseCommand(tokenizer));
+        }
+
+        // Executes a parsed command under the locks it needs. A command for a single device
+        // takes the stripe of the device, or no lock at all with a lock-free store. Commands
+        // that may touch the whole store take every stripe, invalid ones touch no device.
+        // While there are rules any command may run the command of a rule on another device,
+        // so all commands take every stripe.
+        public boolean execute(Command command) {
+            switch (command.opcode()) {
+                case END:
+                    return false;
+                case INVALID:
+                    return executeCommand(command, smartDevices);
+                default:
+                    break;
+            }
+            if (!command.opcode().isDeviceCommand() || smartDevices.rules().isActive()) {
+                return executeUnderAllLocks(command);
+            }
+            if (lockFree) {
+                return executeLockFree(command);
+            }
+
+            ReentrantLock stripe = locks.stripeOf(command.deviceId());
+            stripe.lock();
+            try {
+                // Rules are only added under all locks, so this check holds until the unlock
+                if (!smartDevices.rules().isActive()) {
+                    return executeCommand(command, smartDevices);
+                }
+            } finally {
+                stripe.unlock();
+            }
+            return executeUnderAllLocks(command);
+        }
+
+        private boolean executeUnderAllLocks(Command command) {
+            lockAll();
+            try {
+                return executeCommand(command, smartDevices);
+            } finally {
+                unlockAll();
+            }
+        }
+
+        // Runs a command for a single device without a lock, unless a command holds every
+        // stripe, which it waits for, or that command added rules.
+        private boolean executeLockFree(Command command) {
+            while (true) {
+                lockFreeCommands.increment();
+                try {
+                    if (!exclusive) {
+                        if (smartDevices.rules().isActive()) {
+                            break;
+                        }
+                        return executeSequenced(command);
+                    }
+                } finally {
+                    lockFreeCommands.decrement();
+                }
+                ReentrantLock stripe = locks.stripeOf(command.deviceId());
+                stripe.lock(); // Held until the command under every stripe is done
+                stripe.unlock();
+            }
+            return executeUnderAllLocks(command);
+        }
+
+        // Runs a lock-free command and hands its lines to the ordered output, under the
+        // sequence number its device took last. A command that didn't get to its device
+        // printed nothing that depends on the order, and prints right away. Outside of run
+        // each sink has a single client, such as a connection of the server, whose commands
+        // run one after the other, so the lines are printed as they come.
+        private boolean executeSequenced(Command command) {
+            OrderedOutput orderedOutput = this.orderedOutput;
+            if (orderedOutput == null) {
+                return executeCommand(command, smartDevices);
+            }
+            AtomicDeviceStore atomicDevices = (AtomicDeviceStore) smartDevices;
+            CommandLines commandLines = workerLines.get();
+            bindResponseSink(commandLines);
+            atomicDevices.sequence(commandLines.sequences);
+            try {
+                return executeCommand(command, smartDevices);
+            } finally {
+                atomicDevices.sequence(null);
+                bindResponseSink(output);
+                AtomicDeviceStore.Sequences sequences = commandLines.sequences;
+                int last = sequences.size() - 1;
+                if (last < 0) {
+                    for (String line : commandLines.lines) {
+                        output.println(line);
+                    }
+                }
+                for (int index = 0; index <= last; index++) {
+                    orderedOutput.print(sequences.deviceId(index), sequences.number(index),
+                            index == last ? commandLines.lines : List.of());
+                }
+                sequences.clear();
+                commandLines.lines.clear();
+            }
+        }
+
+        // Takes every stripe, and with a lock-free store waits for the commands that run
+        // without a stripe to finish, so that the command of the caller runs alone.
+        private void lockAll() {
+            locks.lockAll();
+            if (lockFree) {
+                exclusive = true;
+                while (lockFreeCommands.sum() > 0) {
+                    Thread.yield();
+                }
+            }
+        }
+
+        private void unlockAll() {
+            exclusive = false;
+            locks.unlockAll();
+        }
+
+        // Runs a task, a tick of the clock, while no command runs. It prints where the
+        // commands of run print, or into the current sink.
+        public void runExclusive(Runnable task) {
+            ResponseSink output = this.output;
+            lockAll();
+            try {
+                bindResponseSink(output != null ? output : getResponseSink());
+                try {
+                    task.run();
+                } finally {
+                    unbindResponseSink();
+                }
+            } finally {
+                unlockAll();
+            }
+        }
+
+        // Reads commands from the channel on the calling thread and runs them on the given
+        // number of worker threads, in batches of lines. Output goes to the current sink.
+        public void run(ReadableByteChannel channel, int numberOfThreads) throws IOException, InterruptedException {
+            ResponseSink output = new SynchronizedResponseSink(getResponseSink());
+            orderedOutput = lockFree ? new OrderedOutput(output) : null;
+            this.output = output;
+            workers = Executors.newFixedThreadPool(numberOfThreads);
+            CommandTokenizer reader = new CommandTokenizer(channel);
+            batch = new byte[BATCH_SIZE];
+            batchLength = 0;
+            try {
+                while (reader.nextLine()) {
+                    if (reader.isAsciiLine()) {
+                        if (reader.termCount() > 0 && reader.termEquals(0, END)) {
+                            break;
+                        }
+                        int offset = reserve(reader.lineLength());
+                        reader.copyLine(batch, offset);
+                        continue;
+                    }
+
+                    // Lines Scanner would split further are handed over part by part
+                    if (!appendParts(reader.lineAsString())) {
+                        break;
+                    }
+                }
+                submit();
+            } finally {
+                workers.shutdown();
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                orderedOutput = null;
+                output.flush();
+            }
+        }
+
+        // Appends the parts of a decoded line to the batch, returning false at an "end" command.
+        private boolean appendParts(String commandLines) {
+            for (String commandLine : commandLines.split(UNICODE_LINE_SEPARATORS, -1)) {
+                String[] commandTerms = commandLine.split(" ");
+                if (commandTerms.length > 0 && commandTerms[0].equals("end")) {
+                    return false;
+                }
+                byte[] line = commandLine.getBytes(Charset.defaultCharset());
+                int offset = reserve(line.length);
+                System.arraycopy(line, 0, batch, offset, line.length);
+            }
+            return true;
+        }
+
+        // Makes room for a line and its terminator in the batch, handing a full batch to the
+        // workers first. Returns the offset to copy the line to.
+        private int reserve(int lineLength) {
+            if (batchLength + lineLength + 1 > batch.length) {
+                submit();
+                batch = new byte[Math.max(BATCH_SIZE, lineLength + 1)];
+                batchLength = 0;
+            }
+            int offset = batchLength;
+            batchLength += lineLength + 1;
+            batch[batchLength - 1] = '\n';
+            return offset;
+        }
+
+        private void submit() {
+            byte[] batch = this.batch;
+            int batchLength = this.batchLength;
+            workers.execute(() -> {
+                bindResponseSink(output);
+                try {
+                    CommandTokenizer tokenizer = workerTokenizer.get();
+                    tokenizer.reset(batch, batchLength);
+                    while (tokenizer.nextLine()) {
+                        execute(tokenizer);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    unbindResponseSink();
+                }
+            });
+        }
+    }
+
+    // Runs the commands of many homes in one process, each home with a store of its own.
+    // A line names its home first, "<home>: <command>", and a home always goes to the same
+    // shard, chosen by the hash of its name. Each shard is an event loop on a thread of its
+    // own that owns the stores of its homes, so they are only ever changed by that thread,
+    // take no locks, and shards don't wait for each other. The reader hands the lines to a
+    // shard in batches through a bounded queue per shard, and waits when a shard falls that
+    // far behind. A shard runs a batch in order and passes on its output in one piece, each
+    // line prefixed with the home, so the output of every home comes in the same order as
+    // if its commands ran one after the other. "<home>: end" ends only that home.
+    public static final class ShardedCommandExecutor {
+        private static final int BATCH_SIZE = 1 << 16; // Bytes of input handed to a shard at once.
+        private static final int QUEUE_CAPACITY = 16; // Batches a shard may fall behind the reader.
+        private static final Batch END_OF_INPUT = new Batch();
+
+        // A home with its store, which is created by its shard when the first command arrives.
+        private static final class Home {
+            private final byte[] prefix; // Name of the home and the colon, as in the input.
+            private final String outputPrefix;
+            private final int shard;
+            private DeviceStore smartDevices; // Owned by the thread of the shard.
+            private boolean ended;
+
+            private Home(byte[] prefix, String name, int shard) {
+                this.prefix = prefix;
+                this.outputPrefix = name + " ";
+                this.shard = shard;
+            }
+        }
+
+        // Lines for one shard, with the home of each line.
+        private static final class Batch {
+            private final byte[] lines;
+            private int length;
+            private Home[] homes;
+            private int count;
+
+            private Batch() {
+                this.lines = new byte[0];
+            }
+
+            private Batch(int capacity) {
+                this.lines = new byte[capacity];
+                this.homes = new Home[256];
+            }
+
+            private boolean hasRoom(int lineLength) {
+                return length + lineLength + 1 <= lines.length;
+            }
+
+            private void add(Home home, CommandTokenizer reader) {
+                reader.copyRest(lines, length);
+                length += reader.restLength() + 1;
+                lines[length - 1] = '\n';
+                if (count == homes.length) {
+                    homes = Arrays.copyOf(homes, count * 2);
+                }
+                homes[count++] = home;
+            }
+        }
+
+        // Sink of a shard: prefixes each line with the home of the command that prints it
+        // and keeps the lines of a batch until the batch is done.
+        private static final class ShardOutput implements ResponseSink {
+            private final ResponseSink output;
+            private final List<String> lines = new ArrayList<>();
+            private Home home;
+
+            private ShardOutput(ResponseSink output) {
+                this.output = output;
+            }
+
+            public void println(String line) {
+                lines.add(home.outputPrefix + line);
+            }
+
+            // Passes the lines of the batch on without lines of other shards in between.
+            public void flush() {
+                synchronized (output) {
+                    for (String line : lines) {
+                        output.println(line);
+                    }
+                }
+                lines.clear();
+            }
+        }
+
+        private final Supplier<DeviceStore> homeDevices;
+        private final int numberOfShards;
+        private final Map<String, Home> homes = new HashMap<>(); // Used by the reader only.
+        private Home lastHome; // Home of the previous line, which the next one often shares.
+
+        // Creates an executor with the given number of shards, which gives every new home the
+        // store the supplier creates.
+        public ShardedCommandExecutor(int numberOfShards, Supplier<DeviceStore> homeDevices) {
+            this.numberOfShards = numberOfShards;
+            this.homeDevices = homeDevices;
+        }
+
+        public int getNumberOfHomes() {
+            return homes.size();
+        }
+
+        // Reads commands from the channel on the calling thread and runs them on the shards
+        // until "end" or the end of the input. Output goes to the current sink.
+        public void run(ReadableByteChannel channel) throws IOException, InterruptedException {
+            ResponseSink output = new SynchronizedResponseSink(getResponseSink());
+            List<BlockingQueue<Batch>> queues = new ArrayList<>();
+            Thread[] shards = new Thread[numberOfShards];
+            for (int shard = 0; shard < numberOfShards; shard++) {
+                BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+                queues.add(queue);
+                shards[shard] = new Thread(() -> runShard(queue, new ShardOutput(output)), "shard-" + shard);
+                shards[shard].start();
+            }
+
+            Batch[] batches = new Batch[numberOfShards];
+            bindResponseSink(output);
+            try {
+                CommandTokenizer reader = new CommandTokenizer(channel);
+                while (reader.nextLine()) {
+                    if (reader.termCount() > 0 && reader.termEquals(0, END)) {
+                        break;
+                    }
+                    Home home = homeOf(reader);
+                    if (home == null) {
+                        printInvalidCommand(); // A command without a home can't run anywhere.
+                        continue;
+                    }
+                    Batch batch = batches[home.shard];
+                    if (batch == null || !batch.hasRoom(reader.restLength())) {
+                        if (batch != null) {
+                            queues.get(home.shard).put(batch);
+                        }
+                        batch = new Batch(Math.max(BATCH_SIZE, reader.restLength() + 1));
+                        batches[home.shard] = batch;
+                    }
+                    batch.add(home, reader);
+                }
+            } finally {
+                for (int shard = 0; shard < numberOfShards; shard++) {
+                    if (batches[shard] != null) {
+                        queues.get(shard).put(batches[shard]);
+                    }
+                    queues.get(shard).put(END_OF_INPUT);
+                }
+                for (Thread shard : shards) {
+                    shard.join();
+                }
+                unbindResponseSink();
+                output.flush();
+            }
+        }
+
+        // Returns the home named by the first term of the line, creating it on first use, or
+        // null if the term is not a name followed by a colon.
+        private Home homeOf(CommandTokenizer reader) {
+            int length = reader.termLength(0);
+            if (length < 2 || reader.termByte(0, length - 1) != ':') {
+                return null;
+            }
+            if (lastHome != null && reader.termEquals(0, lastHome.prefix)) {
+                return lastHome;
+            }
+            String prefix = reader.termAsString(0);
+            Home home = homes.get(prefix);
+            if (home == null) {
+                int shard = Math.floorMod(prefix.hashCode(), numberOfShards);
+                home = new Home(prefix.getBytes(Charset.defaultCharset()), prefix, shard);
+                homes.put(prefix, home);
+            }
+            lastHome = home;
+            return home;
+        }
+
+        // Event loop of a shard: runs the batches from its queue until the end of the input.
+        // Homes on real time have their clocks caught up by their shard at every minute, in
+        // between two batches.
+        private void runShard(BlockingQueue<Batch> queue, ShardOutput output) {
+            bindResponseSink(output);
+            List<Home> ownHomes = new ArrayList<>();
+            long nextTick = 0;
+            try {
+                CommandTokenizer tokenizer = new CommandTokenizer();
+                while (true) {
+                    boolean ticking = !ownHomes.isEmpty() && ownHomes.get(0).smartDevices.scheduler().isRealTime();
+                    Batch batch = ticking ? queue.poll(nextTick - System.nanoTime(), TimeUnit.NANOSECONDS) : queue.take();
+                    if (batch == END_OF_INPUT) {
+                        break;
+                    }
+                    if (batch != null) {
+                        tokenizer.reset(batch.lines, batch.length);
+                        for (int i = 0; i < batch.count && tokenizer.nextLine(); i++) {
+                            Home home = batch.homes[i];
+                            if (home.ended) {
+                                continue;
+                            }
+                            if (home.smartDevices == null) {
+                                home.smartDevices = homeDevices.get();
+                                if (ownHomes.isEmpty()) {
+                                    nextTick = ClockTicker.nextTickNanos(home.smartDevices.scheduler());
+                                }
+                                ownHomes.add(home);
+                            }
+                            output.home = home;
+                            home.ended = !executeCommand(tokenizer, home.smartDevices);
+                        }
+                        output.flush();
+                    }
+                    if (ticking && System.nanoTime() - nextTick >= 0) {
+                        for (Home home : ownHomes) {
+                            if (!home.ended) {
+                                output.home = home;
+                                ClockTicker.tick(home.smartDevices);
+                            }
+                        }
+                        nextTick = ClockTicker.nextTickNanos(ownHomes.get(0).smartDevices.scheduler());
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                unbindResponseSink();
+            }
+        }
+    }
+
+    // Takes commands from a reader as they come and runs them on a thread of its own after a
+    // short window, in which a setter of the brightness, the color, the angle or the
+    // temperature makes an earlier pending setter of the same device and field redundant.
+    // The earlier one is dropped without running or printing anything. This suits
+    // controllers that fire bursts of setters and only care about the last one. A setter
+    // only drops another if nothing else happened to the device in between: any other
+    // command for the device, toggles like TurnOn in particular, ends the run of setters it
+    // can drop, and commands that don't name a single device end it for every device.
+    // Neither does a setter with a value its device would reject, which leaves the device
+    // as it is. Once rules are added nothing is dropped, since the rules may act on every
+    // change. The commands that do run keep their order, so the devices end up as if every
+    // command ran.
+    public static final class CommandCoalescer {
+        private static final int MAX_PENDING = 1 << 16; // Commands the reader may get ahead.
+        private static final Opcode[] SETTERS = {
+            Opcode.SET_TEMPERATURE, Opcode.SET_BRIGHTNESS, Opcode.SET_COLOR, Opcode.SET_ANGLE
+        };
+
+        private final DeviceStore smartDevices;
+        private final long windowNanos;
+        private Command[] pending = new Command[MAX_PENDING]; // Null where a command was dropped.
+        private Command[] running = new Command[MAX_PENDING];
+        private int count;
+        private long windowEnd; // Time at which the pending commands run.
+        private boolean closed;
+        private boolean rulesAdded;
+        private final Map<Long, Integer> setters = new HashMap<>(); // Pending setters by device and opcode.
+        private final ReentrantLock executing = new ReentrantLock(true); // Held while a window runs.
+        private volatile ResponseSink output;
+
+        public CommandCoalescer(DeviceStore smartDevices, long windowMillis) {
+            this.smartDevices = smartDevices;
+            this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        }
+
+        // Runs a task, a tick of the clock, between two windows. It prints where the
+        // commands print.
+        public void runExclusive(Runnable task) {
+            ResponseSink output = this.output;
+            executing.lock();
+            try {
+                bindResponseSink(output != null ? output : getResponseSink());
+                try {
+                    task.run();
+                } finally {
+                    unbindResponseSink();
+                }
+            } finally {
+                executing.unlock();
+            }
+        }
+
+        // Reads commands from the channel on the calling thread until "end" or the end of the
+        // input, and runs them on another thread. Output goes to the current sink.
+        public void run(ReadableByteChannel channel) throws IOException, InterruptedException {
+            ResponseSink output = getResponseSink();
+            this.output = output;
+            Thread executor = new Thread(() -> {
+                bindResponseSink(output);
+                try {
+                    runPending();
+                } finally {
+                    unbindResponseSink();
+                }
+            }, "coalescer");
+            executor.start();
+            try {
+                CommandTokenizer reader = new CommandTokenizer(channel);
+                while (reader.nextLine() && submitLine(reader)) {
+                    // Commands are submitted as they are read
+                }
+            } finally {
+                synchronized (this) {
+                    closed = true;
+                    notifyAll();
+                }
+                executor.join();
+            }
+        }
+
+        // Submits the commands of the current line, returning false at an "end" command.
+        private boolean submitLine(CommandTokenizer reader) throws InterruptedException {
+            if (reader.isAsciiLine()) {
+                Command command = parseCommand(reader);
+                if (command.opcode() == Opcode.END) {
+                    return false;
+                }
+                submit(command);
+                return true;
+            }
+            for (String commandLine : reader.lineAsString().split(UNICODE_LINE_SEPARATORS, -1)) {
+                Command command = parseCommand(commandLine);
+                if (command.opcode() == Opcode.END) {
+                    return false;
+                }
+                submit(command);
+            }
+            return true;
+        }
+
+        // Adds a command to the pending ones, dropping the setter it makes redundant. Waits
+        // while the pending commands are full.
+        public synchronized void submit(Command command) throws InterruptedException {
+            while (count == pending.length) {
+                wait();
+            }
+            if (count == 0) {
+                windowEnd = System.nanoTime() + windowNanos;
+                notifyAll();
+            }
+            Opcode opcode = command.opcode();
+            rulesAdded |= opcode == Opcode.WHEN;
+            if (!opcode.isDeviceCommand() || rulesAdded) {
+                setters.clear();
+            } else if (!isSetter(opcode)) {
+                for (Opcode setter : SETTERS) {
+                    setters.remove(setterKey(setter, command.deviceId()));
+                }
+            } else if (isAccepted(command)) {
+                Integer dropped = setters.put(setterKey(opcode, command.deviceId()), count);
+                if (dropped != null) {
+                    pending[dropped] = null;
+                }
+            }
+            pending[count++] = command;
+        }
+
+        private static boolean isSetter(Opcode opcode) {
+            return opcode == Opcode.SET_TEMPERATURE || opcode == Opcode.SET_BRIGHTNESS
+                    || opcode == Opcode.SET_COLOR || opcode == Opcode.SET_ANGLE;
+        }
+
+        private static long setterKey(Opcode opcode, int deviceId) {
+            return (long) deviceId << 8 | opcode.ordinal();
+        }
+
+        // Checks if a setter names the type that has the field and a value in its range, so
+        // that it changes the device if the device is there and can be changed.
+        private static boolean isAccepted(Command command) {
+            int value = command.argument();
+            switch (command.opcode()) {
+                case SET_TEMPERATURE:
+                    return command.deviceType() == DeviceType.HEATER && value >= 15 && value <= 30;
+                case SET_ANGLE:
+                    return command.deviceType() == DeviceType.CAMERA && value >= -60 && value <= 60;
+                default:
+                    return command.deviceType() == DeviceType.LIGHT && value >= 0;
+            }
+        }
+
+        // Runs the pending commands each time their window has passed, until the reader is
+        // done and nothing is pending. Output is flushed after every window.
+        private void runPending() {
+            CommandStats stats = getCommandStats();
+            boolean ended = false;
+            while (true) {
+                Command[] commands;
+                int numberOfCommands;
+                synchronized (this) {
+                    try {
+                        while (count == 0 && !closed) {
+                            wait();
+                        }
+                        for (long delay = windowEnd - System.nanoTime(); delay > 0 && !closed;
+                             delay = windowEnd - System.nanoTime()) {
+                            TimeUnit.NANOSECONDS.timedWait(this, delay);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    if (count == 0) {
+                        return;
+                    }
+                    commands = pending;
+                    numberOfCommands = count;
+                    pending = running;
+                    running = commands;
+                    count = 0;
+                    setters.clear();
+                    notifyAll();
+                }
+                executing.lock();
+                try {
+                    for (int i = 0; i < numberOfCommands; i++) {
+                        if (commands[i] == null) {
+                            stats.coalesce();
+                        } else if (!ended) {
+                            ended = !executeCommand(commands[i], smartDevices);
+                        }
+                        commands[i] = null;
+                    }
+                    responseSink().flush();
+                } finally {
+                    executing.unlock();
+                }
+            }
+        }
+    }
+
+    // Runs a file of commands on a fork-join pool and prints the same bytes as running them
+    // one after the other. The commands for single devices between two other commands form
+    // a run, which is partitioned by device ID: a partition owns the devices of its 64-ID
+    // groups, the groups of StripedLocks, and runs their commands in input order. The lines
+    // each command prints are kept with it and merged back in input order once the run is
+    // done. Every other command, DisplayAllStatus for one, waits for the run before it and
+    // runs alone, and while there are rules every command does, since a rule may change any
+    // device. The file is mapped into memory rather than read.
+    public static final class BatchCommandExecutor {
+        private static final int MAX_RUN = 1 << 16; // Commands partitioned at once.
+        private static final long REGION_SIZE = 1 << 30; // Bytes of the file mapped at once.
+
+        // Lines printed by the commands of one partition.
+        private static final class PartitionOutput implements ResponseSink {
+            private final List<String> lines = new ArrayList<>();
+
+            public void println(String line) {
+                lines.add(line);
+            }
+
+            public void flush() {
+                // The lines are merged by the executor
+            }
+        }
+
+        // Channel over a file that copies from mapped regions of it instead of reading.
+        private static final class MappedInput implements ReadableByteChannel {
+            private final FileChannel file;
+            private long offset; // Position of the next region in the file.
+            private MappedByteBuffer region;
+
+            private MappedInput(FileChannel file) {
+                this.file = file;
+            }
+
+            public int read(ByteBuffer destination) throws IOException {
+                if (region == null || !region.hasRemaining()) {
+                    long size = Math.min(REGION_SIZE, file.size() - offset);
+                    if (size <= 0) {
+                        return -1;
+                    }
+                    region = file.map(FileChannel.MapMode.READ_ONLY, offset, size);
+                    offset += size;
+                }
+                int length = Math.min(destination.remaining(), region.remaining());
+                destination.put(region.slice(region.position(), length));
+                region.position(region.position() + length);
+                return length;
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public void close() {
+                // The file is closed by the executor
+            }
+        }
+
+        private final DeviceStore smartDevices;
+        private final int parallelism;
+        private final ForkJoinPool pool;
+        private final PartitionOutput[] outputs;
+        private final Command[] run = new Command[MAX_RUN];
+        private final int[] partitions = new int[MAX_RUN]; // Partition of each command of the run.
+        private final int[] lineEnds = new int[MAX_RUN]; // Lines of its partition after each command.
+        private final int[] order = new int[MAX_RUN]; // Commands of the run by partition.
+        private final int[] starts; // Start of each partition in order.
+        private final ReentrantLock executing = new ReentrantLock(true); // Held while commands run.
+        private int runLength;
+
+        public BatchCommandExecutor(DeviceStore smartDevices, int parallelism) {
+            this.smartDevices = smartDevices;
+            this.parallelism = parallelism;
+            this.pool = new ForkJoinPool(parallelism);
+            this.outputs = new PartitionOutput[parallelism];
+            this.starts = new int[parallelism + 1];
+            for (int partition = 0; partition < parallelism; partition++) {
+                outputs[partition] = new PartitionOutput();
+            }
+        }
+
+        // Runs a task, a tick of the clock, between two runs or commands that run alone. It
+        // prints into the current sink, where the merged lines go.
+        public void runExclusive(Runnable task) {
+            executing.lock();
+            try {
+                task.run();
+            } finally {
+                executing.unlock();
+            }
+        }
+
+        // Lets a task waiting in runExclusive run, once the commands submitted so far ran.
+        private void yieldToTask() {
+            if (executing.hasQueuedThreads()) {
+                executing.unlock();
+                executing.lock();
+            }
+        }
+
+        // Runs the commands of the file until "end" or its end. Output goes to the current sink.
+        public void run(Path file) throws IOException {
+            executing.lock();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                CommandTokenizer reader = new CommandTokenizer(new MappedInput(channel));
+                boolean ended = false;
+                while (!ended && reader.nextLine()) {
+                    if (reader.isAsciiLine()) {
+                        ended = !submit(parseCommand(reader));
+                        continue;
+                    }
+                    for (String commandLine : reader.lineAsString().split(UNICODE_LINE_SEPARATORS, -1)) {
+                        if (!submit(parseCommand(commandLine))) {
+                            ended = true;
+                            break;
+                        }
+                    }
+                }
+                runPartitions();
+            } finally {
+                executing.unlock();
+                pool.shutdown();
+            }
+        }
+
+        // Adds a command to the run, or runs it alone after the run. Returns false at "end".
+        // Invalid commands touch no device, so any partition can print them.
+        private boolean submit(Command command) {
+            Opcode opcode = command.opcode();
+            if (opcode == Opcode.INVALID || opcode.isDeviceCommand() && !smartDevices.rules().isActive()) {
+                partitions[runLength] = opcode == Opcode.INVALID ? runLength % parallelism : partitionOf(command.deviceId());
+                run[runLength++] = command;
+                if (runLength == MAX_RUN) {
+                    runPartitions();
+                }
+                return true;
+            }
+            runPartitions();
+            boolean running = executeCommand(command, smartDevices);
+            yieldToTask();
+            return running;
+        }
+
+        private int partitionOf(int deviceId) {
+            int group = deviceId >>> StripedLocks.IDS_PER_STRIPE_SHIFT;
+            return Integer.remainderUnsigned((group ^ group >>> 16) * 0x45d9f3b, parallelism);
+        }
+
+        // Runs the partitions of the run on the pool, then prints their lines in input order.
+        private void runPartitions() {
+            if (runLength == 0) {
+                return;
+            }
+            Arrays.fill(starts, 0);
+            for (int i = 0; i < runLength; i++) {
+                starts[partitions[i] + 1]++;
+            }
+            for (int partition = 0; partition < parallelism; partition++) {
+                starts[partition + 1] += starts[partition];
+            }
+            int[] next = Arrays.copyOf(starts, parallelism);
+            for (int i = 0; i < runLength; i++) {
+                order[next[partitions[i]]++] = i;
+            }
+
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int partition = 0; partition < parallelism; partition++) {
+                if (starts[partition] < starts[partition + 1]) {
+                    final int owned = partition;
+                    tasks.add(pool.submit(() -> runPartition(owned)));
+                }
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+
+            ResponseSink output = responseSink();
+            int[] printed = new int[parallelism];
+            for (int i = 0; i < runLength; i++) {
+                List<String> lines = outputs[partitions[i]].lines;
+                for (int line = printed[partitions[i]]; line < lineEnds[i]; line++) {
+                    output.println(lines.get(line));
+                }
+                printed[partitions[i]] = lineEnds[i];
+                run[i] = null;
+            }
+            for (PartitionOutput partitionOutput : outputs) {
+                partitionOutput.lines.clear();
+            }
+            runLength = 0;
+            yieldToTask();
+        }
+
+        private void runPartition(int partition) {
+            PartitionOutput output = outputs[partition];
+            bindResponseSink(output);
+            try {
+                for (int k = starts[partition]; k < starts[partition + 1]; k++) {
+                    int i = order[k];
+                    executeCommand(run[i], smartDevices);
+                    lineEnds[i] = output.lines.size();
+                }
+            } finally {
+                unbindResponseSink();
+            }
+        }
+    }
+
+    // Bounded queue from one producer thread to one consumer thread, a ring of slots indexed
+    // by the counts of the items put and taken. Each side keeps a copy of the other's count
+    // and reads the count itself only when the copy says the ring is full or empty. A full
+    // ring parks the producer and an empty one the consumer until the other side moves on.
+    public static final class SpscRing<T> {
+        private final Object[] slots;
+        private final int mask;
+        private volatile long tail; // Items put, written by the producer.
+        private volatile long head; // Items taken, written by the consumer.
+        private long cachedHead; // The producer's copy of the head.
+        private long cachedTail; // The consumer's copy of the tail.
+        private volatile Thread parkedProducer;
+        private volatile Thread parkedConsumer;
+        private volatile int peak; // Most items the ring held at once.
+
+        public SpscRing(int minimumCapacity) {
+            int capacity = Integer.highestOneBit(Math.max(1, minimumCapacity - 1) << 1);
+            this.slots = new Object[capacity];
+            this.mask = capacity - 1;
+        }
+
+        public int getCapacity() {
+            return slots.length;
+        }
+
+        // Puts an item, waiting while the ring is full. Called by the producer only.
+        public void put(T item) {
+            long tail = this.tail;
+            while (tail - cachedHead == slots.length) {
+                cachedHead = head;
+                if (tail - cachedHead == slots.length) {
+                    parkedProducer = Thread.currentThread();
+                    if (tail - head == slots.length) {
+                        LockSupport.park(this);
+                    }
+                    parkedProducer = null;
+                }
+            }
+            slots[(int) tail & mask] = item;
+            this.tail = tail + 1;
+            int size = (int) (tail + 1 - head);
+            if (size > peak) {
+                peak = size;
+            }
+            Thread consumer = parkedConsumer;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+
+        // Takes the oldest item, waiting while the ring is empty. Called by the consumer only.
+        @SuppressWarnings("unchecked")
+        public T take() {
+            long head = this.head;
+            while (cachedTail == head) {
+                cachedTail = tail;
+                if (cachedTail == head) {
+                    parkedConsumer = Thread.currentThread();
+                    if (tail == head) {
+                        LockSupport.park(this);
+                    }
+                    parkedConsumer = null;
+                }
+            }
+            int slot = (int) head & mask;
+            T item = (T) slots[slot];
+            slots[slot] = null;
+            this.head = head + 1;
+            Thread producer = parkedProducer;
+            if (producer != null) {
+                LockSupport.unpark(producer);
+            }
+            return item;
+        }
+
+        // Checks if take would wait. Called by the consumer only.
+        public boolean isEmpty() {
+            return cachedTail == head && tail == head;
+        }
+
+        // Number of items in the ring, from any thread.
+        public int size() {
+            long head = this.head;
+            return (int) Math.min(tail - head, slots.length);
+        }
+
+        public int getPeak() {
+            return peak;
+        }
+    }
+
+    // Runs the commands of a channel in four stages, each on a thread of its own: reading the
+    // input, parsing it into commands, executing them, and encoding and writing their output,
+    // which is done by the calling thread. The stages hand batches on through SPSC rings:
+    // chunks of input bytes, arrays of commands and arrays of output lines. A stage hands over
+    // a partial batch before it waits for more input, so a user at a terminal gets every
+    // response at once, while a busy pipeline moves full batches. A stage reuses its batches
+    // in turn: the ring holds at most QUEUE_CAPACITY of them and the next stage works on one
+    // more, so with two more than that the batch being filled is always free.
+    public static final class StagedPipeline {
+        private static final int QUEUE_CAPACITY = 16;
+        private static final int BATCHES = QUEUE_CAPACITY + 2; // Batches each stage owns.
+        private static final int CHUNK_SIZE = 1 << 16; // Bytes read at once.
+        private static final int BATCH_SIZE = 1024; // Commands or lines per batch.
+
+        // Batch of input bytes, or of commands or output lines in items. The last batch of
+        // the input has a negative length, the last one of the output is marked.
+        private static final class Batch {
+            final byte[] bytes;
+            final Object[] items;
+            int length;
+            boolean last;
+
+            Batch(boolean ofBytes) {
+                this.bytes = ofBytes ? new byte[CHUNK_SIZE] : null;
+                this.items = ofBytes ? null : new Object[BATCH_SIZE];
+            }
+
+            static Batch[] allocate(boolean ofBytes) {
+                Batch[] batches = new Batch[BATCHES];
+                for (int i = 0; i < batches.length; i++) {
+                    batches[i] = new Batch(ofBytes);
+                }
+                return batches;
+            }
+        }
+
+        // The chunks as a channel, through which the tokenizer of the parser reads them.
+        private final class ChunkChannel implements ReadableByteChannel {
+            private Batch chunk;
+            private int position;
+
+            public int read(ByteBuffer destination) {
+                if (chunk == null || chunk.length >= 0 && position == chunk.length) {
+                    if (chunks.isEmpty()) {
+                        handOffCommands(); // Nothing waits behind the commands parsed so far
+                    }
+                    chunk = chunks.take();
+                    position = 0;
+                }
+                if (chunk.length < 0) {
+                    return -1;
+                }
+                int length = Math.min(destination.remaining(), chunk.length - position);
+                destination.put(chunk.bytes, position, length);
+                position += length;
+                return length;
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public void close() {
+                // The reader owns the input
+            }
+        }
+
+        // Sink of the executor, which fills the batches of output lines.
+        private final class LineOutput implements ResponseSink {
+            public void println(String line) {
+                lineBatch.items[lineBatch.length++] = line;
+                if (lineBatch.length == BATCH_SIZE) {
+                    handOffLines(false);
+                }
+            }
+
+            public void flush() {
+                handOffLines(false);
+            }
+        }
+
+        private static volatile StagedPipeline running; // Pipeline whose queues Stats reports.
+
+        private final DeviceStore smartDevices;
+        private final SpscRing<Batch> chunks = new SpscRing<>(QUEUE_CAPACITY);
+        private final SpscRing<Batch> commands = new SpscRing<>(QUEUE_CAPACITY);
+        private final SpscRing<Batch> lines = new SpscRing<>(QUEUE_CAPACITY);
+        private final Batch[] chunkBatches = Batch.allocate(true);
+        private final Batch[] commandBatches = Batch.allocate(false);
+        private final Batch[] lineBatches = Batch.allocate(false);
+        private int chunkIndex; // Batch each stage fills now.
+        private int commandIndex;
+        private int lineIndex;
+        private Batch commandBatch = commandBatches[0];
+        private Batch lineBatch = lineBatches[0];
+        private final LineOutput lineOutput = new LineOutput();
+        private final ReentrantLock executing = new ReentrantLock(true); // Held by the executor but while it waits.
+        private boolean executed; // The last lines were handed off, under the lock.
+        private volatile Throwable failure;
+
+        public StagedPipeline(DeviceStore smartDevices) {
+            this.smartDevices = smartDevices;
+        }
+
+        // Runs a task, a tick of the clock, while the executor waits for commands. It prints
+        // into the batches of output lines, between the lines of two batches of commands.
+        public void runExclusive(Runnable task) {
+            executing.lock();
+            try {
+                if (executed) {
+                    return; // Nothing takes lines anymore.
+                }
+                bindResponseSink(lineOutput);
+                try {
+                    task.run();
+                } finally {
+                    unbindResponseSink();
+                }
+            } finally {
+                executing.unlock();
+            }
+        }
+
+        // Runs the commands of the channel until "end" or its end. Output goes to the current sink.
+        public void run(ReadableByteChannel channel) throws IOException {
+            ResponseSink output = getResponseSink();
+            Thread reader = new Thread(() -> read(channel), "pipeline-reader");
+            reader.setDaemon(true); // It may wait for input that never comes after "end"
+            Thread parser = new Thread(this::parse, "pipeline-parser");
+            Thread executor = new Thread(this::execute, "pipeline-executor");
+            running = this;
+            reader.start();
+            parser.start();
+            executor.start();
+            try {
+                while (true) {
+                    if (lines.isEmpty()) {
+                        output.flush(); // Write out the responses while the executor is busy
+                    }
+                    Batch batch = lines.take();
+                    for (int i = 0; i < batch.length; i++) {
+                        output.println((String) batch.items[i]);
+                    }
+                    if (batch.last) {
+                        break;
+                    }
+                }
+            } finally {
+                running = null;
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure != null) {
+                throw new IllegalStateException("A stage of the pipeline failed", failure);
+            }
+        }
+
+        // Reads chunks of input until its end.
+        private void read(ReadableByteChannel channel) {
+            Batch chunk = chunkBatches[0];
+            try {
+                do {
+                    chunk = chunkBatches[chunkIndex];
+                    chunkIndex = (chunkIndex + 1) % BATCHES;
+                    chunk.length = channel.read(ByteBuffer.wrap(chunk.bytes));
+                    chunks.put(chunk);
+                } while (chunk.length >= 0);
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+                chunk.length = -1;
+                chunks.put(chunk);
+            }
+        }
+
+        // Parses the lines of the chunks into batches of commands. The end of the input ends
+        // the commands as "end" does.
+        private void parse() {
+            try {
+                CommandTokenizer tokenizer = new CommandTokenizer(new ChunkChannel());
+                while (tokenizer.nextLine()) {
+                    if (tokenizer.isAsciiLine()) {
+                        if (!addCommand(parseCommand(tokenizer))) {
+                            return;
+                        }
+                        continue;
+                    }
+                    for (String commandLine : tokenizer.lineAsString().split(UNICODE_LINE_SEPARATORS, -1)) {
+                        if (!addCommand(parseCommand(commandLine))) {
+                            return;
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            }
+            addCommand(Command.of(Opcode.END));
+        }
+
+        // Adds a command to the batch, which is handed over when it is full or at "end".
+        // Returns false at "end".
+        private boolean addCommand(Command command) {
+            commandBatch.items[commandBatch.length++] = command;
+            boolean end = command.opcode() == Opcode.END;
+            if (end || commandBatch.length == BATCH_SIZE) {
+                handOffCommands();
+            }
+            return !end;
+        }
+
+        private void handOffCommands() {
+            if (commandBatch.length > 0) {
+                commands.put(commandBatch);
+                commandIndex = (commandIndex + 1) % BATCHES;
+                commandBatch = commandBatches[commandIndex];
+                commandBatch.length = 0;
+            }
+        }
+
+        // Executes the batches of commands until "end", printing into batches of lines.
+        private void execute() {
+            bindResponseSink(lineOutput);
+            executing.lock();
+            try {
+                while (true) {
+                    if (commands.isEmpty()) {
+                        handOffLines(false); // Nothing waits behind the output so far
+                    }
+                    Batch batch;
+                    executing.unlock();
+                    try {
+                        batch = commands.take();
+                    } finally {
+                        executing.lock();
+                    }
+                    for (int i = 0; i < batch.length; i++) {
+                        if (!executeCommand((Command) batch.items[i], smartDevices)) {
+                            return;
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                unbindResponseSink();
+                executed = true;
+                handOffLines(true);
+                executing.unlock();
+            }
+        }
+
+        private void handOffLines(boolean last) {
+            if (lineBatch.length > 0 || last) {
+                lineBatch.last = last;
+                lines.put(lineBatch);
+                lineIndex = (lineIndex + 1) % BATCHES;
+                lineBatch = lineBatches[lineIndex];
+                lineBatch.length = 0;
+            }
+        }
+
+        // Describes how full the queue in front of each stage is, now and at most.
+        public String describeQueues() {
+            return "input " + describe(chunks) + ", commands " + describe(commands) + ", output " + describe(lines);
+        }
+
+        private static String describe(SpscRing<Batch> queue) {
+            return queue.size() + "/" + queue.getCapacity() + " (peak " + queue.getPeak() + ")";
+        }
+
+        // Returns the pipeline that runs the commands, or null if they don't run in one.
+        public static StagedPipeline running() {
+            return running;
+        }
+    }
+
+    // Server for the command protocol over TCP, so that several controllers can share one set
+    // of devices. Every connection is served by its own thread, a virtual thread where the
+    // runtime has them, and runs its commands through a shared executor. The commands of a
+    // connection run one after the other, so clients can pipeline them and get the responses
+    // back in order. A command prints into a buffer of its connection while it holds its
+    // locks, and the buffer is sent after the locks are released, once it fills up or the
+    // connection runs out of buffered commands, so a client that doesn't read holds up no one
+    // else. Memory is bounded by the number of connections, each with bounded buffers:
+    // connections that stay quiet for longer than the idle timeout are closed, and so are
+    // connections with more unsent output than the limit or a write that misses its deadline.
+    public static final class CommandServer implements Closeable {
+        private static final int CONNECTION_BUFFER_SIZE = 1 << 12; // Bytes of input and of output per connection.
+
+        private final ConcurrentCommandExecutor executor;
+        private final ServerSocket serverSocket;
+        private final Semaphore connectionSlots;
+        private final int idleTimeoutMillis;
+        private final long writeTimeoutNanos;
+        private final int maxPendingOutput;
+        private final ExecutorService connectionThreads = newConnectionThreads();
+        private final Set<ConnectionOutput> connections = ConcurrentHashMap.newKeySet();
+        private DeviceJournal journal;
+
+        public CommandServer(ConcurrentCommandExecutor executor, InetSocketAddress address,
+                             int maxConnections, int idleTimeoutMillis) throws IOException {
+            this(executor, address, maxConnections, idleTimeoutMillis, 10_000, 1 << 20);
+        }
+
+        public CommandServer(ConcurrentCommandExecutor executor, InetSocketAddress address, int maxConnections,
+                             int idleTimeoutMillis, int writeTimeoutMillis, int maxPendingOutput) throws IOException {
+            this.executor = executor;
+            this.serverSocket = new ServerSocket();
+            this.connectionSlots = new Semaphore(maxConnections);
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+            this.maxPendingOutput = Math.max(maxPendingOutput, CONNECTION_BUFFER_SIZE);
+            serverSocket.bind(address);
+        }
+
+        // Output of a connection, kept in memory until the connection thread sends it. Lines
+        // beyond the limit are dropped and the connection is marked to be closed.
+        private static final class ConnectionOutput implements ResponseSink {
+            private final Socket socket;
+            private final OutputStream out;
+            private final int limit;
+            private final byte[] lineSeparator = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+            private byte[] buffer = new byte[CONNECTION_BUFFER_SIZE];
+            private int size; // Number of unsent bytes.
+            private boolean overflowed;
+            private volatile long writeStartNanos; // Start of the write in progress, 0 if there is none.
+
+            ConnectionOutput(Socket socket, OutputStream out, int limit) {
+                this.socket = socket;
+                this.out = out;
+                this.limit = limit;
+            }
+
+            public void println(String line) {
+                if (overflowed) {
+                    return;
+                }
+                byte[] encoded = null;
+                int length = line.length();
+                for (int i = 0; i < length; i++) {
+                    if (line.charAt(i) >= 0x80) {
+                        encoded = line.getBytes(Charset.defaultCharset());
+                        length = encoded.length;
+                        break;
+                    }
+                }
+                int required = size + length + lineSeparator.length;
+                if (required > limit) {
+                    overflowed = true;
+                    return;
+                }
+                if (required > buffer.length) {
+                    buffer = Arrays.copyOf(buffer, Math.min(limit, Math.max(required, buffer.length * 2)));
+                }
+                if (encoded != null) {
+                    System.arraycopy(encoded, 0, buffer, size, length);
+                    size += length;
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        buffer[size++] = (byte) line.charAt(i);
+                    }
+                }
+                System.arraycopy(lineSeparator, 0, buffer, size, lineSeparator.length);
+                size += lineSeparator.length;
+            }
+
+            // Commands may run under locks, so nothing is written here, see send.
+            public void flush() {
+            }
+
+            int size() {
+                return size;
+            }
+
+            boolean isOverflowed() {
+                return overflowed;
+            }
+
+            // Writes out the unsent output, a buffer that grew for a large response shrinks again.
+            void send() throws IOException {
+                if (size == 0) {
+                    return;
+                }
+                writeStartNanos = System.nanoTime();
+                try {
+                    out.write(buffer, 0, size);
+                    out.flush();
+                } finally {
+                    writeStartNanos = 0;
+                }
+                size = 0;
+                if (buffer.length > CONNECTION_BUFFER_SIZE) {
+                    buffer = new byte[CONNECTION_BUFFER_SIZE];
+                }
+            }
+
+            // Closes the connection if a write has been waiting for the client for too long,
+            // which makes the write fail.
+            void closeIfStalled(long now, long writeTimeoutNanos) {
+                long start = writeStartNanos;
+                if (start != 0 && now - start > writeTimeoutNanos) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // Closed already
+                    }
+                }
+            }
+        }
+
+        // Runs each task on a new virtual thread on Java 21 and later, on a new platform
+        // thread before that.
+        private static ExecutorService newConnectionThreads() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool(task -> {
+                    Thread thread = new Thread(task);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+
+        public int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        // Makes responses wait until the changes before them are synced to the journal.
+        public void setJournal(DeviceJournal journal) {
+            this.journal = journal;
+        }
+
+        // Accepts connections until the server is closed. Connections beyond the limit are
+        // told that the server is busy and closed right away.
+        public void serve() throws IOException {
+            Thread watchdog = new Thread(this::closeStalledConnections, "server-write-watchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+            try {
+                while (!serverSocket.isClosed()) {
+                    Socket socket;
+                    try {
+                        socket = serverSocket.accept();
+                    } catch (IOException e) {
+                        if (serverSocket.isClosed()) {
+                            return;
+                        }
+                        throw e;
+                    }
+                    if (!connectionSlots.tryAcquire()) {
+                        try (Socket rejected = socket) {
+                            rejected.getOutputStream().write("The server is busy\n".getBytes(StandardCharsets.US_ASCII));
+                        } catch (IOException e) {
+                            // The client is gone already
+                        }
+                        continue;
+                    }
+                    connectionThreads.execute(() -> {
+                        try {
+                            serve(socket);
+                        } finally {
+                            connectionSlots.release();
+                        }
+                    });
+                }
+            } finally {
+                connectionThreads.shutdown();
+                watchdog.interrupt();
+            }
+        }
+
+        private void closeStalledConnections() {
+            long interval = Math.max(TimeUnit.MILLISECONDS.toNanos(10), writeTimeoutNanos / 4);
+            while (!serverSocket.isClosed()) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = System.nanoTime();
+                for (ConnectionOutput connection : connections) {
+                    connection.closeIfStalled(now, writeTimeoutNanos);
+                }
+            }
+        }
+
+        // Runs the commands of one connection until it sends "end", closes, fails or stays idle.
+        private void serve(Socket socket) {
+            try (Socket connection = socket) {
+                connection.setSoTimeout(idleTimeoutMillis);
+                connection.setTcpNoDelay(true);
+                OutputStream socketOutput = connection.getOutputStream();
+                ConnectionOutput output = new ConnectionOutput(connection, journal != null
+                        ? journal.syncBeforeWrite(socketOutput) : socketOutput, maxPendingOutput);
+                ReadableByteChannel input = Channels.newChannel(connection.getInputStream());
+                // Responses are sent before waiting for more commands, not after every command
+                ReadableByteChannel flushingInput = new ReadableByteChannel() {
+                    public int read(ByteBuffer destination) throws IOException {
+                        output.send();
+                        return input.read(destination);
+                    }
+
+                    public boolean isOpen() {
+                        return input.isOpen();
+                    }
+
+                    public void close() throws IOException {
+                        input.close();
+                    }
+                };
+                CommandTokenizer tokenizer = new CommandTokenizer(flushingInput, CONNECTION_BUFFER_SIZE);
+                connections.add(output);
+                bindResponseSink(output);
+                try {
+                    boolean running = true;
+                    while (running && tokenizer.nextLine()) {
+                        running = executor.execute(tokenizer); // Prints its response into the output.
+                        if (output.isOverflowed()) {
+                            return; // Too much output the client hasn't taken.
+                        }
+                        if (output.size() >= CONNECTION_BUFFER_SIZE) {
+                            output.send();
+                        }
+                    }
+                    output.send();
+                } finally {
+                    unbindResponseSink();
+                    connections.remove(output);
+                }
+            } catch (SocketTimeoutException e) {
+                // The connection was idle for too long
+            } catch (IOException | UncheckedIOException e) {
+                // The client went away or sent a line that is too long
+            }
+        }
+
+        // Stops accepting connections. Connections that are open already are served to the end.
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    // Opcodes of the commands, which index the dispatch table, with the number of terms
+    // each command has.
+    public enum Opcode {
+        END("end", 1),
+        DISPLAY_ALL_STATUS("DisplayAllStatus", 1),
+        DISPLAY_CHANGED_STATUS("DisplayChangedStatus", 2),
+        TURN_ON("TurnOn", 3),
+        TURN_OFF("TurnOff", 3),
+        START_CHARGING("StartCharging", 3),
+        STOP_CHARGING("StopCharging", 3),
+        SET_TEMPERATURE("SetTemperature", 4),
+        SET_BRIGHTNESS("SetBrightness", 4),
+        SET_COLOR("SetColor", 4),
+        SET_ANGLE("SetAngle", 4),
+        START_RECORDING("StartRecording", 3),
+        STOP_RECORDING("StopRecording", 3),
+        ADD_DEVICE("AddDevice", 2),
+        REMOVE_DEVICE("RemoveDevice", 3),
+        BULK(null, 0), // A command with a device selector, see executeBulkCommand.
+        AT("At", 3), // Followed by a time of day and the command to run then.
+        EVERY("Every", 3), // Followed by a number of minutes and the command to repeat.
+        CANCEL("Cancel", 2),
+        ADVANCE_CLOCK("AdvanceClock", 2),
+        WHEN("When", 7), // Followed by a condition and the command to run when it turns true.
+        REMOVE_RULE("RemoveRule", 2),
+        DISPLAY_RULES("DisplayRules", 1),
+        STATS("Stats", 1),
+        LIST("List", 1), // Followed by a query, see parseQuery.
+        COUNT("Count", 1), // Followed by a query.
+        USAGE("Usage", 1), // Optionally followed by a device name and ID.
+        HISTORY("History", 1), // Optionally followed by a device, a field and a range of time.
+        VALUE_AT("ValueAt", 5),
+        INVALID(null, 0);
+
+        private final String commandName;
+        private final int numberOfFields;
+
+        Opcode(String commandName, int numberOfFields) {
+            this.commandName = commandName;
+            this.numberOfFields = numberOfFields;
+        }
+
+        public String getCommandName() {
+            return commandName;
+        }
+
+        public int getNumberOfFields() {
+            return numberOfFields;
+        }
+
+        // Checks if the command changes the single device given by its ID.
+        public boolean isDeviceCommand() {
+            return compareTo(TURN_ON) >= 0 && compareTo(STOP_RECORDING) <= 0;
+        }
+
+        // Checks if the command may be scheduled or run by a rule, which excludes the commands
+        // of the scheduler and of the rules.
+        public boolean isSchedulable() {
+            return compareTo(DISPLAY_ALL_STATUS) >= 0 && compareTo(BULK) <= 0;
+        }
+
+        // Returns the opcode of the command with the given name, or INVALID if there is none.
+        public static Opcode fromName(String commandName) {
+            switch (commandName) {
+                case "end":
+                    return END;
+                case "DisplayAllStatus":
+                    return DISPLAY_ALL_STATUS;
+                case "DisplayChangedStatus":
+                    return DISPLAY_CHANGED_STATUS;
+                case "TurnOn":
+                    return TURN_ON;
+                case "TurnOff":
+                    return TURN_OFF;
+                case "StartCharging":
+                    return START_CHARGING;
+                case "StopCharging":
+                    return STOP_CHARGING;
+                case "SetTemperature":
+                    return SET_TEMPERATURE;
+                case "SetBrightness":
+                    return SET_BRIGHTNESS;
+                case "SetColor":
+                    return SET_COLOR;
+                case "SetAngle":
+                    return SET_ANGLE;
+                case "StartRecording":
+                    return START_RECORDING;
+                case "StopRecording":
+                    return STOP_RECORDING;
+                case "AddDevice":
+                    return ADD_DEVICE;
+                case "RemoveDevice":
+                    return REMOVE_DEVICE;
+                case "At":
+                    return AT;
+                case "Every":
+                    return EVERY;
+                case "Cancel":
+                    return CANCEL;
+                case "AdvanceClock":
+                    return ADVANCE_CLOCK;
+                case "When":
+                    return WHEN;
+                case "RemoveRule":
+                    return REMOVE_RULE;
+                case "DisplayRules":
+                    return DISPLAY_RULES;
+                case "Stats":
+                    return STATS;
+                case "List":
+                    return LIST;
+                case "Count":
+                    return COUNT;
+                case "Usage":
+                    return USAGE;
+                case "History":
+                    return HISTORY;
+                case "ValueAt":
+                    return VALUE_AT;
+                default:
+                    return INVALID;
+            }
+        }
+    }
+
+    // Command parsed once into the values its handler needs, so running it parses nothing.
+    // The device type is null for a name that is none of the types, that device is never
+    // found. The argument is the temperature or the angle, or the ordinal of the brightness
+    // level or the light color, -1 for an unknown keyword, the version of DisplayChangedStatus,
+    // the time of At, the period of Every, the task ID of Cancel or the minutes of AdvanceClock,
+    // the rule ID of RemoveRule, or 1 for the Usage of a single device. Bulk commands keep
+    // their line, At and Every keep the command they schedule, When keeps its rule, List and
+    // Count keep their query, and History and ValueAt keep their arguments.
+    public record Command(Opcode opcode, DeviceType deviceType, int deviceId, int argument, String line) {
+        private static final Command[] WITHOUT_OPERANDS = new Command[Opcode.values().length];
+
+        static {
+            for (Opcode opcode : Opcode.values()) {
+                WITHOUT_OPERANDS[opcode.ordinal()] = new Command(opcode, null, 0, 0, null);
+            }
+        }
+
+        public static final Command INVALID = of(Opcode.INVALID);
+
+        // Returns the shared instance of a command that has no operands.
+        public static Command of(Opcode opcode) {
+            return WITHOUT_OPERANDS[opcode.ordinal()];
+        }
+
+        // Name of the device as it appears in the output, empty for an unknown name.
+        public String deviceName() {
+            return deviceType == null ? "" : deviceType.getDeviceName();
+        }
+    }
+
+    // Reasons for rejecting a command, counted by the Stats command.
+    public enum RejectionReason {
+        INVALID("invalid"), // The command is malformed.
+        NOT_FOUND("not found"), // There is no such device.
+        OFF("off"), // The device is off, so it can't be changed.
+        OUT_OF_RANGE("out of range"), // The value is not allowed.
+        WRONG_TYPE("wrong type"); // The device can't do that, like charging a heater.
+
+        private final String label;
+
+        RejectionReason(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    // Counters and latency histograms of the commands, one per opcode, and counters of the
+    // rejections by reason. The histograms have fixed buckets like HdrHistogram: values
+    // below 32 ns get a bucket each, and each power of two above that is split into 16
+    // buckets, which keeps every value within 1/16 of its bucket up to about 18 minutes.
+    // Recording increments a slot of a preallocated array, so it never allocates and
+    // threads can record at the same time. Commands are only timed with timing on, with
+    // --timing, as two System.nanoTime calls and a shared increment per command add up.
+    public static final class CommandStats {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_SHIFT = 36; // Values of up to 2^41 ns are told apart.
+        private static final int BUCKETS = (MAX_SHIFT + 2) << SUB_BUCKET_BITS;
+        private static final Opcode[] OPCODES = Opcode.values();
+        private static final RejectionReason[] REJECTION_REASONS = RejectionReason.values();
+
+        private final AtomicLongArray buckets = new AtomicLongArray(OPCODES.length * BUCKETS);
+        private final AtomicLongArray rejections = new AtomicLongArray(REJECTION_REASONS.length);
+        private final LongAdder coalesced = new LongAdder(); // Commands a coalescer dropped.
+        private volatile boolean timing;
+
+        public boolean isTiming() {
+            return timing;
+        }
+
+        public void setTiming(boolean timing) {
+            this.timing = timing;
+        }
+
+        // Records that a command took the given number of nanoseconds.
+        public void record(Opcode opcode, long nanos) {
+            buckets.incrementAndGet(opcode.ordinal() * BUCKETS + bucketOf(nanos));
+        }
+
+        public void reject(RejectionReason reason) {
+            rejections.incrementAndGet(reason.ordinal());
+        }
+
+        public long rejections(RejectionReason reason) {
+            return rejections.get(reason.ordinal());
+        }
+
+        public void coalesce() {
+            coalesced.increment();
+        }
+
+        public long coalesced() {
+            return coalesced.sum();
+        }
+
+        public long count(Opcode opcode) {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += buckets.get(opcode.ordinal() * BUCKETS + i);
+            }
+            return count;
+        }
+
+        // Returns the latency in nanoseconds that the given fraction of the commands didn't
+        // exceed, rounded up to the end of its bucket, or 0 if there were no commands.
+        public long percentile(Opcode opcode, double fraction) {
+            long rank = (long) Math.ceil(count(opcode) * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(opcode.ordinal() * BUCKETS + i);
+                if (seen >= rank && seen > 0) {
+                    return highestValueOf(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) Math.max(value, 0);
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            int bucket = ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+            return Math.min(bucket, BUCKETS - 1);
+        }
+
+        private static long highestValueOf(int bucket) {
+            int group = bucket >>> SUB_BUCKET_BITS;
+            if (group == 0) {
+                return bucket;
+            }
+            int shift = group - 1;
+            return ((long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift) + (1L << shift) - 1;
+        }
+    }
+
+    private static final CommandStats COMMAND_STATS = new CommandStats();
+
+    public static CommandStats getCommandStats() {
+        return COMMAND_STATS;
+    }
+
+    // Runs the commands of one opcode.
+    public interface CommandHandler {
+        void execute(Command command, DeviceStore smartDevices);
+    }
+
+    private static final BrightnessLevel[] BRIGHTNESS_LEVELS = BrightnessLevel.values();
+    private static final LightColor[] LIGHT_COLORS = LightColor.values();
+    private static final DeviceField[] DEVICE_FIELDS = DeviceField.values();
+
+    // Dispatch table with the handler of each opcode, at the index of its ordinal.
+    private static final CommandHandler[] COMMAND_HANDLERS = new CommandHandler[Opcode.values().length];
+
+    static {
+        COMMAND_HANDLERS[Opcode.END.ordinal()] = (command, smartDevices) -> {
+            // Ends the loop of the caller
+        };
+        COMMAND_HANDLERS[Opcode.DISPLAY_ALL_STATUS.ordinal()] = (command, smartDevices) ->
+                displayAllStatus(smartDevices);
+        COMMAND_HANDLERS[Opcode.DISPLAY_CHANGED_STATUS.ordinal()] = (command, smartDevices) ->
+                displayChangedStatus(command.argument(), smartDevices);
+        COMMAND_HANDLERS[Opcode.TURN_ON.ordinal()] = (command, smartDevices) ->
+                turnOn(command.deviceName(), command.deviceId(), smartDevices);
+        COMMAND_HANDLERS[Opcode.TURN_OFF.ordinal()] = (command, smartDevices) ->
+                turnOff(command.deviceName(), command.deviceId(), smartDevices);
+        COMMAND_HANDLERS[Opcode.START_CHARGING.ordinal()] = (command, smartDevices) ->
+                startCharging(command.deviceName(), command.deviceId(), smartDevices);
+        COMMAND_HANDLERS[Opcode.STOP_CHARGING.ordinal()] = (command, smartDevices) ->
+                stopCharging(command.deviceName(), command.deviceId(), smartDevices);
+        COMMAND_HANDLERS[Opcode.SET_TEMPERATURE.ordinal()] = (command, smartDevices) ->
+                setTemperature(command.deviceName(), command.deviceId(), command.argument(), smartDevices);
+        COMMAND_HANDLERS[Opcode.SET_BRIGHTNESS.ordinal()] = (command, smartDevices) ->
+                setBrightness(command.deviceName(), command.deviceId(),
+                        command.argument() < 0 ? null : BRIGHTNESS_LEVELS[command.argument()], smartDevices);
+        COMMAND_HANDLERS[Opcode.SET_COLOR.ordinal()] = (command, smartDevices) ->
+                setColor(command.deviceName(), command.deviceId(),
+                        command.argument() < 0 ? null : LIGHT_COLORS[command.argument()], smartDevices);
+        COMMAND_HANDLERS[Opcode.SET_ANGLE.ordinal()] = (command, smartDevices) ->
+                setAngle(command.deviceName(), command.deviceId(), command.argument(), smartDevices);
+        COMMAND_HANDLERS[Opcode.START_RECORDING.ordinal()] = (command, smartDevices) ->
+                startRecording(command.deviceName(), command.deviceId(), smartDevices);
+        COMMAND_HANDLERS[Opcode.STOP_RECORDING.ordinal()] = (command, smartDevices) ->
+                stopRecording(command.deviceName(), command.deviceId(), smartDevices);
+        COMMAND_HANDLERS[Opcode.ADD_DEVICE.ordinal()] = (command, smartDevices) ->
+                addDevice(command.deviceName(), smartDevices);
+        COMMAND_HANDLERS[Opcode.REMOVE_DEVICE.ordinal()] = (command, smartDevices) ->
+                removeDevice(command.deviceName(), command.deviceId(), smartDevices);
+        COMMAND_HANDLERS[Opcode.BULK.ordinal()] = (command, smartDevices) ->
+                executeBulkCommand(command.line().split(" "), smartDevices);
+        COMMAND_HANDLERS[Opcode.AT.ordinal()] = SmartHomeManagementSystem::scheduleCommand;
+        COMMAND_HANDLERS[Opcode.EVERY.ordinal()] = SmartHomeManagementSystem::scheduleCommand;
+        COMMAND_HANDLERS[Opcode.CANCEL.ordinal()] = (command, smartDevices) ->
+                cancelTask(command.argument(), smartDevices);
+        COMMAND_HANDLERS[Opcode.ADVANCE_CLOCK.ordinal()] = (command, smartDevices) ->
+                advanceClock(command.argument(), smartDevices);
+        COMMAND_HANDLERS[Opcode.WHEN.ordinal()] = (command, smartDevices) -> addRule(command.line(), smartDevices);
+        COMMAND_HANDLERS[Opcode.REMOVE_RULE.ordinal()] = (command, smartDevices) ->
+                removeRule(command.argument(), smartDevices);
+        COMMAND_HANDLERS[Opcode.DISPLAY_RULES.ordinal()] = (command, smartDevices) -> displayRules(smartDevices);
+        COMMAND_HANDLERS[Opcode.STATS.ordinal()] = (command, smartDevices) -> displayStats();
+        COMMAND_HANDLERS[Opcode.LIST.ordinal()] = (command, smartDevices) -> listDevices(command.line(), smartDevices);
+        COMMAND_HANDLERS[Opcode.COUNT.ordinal()] = (command, smartDevices) -> countDevices(command.line(), smartDevices);
+        COMMAND_HANDLERS[Opcode.USAGE.ordinal()] = (command, smartDevices) -> {
+            if (command.argument() == 0) {
+                displayUsage(smartDevices);
+            } else {
+                displayUsage(command.deviceName(), command.deviceId(), smartDevices);
+            }
+        };
+        COMMAND_HANDLERS[Opcode.HISTORY.ordinal()] = (command, smartDevices) -> displayHistory(command.line(), smartDevices);
+        COMMAND_HANDLERS[Opcode.VALUE_AT.ordinal()] = (command, smartDevices) -> displayValueAt(command.line(), smartDevices);
+        COMMAND_HANDLERS[Opcode.INVALID.ordinal()] = (command, smartDevices) -> printInvalidCommand();
+    }
+
+    // Command names and keywords as they appear in the input.
+    private static final byte[] END = ascii("end");
+    private static final byte[] DISPLAY_ALL_STATUS = ascii("DisplayAllStatus");
+    private static final byte[] DISPLAY_CHANGED_STATUS = ascii("DisplayChangedStatus");
+    private static final byte[] TURN_ON = ascii("TurnOn");
+    private static final byte[] TURN_OFF = ascii("TurnOff");
+    private static final byte[] START_CHARGING = ascii("StartCharging");
+    private static final byte[] STOP_CHARGING = ascii("StopCharging");
+    private static final byte[] SET_TEMPERATURE = ascii("SetTemperature");
+    private static final byte[] SET_BRIGHTNESS = ascii("SetBrightness");
+    private static final byte[] SET_COLOR = ascii("SetColor");
+    private static final byte[] SET_ANGLE = ascii("SetAngle");
+    private static final byte[] START_RECORDING = ascii("StartRecording");
+    private static final byte[] STOP_RECORDING = ascii("StopRecording");
+    private static final byte[] ADD_DEVICE = ascii("AddDevice");
+    private static final byte[] REMOVE_DEVICE = ascii("RemoveDevice");
+    private static final byte[] AT = ascii("At");
+    private static final byte[] EVERY = ascii("Every");
+    private static final byte[] CANCEL = ascii("Cancel");
+    private static final byte[] ADVANCE_CLOCK = ascii("AdvanceClock");
+    private static final byte[] WHEN = ascii("When");
+    private static final byte[] REMOVE_RULE = ascii("RemoveRule");
+    private static final byte[] DISPLAY_RULES = ascii("DisplayRules");
+    private static final byte[] STATS = ascii("Stats");
+    private static final byte[] LIST = ascii("List");
+    private static final byte[] COUNT = ascii("Count");
+    private static final byte[] USAGE = ascii("Usage");
+    private static final byte[] HISTORY = ascii("History");
+    private static final byte[] VALUE_AT = ascii("ValueAt");
+    private static final byte[] LIGHT = ascii("Light");
+    private static final byte[] CAMERA = ascii("Camera");
+    private static final byte[] HEATER = ascii("Heater");
+    private static final byte[] LOW = ascii("LOW");
+    private static final byte[] MEDIUM = ascii("MEDIUM");
+    private static final byte[] HIGH = ascii("HIGH");
+    private static final byte[] WHITE = ascii("WHITE");
+    private static final byte[] YELLOW = ascii("YELLOW");
+
+    private static byte[] ascii(String literal) {
+        return literal.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Returns the opcode named by the first term of the line.
+    private static Opcode opcodeOf(CommandTokenizer tokenizer) {
+        switch (tokenizer.termLength(0)) {
+            case 2:
+                return tokenizer.termEquals(0, AT) ? Opcode.AT : Opcode.INVALID;
+            case 3:
+                return tokenizer.termEquals(0, END) ? Opcode.END : Opcode.INVALID;
+            case 4:
+                return tokenizer.termEquals(0, WHEN) ? Opcode.WHEN
+                        : tokenizer.termEquals(0, LIST) ? Opcode.LIST : Opcode.INVALID;
+            case 5:
+                return tokenizer.termEquals(0, EVERY) ? Opcode.EVERY
+                        : tokenizer.termEquals(0, STATS) ? Opcode.STATS
+                        : tokenizer.termEquals(0, COUNT) ? Opcode.COUNT
+                        : tokenizer.termEquals(0, USAGE) ? Opcode.USAGE : Opcode.INVALID;
+            case 6:
+                return tokenizer.termEquals(0, TURN_ON) ? Opcode.TURN_ON
+                        : tokenizer.termEquals(0, CANCEL) ? Opcode.CANCEL : Opcode.INVALID;
+            case 7:
+                return tokenizer.termEquals(0, TURN_OFF) ? Opcode.TURN_OFF
+                        : tokenizer.termEquals(0, HISTORY) ? Opcode.HISTORY
+                        : tokenizer.termEquals(0, VALUE_AT) ? Opcode.VALUE_AT : Opcode.INVALID;
+            case 8:
+                return tokenizer.termEquals(0, SET_COLOR) ? Opcode.SET_COLOR
+                        : tokenizer.termEquals(0, SET_ANGLE) ? Opcode.SET_ANGLE : Opcode.INVALID;
+            case 9:
+                return tokenizer.termEquals(0, ADD_DEVICE) ? Opcode.ADD_DEVICE : Opcode.INVALID;
+            case 10:
+                return tokenizer.termEquals(0, REMOVE_RULE) ? Opcode.REMOVE_RULE : Opcode.INVALID;
+            case 12:
+                return tokenizer.termEquals(0, REMOVE_DEVICE) ? Opcode.REMOVE_DEVICE
+                        : tokenizer.termEquals(0, STOP_CHARGING) ? Opcode.STOP_CHARGING
+                        : tokenizer.termEquals(0, ADVANCE_CLOCK) ? Opcode.ADVANCE_CLOCK
+                        : tokenizer.termEquals(0, DISPLAY_RULES) ? Opcode.DISPLAY_RULES : Opcode.INVALID;
+            case 13:
+                return tokenizer.termEquals(0, START_CHARGING) ? Opcode.START_CHARGING
+                        : tokenizer.termEquals(0, SET_BRIGHTNESS) ? Opcode.SET_BRIGHTNESS
+                        : tokenizer.termEquals(0, STOP_RECORDING) ? Opcode.STOP_RECORDING : Opcode.INVALID;
+            case 14:
+                return tokenizer.termEquals(0, SET_TEMPERATURE) ? Opcode.SET_TEMPERATURE
+                        : tokenizer.termEquals(0, START_RECORDING) ? Opcode.START_RECORDING : Opcode.INVALID;
+            case 16:
+                return tokenizer.termEquals(0, DISPLAY_ALL_STATUS) ? Opcode.DISPLAY_ALL_STATUS : Opcode.INVALID;
+            case 20:
+                return tokenizer.termEquals(0, DISPLAY_CHANGED_STATUS) ? Opcode.DISPLAY_CHANGED_STATUS : Opcode.INVALID;
+            default:
+                return Opcode.INVALID;
+        }
+    }
+
+    // Returns the type named by the device name term, or null for any other name.
+    private static DeviceType deviceTypeOf(CommandTokenizer tokenizer) {
+        if (tokenizer.termEquals(1, LIGHT)) {
+            return DeviceType.LIGHT;
+        }
+        if (tokenizer.termEquals(1, CAMERA)) {
+            return DeviceType.CAMERA;
+        }
+        if (tokenizer.termEquals(1, HEATER)) {
+            return DeviceType.HEATER;
+        }
+        return null;
+    }
+
+    // Parses the current line of the tokenizer, which must be an ASCII line, into a command.
+    public static Command parseCommand(CommandTokenizer tokenizer) {
+        if (tokenizer.termCount() == 0) {
+            return Command.INVALID; // A line of spaces has no command at all
+        }
+        Opcode opcode = opcodeOf(tokenizer);
+        switch (opcode) {
+            case END:
+            case INVALID:
+                return Command.of(opcode);
+            case DISPLAY_ALL_STATUS:
+            case DISPLAY_RULES:
+            case STATS:
+                return tokenizer.termCount() == opcode.getNumberOfFields() ? Command.of(opcode) : Command.INVALID;
+            case DISPLAY_CHANGED_STATUS:
+                long sinceVersion = tokenizer.termCount() == opcode.getNumberOfFields()
+                        ? tokenizer.parseNumber(1) : CommandTokenizer.NOT_A_NUMBER;
+                return sinceVersion == CommandTokenizer.NOT_A_NUMBER
+                        ? Command.INVALID : new Command(opcode, null, 0, (int) sinceVersion, null);
+            case ADD_DEVICE:
+                return tokenizer.termCount() == opcode.getNumberOfFields()
+                        ? new Command(opcode, deviceTypeOf(tokenizer), 0, 0, null) : Command.INVALID;
+            case AT:
+            case EVERY:
+                return parseScheduleCommand(opcode, tokenizer.lineAsString());
+            case WHEN:
+                return parseRuleCommand(tokenizer.lineAsString());
+            case LIST:
+            case COUNT:
+            case HISTORY:
+            case VALUE_AT:
+                return parseQueryCommand(opcode, tokenizer.lineAsString());
+            case USAGE:
+                if (tokenizer.termCount() == 1) {
+                    return Command.of(opcode);
+                }
+                long usageDeviceId = tokenizer.termCount() == 3 ? tokenizer.parseNumber(2) : CommandTokenizer.NOT_A_NUMBER;
+                return usageDeviceId == CommandTokenizer.NOT_A_NUMBER
+                        ? Command.INVALID : new Command(opcode, deviceTypeOf(tokenizer), (int) usageDeviceId, 1, null);
+            case CANCEL:
+            case ADVANCE_CLOCK:
+            case REMOVE_RULE:
+                long number = tokenizer.termCount() == opcode.getNumberOfFields()
+                        ? tokenizer.parseNumber(1) : CommandTokenizer.NOT_A_NUMBER;
+                return number == CommandTokenizer.NOT_A_NUMBER || number < 0
+                        ? Command.INVALID : new Command(opcode, null, 0, (int) number, null);
+            default:
+                break;
+        }
+        if (opcode.isDeviceCommand() && tokenizer.termCount() >= 3 && isDeviceSelector(tokenizer, 2)) {
+            return new Command(Opcode.BULK, null, 0, 0, tokenizer.lineAsString());
+        }
+
+        long deviceId = tokenizer.termCount() == opcode.getNumberOfFields()
+                ? tokenizer.parseNumber(2) : CommandTokenizer.NOT_A_NUMBER;
+        if (deviceId == CommandTokenizer.NOT_A_NUMBER) {
+            return Command.INVALID;
+        }
+        int argument = 0;
+        switch (opcode) {
+            case SET_TEMPERATURE:
+            case SET_ANGLE:
+                long value = tokenizer.parseNumber(3);
+                if (value == CommandTokenizer.NOT_A_NUMBER) {
+                    return Command.INVALID;
+                }
+                argument = (int) value;
+                break;
+            case SET_BRIGHTNESS:
+                argument = tokenizer.termEquals(3, LOW) ? BrightnessLevel.LOW.ordinal()
+                        : tokenizer.termEquals(3, MEDIUM) ? BrightnessLevel.MEDIUM.ordinal()
+                        : tokenizer.termEquals(3, HIGH) ? BrightnessLevel.HIGH.ordinal() : -1;
+                break;
+            case SET_COLOR:
+                argument = tokenizer.termEquals(3, WHITE) ? LightColor.WHITE.ordinal()
+                        : tokenizer.termEquals(3, YELLOW) ? LightColor.YELLOW.ordinal() : -1;
+                break;
+            default:
+                break;
+        }
+        return new Command(opcode, deviceTypeOf(tokenizer), (int) deviceId, argument, null);
+    }
+
+    // Parses a decoded line into a command, the same way as the tokenizer does it.
+    public static Command parseCommand(String commandLine) {
+        String[] commandTerms = commandLine.split(" "); // Split input into command terms
+        if (commandTerms.length == 0) {
+            return Command.INVALID; // A line of spaces has no command at all
+        }
+        Opcode opcode = Opcode.fromName(commandTerms[0]);
+        switch (opcode) {
+            case END:
+            case INVALID:
+                return Command.of(opcode);
+            case DISPLAY_ALL_STATUS:
+            case DISPLAY_RULES:
+            case STATS:
+                return commandTerms.length == opcode.getNumberOfFields() ? Command.of(opcode) : Command.INVALID;
+            case DISPLAY_CHANGED_STATUS:
+                return commandTerms.length == opcode.getNumberOfFields() && !isNotNumber(commandTerms[1])
+                        ? new Command(opcode, null, 0, Integer.parseInt(commandTerms[1]), null) : Command.INVALID;
+            case ADD_DEVICE:
+                return commandTerms.length == opcode.getNumberOfFields()
+                        ? new Command(opcode, DeviceType.fromName(commandTerms[1]), 0, 0, null) : Command.INVALID;
+            case AT:
+            case EVERY:
+                return parseScheduleCommand(opcode, commandLine);
+            case WHEN:
+                return parseRuleCommand(commandLine);
+            case LIST:
+            case COUNT:
+            case HISTORY:
+            case VALUE_AT:
+                return parseQueryCommand(opcode, commandLine);
+            case USAGE:
+                if (commandTerms.length == 1) {
+                    return Command.of(opcode);
+                }
+                return commandTerms.length == 3 && !isNotNumber(commandTerms[2])
+                        ? new Command(opcode, DeviceType.fromName(commandTerms[1]), Integer.parseInt(commandTerms[2]), 1, null)
+                        : Command.INVALID;
+            case CANCEL:
+            case ADVANCE_CLOCK:
+            case REMOVE_RULE:
+                return commandTerms.length == opcode.getNumberOfFields() && !isNotNumber(commandTerms[1])
+                        && Integer.parseInt(commandTerms[1]) >= 0
+                        ? new Command(opcode, null, 0, Integer.parseInt(commandTerms[1]), null) : Command.INVALID;
+            default:
+                break;
+        }
+        if (opcode.isDeviceCommand() && commandTerms.length >= 3 && isDeviceSelector(commandTerms[2])) {
+            return new Command(Opcode.BULK, null, 0, 0, commandLine);
+        }
+
+        if (commandTerms.length != opcode.getNumberOfFields() || isNotNumber(commandTerms[2])) {
+            return Command.INVALID;
+        }
+        int argument = 0;
+        switch (opcode) {
+            case SET_TEMPERATURE:
+            case SET_ANGLE:
+                if (isNotNumber(commandTerms[3])) {
+                    return Command.INVALID;
+                }
+                argument = Integer.parseInt(commandTerms[3]);
+                break;
+            case SET_BRIGHTNESS:
+                argument = keywordOrdinal(commandTerms[3], BRIGHTNESS_LEVELS);
+                break;
+            case SET_COLOR:
+                argument = keywordOrdinal(commandTerms[3], LIGHT_COLORS);
+                break;
+            default:
+                break;
+        }
+        return new Command(opcode, DeviceType.fromName(commandTerms[1]), Integer.parseInt(commandTerms[2]),
+                argument, null);
     }
 
-    // Method to stop charging a chargeable device
-    public static void stopCharging(String[] commandTerms, SmartDevice[] smartDevices) {
-        final int numberOfFields = 3;
+    // Parses "At HH:MM <command>" or "Every <minutes> <command>". The scheduled command is
+    // kept as a line and parsed when it is scheduled.
+    private static Command parseScheduleCommand(Opcode opcode, String commandLine) {
+        String[] commandTerms = commandLine.split(" ", 3);
+        if (commandTerms.length < 3) {
+            return Command.INVALID;
+        }
+        int argument;
+        if (opcode == Opcode.AT) {
+            argument = parseTimeOfDay(commandTerms[1]);
+        } else {
+            argument = isNotNumber(commandTerms[1]) ? -1 : Integer.parseInt(commandTerms[1]);
+            if (argument == 0) {
+                argument = -1; // A task can't repeat without the time moving on
+            }
+        }
+        return argument < 0 ? Command.INVALID : new Command(opcode, null, 0, argument, commandTerms[2]);
+    }
 
-        // Validate command input
-        if (commandTerms.length != numberOfFields || isNotNumber(commandTerms[2])) {
-            printInvalidCommand();
-            return;
+    // Parses "When <rule>". The rule is kept as a line and parsed when it is added.
+    private static Command parseRuleCommand(String commandLine) {
+        return commandLine.split(" ").length >= Opcode.WHEN.getNumberOfFields()
+                ? new Command(Opcode.WHEN, null, 0, 0, commandLine.substring(commandLine.indexOf(' ') + 1))
+                : Command.INVALID;
+    }
+
+    // Parses "List <query>" or "Count <query>", and History and ValueAt. The query or the
+    // arguments are kept as a line and parsed when the command runs.
+    private static Command parseQueryCommand(Opcode opcode, String commandLine) {
+        int space = commandLine.indexOf(' ');
+        return new Command(opcode, null, 0, 0, space < 0 ? "" : commandLine.substring(space + 1));
+    }
+
+    // Parses a time of the scheduler's clock written as D:HH:MM or D:HH:MM:SS, day D at
+    // HH:MM and SS seconds, into seconds, or returns -1.
+    private static long parseClockTime(String time) {
+        int colon = time.indexOf(':');
+        if (colon <= 0 || isNotNumber(time.substring(0, colon)) || time.charAt(0) == '-') {
+            return -1;
+        }
+        String timeOfDay = time.substring(colon + 1);
+        int second = 0;
+        if (timeOfDay.length() == 8 && timeOfDay.charAt(5) == ':') {
+            second = Character.isDigit(timeOfDay.charAt(6)) && Character.isDigit(timeOfDay.charAt(7))
+                    ? Integer.parseInt(timeOfDay.substring(6)) : 60;
+            timeOfDay = timeOfDay.substring(0, 5);
+        }
+        int minuteOfDay = parseTimeOfDay(timeOfDay);
+        if (minuteOfDay < 0 || second >= 60) {
+            return -1;
         }
+        return (Integer.parseInt(time.substring(0, colon)) * (long) CommandScheduler.MINUTES_PER_DAY + minuteOfDay) * 60
+                + second;
+    }
 
-        String deviceName = commandTerms[1];
-        int deviceId = Integer.parseInt(commandTerms[2]);
+    // Parses a time of day written as HH:MM into minutes after midnight, or returns -1.
+    private static int parseTimeOfDay(String time) {
+        if (time.length() != 5 || time.charAt(2) != ':') {
+            return -1;
+        }
+        int hours = Character.digit(time.charAt(0), 10) * 10 + Character.digit(time.charAt(1), 10);
+        int minutes = Character.digit(time.charAt(3), 10) * 10 + Character.digit(time.charAt(4), 10);
+        boolean digits = Character.isDigit(time.charAt(0)) && Character.isDigit(time.charAt(1))
+                && Character.isDigit(time.charAt(3)) && Character.isDigit(time.charAt(4));
+        return digits && hours < 24 && minutes < 60 ? hours * 60 + minutes : -1;
+    }
 
-        // Check if the device exists in the system
-        if (isNotThereInSystem(deviceName, deviceId)) {
-            return;
+    // Runs a command through the dispatch table. Returns false when the "end" command is issued.
+    public static boolean executeCommand(Command command, DeviceStore smartDevices) {
+        if (command.opcode() == Opcode.END) {
+            return false;
+        }
+        CommandHandler handler = COMMAND_HANDLERS[command.opcode().ordinal()];
+        if (COMMAND_STATS.isTiming()) {
+            long start = System.nanoTime();
+            handler.execute(command, smartDevices);
+            COMMAND_STATS.record(command.opcode(), System.nanoTime() - start);
+        } else {
+            handler.execute(command, smartDevices);
         }
+        smartDevices.rules().runActions(); // Run what the changes made by the command fired
+        return true;
+    }
 
-        smartDevices[deviceId].setDeviceId(deviceId);
+    // Runs a batch of commands that were parsed ahead of time, up to the "end" command.
+    // Returns false if the "end" command was reached.
+    public static boolean executeCommands(List<Command> commands, DeviceStore smartDevices) {
+        for (Command command : commands) {
+            if (!executeCommand(command, smartDevices)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        // Check if the device is chargeable
-        if (!(smartDevices[deviceId] instanceof Chargeable)) {
-            System.out.println(deviceName + " " + deviceId + " is not chargeable");
-            return;
+    // Executes the current line of the tokenizer. Returns false when the "end" command is issued.
+    public static boolean executeCommand(CommandTokenizer tokenizer, DeviceStore smartDevices) {
+        if (!tokenizer.isAsciiLine()) {
+            return executeCommandLines(tokenizer.lineAsString(), smartDevices);
         }
+        return executeCommand(parseCommand(tokenizer), smartDevices);
+    }
 
-        // Stop charging
-        if (((Chargeable) smartDevices[deviceId]).stopCharging()) {
-            System.out.println(deviceName + " " + deviceId + " stopped charging");
+    // Line separators that Scanner recognizes besides '\n' and '\r'.
+    private static final String UNICODE_LINE_SEPARATORS = "[\u2028\u2029\u0085]";
+
+    // Executes a decoded line the way the Scanner based loop did. Scanner also ends
+    // lines at the Unicode separators, so each part is handled as its own command.
+    // Returns false when the "end" command is issued.
+    public static boolean executeCommandLines(String commandLines, DeviceStore smartDevices) {
+        for (String commandLine : commandLines.split(UNICODE_LINE_SEPARATORS, -1)) {
+            if (!executeCommandLine(commandLine, smartDevices)) {
+                return false;
+            }
         }
+        return true;
     }
 
-    // Method to set the temperature of a Heater device
-    public static void setTemperature(String[] commandTerms, SmartDevice[] smartDevices) {
-        final int numberOfFields = 4;
+    public static boolean executeCommandLine(String commandLine, DeviceStore smartDevices) {
+        return executeCommand(parseCommand(commandLine), smartDevices);
+    }
 
-        // Validate command input: must have 4 terms, and the 3rd and 4th terms must be numbers
-        if (commandTerms.length != numberOfFields || isNotNumber(commandTerms[2]) || isNotNumber(commandTerms[3])) {
-            printInvalidCommand();
-            return;
+    // Scheduler of deferred and recurring commands, kept on a hierarchical timing wheel.
+    // Time is counted in minutes from 00:00 of day 0, and the scheduler is the clock the
+    // history and the usage meter of its store read as well. A real-time scheduler starts
+    // at the local time of day it is created at and follows System.nanoTime, a ClockTicker
+    // moves its wheel along, and AdvanceClock skips time on top. A simulated one, for tests
+    // and replays, only moves when advanceTo is called, so the runs are deterministic and
+    // the clock can be fast-forwarded over days in one call. Schedulers are simulated unless
+    // setRealTime says otherwise. Each of the four levels has 64 slots, a slot of level L spans
+    // 64^L minutes, so the wheel reaches about 31 years ahead. A task sits in the linked
+    // list of the slot its deadline falls into, which makes scheduling and canceling O(1).
+    // When the clock reaches the start of a slot of a higher level, its tasks move down to
+    // the levels below. Runs of empty slots are skipped with a bitmap of the occupied slots.
+    // Not thread-safe, the executors run the commands of the scheduler under all locks.
+    public static final class CommandScheduler {
+        private static final int SLOT_BITS = 6;
+        private static final int SLOTS = 1 << SLOT_BITS;
+        private static final int SLOT_MASK = SLOTS - 1;
+        private static final int LEVELS = 4;
+        private static final long SPAN = 1L << (SLOT_BITS * LEVELS); // Minutes the wheel reaches ahead.
+        private static final int MINUTES_PER_DAY = 24 * 60;
+        private static final long MILLIS_PER_MINUTE = 60_000;
+        private static final Comparator<Task> BY_TASK_ID = Comparator.comparingInt(task -> task.taskId);
+
+        // Scheduled command, linked into the list of its slot. The heads of the lists are
+        // tasks without a command.
+        private static final class Task {
+            private int taskId;
+            private Command command;
+            private long deadline; // Minute of the next run.
+            private int period; // Minutes between the runs, 0 for a task that runs once.
+            private int slot; // Index of the list the task is in.
+            private Task previous = this;
+            private Task next = this;
         }
 
-        String deviceName = commandTerms[1];
-        int deviceId = Integer.parseInt(commandTerms[2]);
+        private final Task[] slots = new Task[LEVELS * SLOTS];
+        private final long[] occupied = new long[LEVELS]; // Bit per slot with tasks, for each level.
+        private Task[] tasks = new Task[64]; // Tasks by ID, null once run or canceled.
+        private Task[] due = new Task[64]; // Tasks of the slot being run.
+        private int nextTaskId = 1;
+        private volatile long now; // Minute the wheel is at, read from any thread.
+        private final boolean realTime;
+        private final long startNanos = System.nanoTime();
+        private final long originMillis; // Time of day 0 the real clock started at.
+        private volatile long skippedMillis; // Time the real clock was fast-forwarded by.
+
+        private static volatile boolean realTimeByDefault;
+
+        public CommandScheduler() {
+            this(realTimeByDefault);
+        }
 
-        // Check if the device exists in the system
-        if (isNotThereInSystem(deviceName, deviceId)) {
-            return;
+        public CommandScheduler(boolean realTime) {
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new Task();
+            }
+            this.realTime = realTime;
+            this.originMillis = realTime ? LocalTime.now().toNanoOfDay() / 1_000_000 : 0;
+            this.now = originMillis / MILLIS_PER_MINUTE;
         }
 
-        smartDevices[deviceId].setDeviceId(deviceId);
+        // Makes the schedulers created from now on, the ones of new stores, follow real time.
+        public static void setRealTime(boolean realTime) {
+            realTimeByDefault = realTime;
+        }
 
-        // Check if the device is a Heater
-        if (!(smartDevices[deviceId] instanceof Heater)) {
-            System.out.println(deviceName + " " + deviceId + " is not a heater");
-            return;
+        public boolean isRealTime() {
+            return realTime;
         }
 
-        int temperature = Integer.parseInt(commandTerms[3]);
+        public long now() {
+            return now;
+        }
 
-        // Check access status and attempt to set temperature
-        if (smartDevices[deviceId].checkStatusAccess()) {
-            if (((Heater) smartDevices[deviceId]).setTemperature(temperature)) {
-                System.out.println(deviceName + " " + deviceId + " temperature is set to " + temperature);
-            } else {
-                System.out.println("Heater " + deviceId + " temperature should be in the range [15, 30]");
+        // Milliseconds since 00:00 of day 0. A simulated clock is at the start of its minute,
+        // a real-time one may be ahead of the wheel until the ticker catches the wheel up.
+        public long millis() {
+            if (!realTime) {
+                return now * MILLIS_PER_MINUTE;
             }
-        } else {
-            printNotStatusAccess(deviceName, deviceId);
+            return originMillis + skippedMillis + (System.nanoTime() - startNanos) / 1_000_000;
         }
-    }
 
-    // Method to set the brightness level of a Light device
-    public static void setBrightness(String[] commandTerms, SmartDevice[] smartDevices) {
-        final int numberOfFields = 4;
+        public long seconds() {
+            return millis() / 1000;
+        }
 
-        // Validate command input
-        if (commandTerms.length != numberOfFields || isNotNumber(commandTerms[2])) {
-            printInvalidCommand();
-            return;
+        // Milliseconds from now to the start of the next minute of the clock.
+        public long millisToNextMinute() {
+            return MILLIS_PER_MINUTE - Math.floorMod(millis(), MILLIS_PER_MINUTE);
         }
 
-        String deviceName = commandTerms[1];
-        int deviceId = Integer.parseInt(commandTerms[2]);
+        // Moves the clock forward by the given minutes, running the tasks that fall due on the
+        // way. A real-time clock keeps running from the time it was moved to.
+        public void fastForward(int minutes, DeviceStore smartDevices) {
+            if (realTime) {
+                skippedMillis += minutes * MILLIS_PER_MINUTE;
+                catchUp(smartDevices);
+            } else {
+                advanceTo(now + minutes, smartDevices);
+            }
+        }
 
-        // Check if the device exists in the system
-        if (isNotThereInSystem(deviceName, deviceId)) {
-            return;
+        // Moves the wheel of a real-time clock to the current minute, running the tasks that
+        // fell due since it last moved.
+        public void catchUp(DeviceStore smartDevices) {
+            if (realTime) {
+                advanceTo(millis() / MILLIS_PER_MINUTE, smartDevices);
+            }
         }
 
-        smartDevices[deviceId].setDeviceId(deviceId);
+        // Returns the next minute, after the current one, at the given time of day.
+        public long nextTimeOfDay(int minuteOfDay) {
+            long today = now - now % MINUTES_PER_DAY;
+            return today + minuteOfDay > now ? today + minuteOfDay : today + MINUTES_PER_DAY + minuteOfDay;
+        }
 
-        // Check if the device is a Light
-        if (!(smartDevices[deviceId] instanceof Light)) {
-            System.out.println(deviceName + " " + deviceId + " is not a light");
-            return;
+        // Schedules a command to run at the given minute, which must be after the current
+        // one, and then every period minutes if the period isn't 0. Returns the task ID.
+        public int schedule(Command command, long deadline, int period) {
+            Task task = new Task();
+            task.taskId = nextTaskId++;
+            task.command = command;
+            task.deadline = deadline;
+            task.period = period;
+            if (task.taskId >= tasks.length) {
+                tasks = Arrays.copyOf(tasks, tasks.length * 2);
+            }
+            tasks[task.taskId] = task;
+            insert(task);
+            return task.taskId;
         }
 
-        // Parse the brightness level
-        BrightnessLevel brightnessLevel;
-        switch (commandTerms[3]) {
-            case "LOW":
-                brightnessLevel = BrightnessLevel.LOW;
-                break;
-            case "MEDIUM":
-                brightnessLevel = BrightnessLevel.MEDIUM;
-                break;
-            case "HIGH":
-                brightnessLevel = BrightnessLevel.HIGH;
-                break;
-            default:
-                System.out.println("The brightness can only be one of \"LOW\", \"MEDIUM\", or \"HIGH\"");
-                return;
+        // Cancels a task. Returns false if there is no such task or it won't run again.
+        public boolean cancel(int taskId) {
+            Task task = taskId < tasks.length ? tasks[taskId] : null;
+            if (task == null) {
+                return false;
+            }
+            tasks[taskId] = null;
+            unlink(task);
+            return true;
         }
 
-        // Check access status or charging status, and set brightness level
-        if (smartDevices[deviceId].checkStatusAccess() || ((Light) smartDevices[deviceId]).isCharging()) {
-            ((Light) smartDevices[deviceId]).setBrightnessLevel(brightnessLevel);
-        } else {
-            printNotStatusAccess(deviceName, deviceId);
+        // Moves the clock to the given minute, running the tasks that fall due on the way on
+        // the given store, in the order of their minutes and then of their task IDs.
+        public void advanceTo(long time, DeviceStore smartDevices) {
+            for (long next = nextEvent(); next <= time; next = nextEvent()) {
+                now = next;
+                for (int level = LEVELS - 1; level > 0; level--) {
+                    if ((now & ((1L << (level * SLOT_BITS)) - 1)) == 0) {
+                        cascade(level);
+                    }
+                }
+                runDueTasks(smartDevices);
+            }
+            now = Math.max(now, time);
         }
-    }
 
-    // Method to set the color of a Light device
-    public static void setColor(String[] commandTerms, SmartDevice[] smartDevices) {
-        final int numberOfFields = 4;
+        // Formats a minute of the clock as "day D HH:MM".
+        public static String formatTime(long time) {
+            long minuteOfDay = time % MINUTES_PER_DAY;
+            return String.format("day %d %02d:%02d", time / MINUTES_PER_DAY, minuteOfDay / 60, minuteOfDay % 60);
+        }
 
-        // Validate command input
-        if (commandTerms.length != numberOfFields || isNotNumber(commandTerms[2])) {
-            printInvalidCommand();
-            return;
+        // Formats a second of the clock as "day D HH:MM:SS".
+        public static String formatSeconds(long seconds) {
+            return formatTime(seconds / 60) + String.format(":%02d", seconds % 60);
         }
 
-        String deviceName = commandTerms[1];
-        int deviceId = Integer.parseInt(commandTerms[2]);
+        // Returns the next minute at which a slot is due to run or to move down a level.
+        private long nextEvent() {
+            long next = Long.MAX_VALUE;
+            for (int level = 0; level < LEVELS; level++) {
+                if (occupied[level] == 0) {
+                    continue;
+                }
+                int shift = level * SLOT_BITS;
+                long block = (now >>> shift) + 1; // First slot that is not due yet on this level.
+                long rotated = Long.rotateRight(occupied[level], (int) (block & SLOT_MASK));
+                next = Math.min(next, (block + Long.numberOfTrailingZeros(rotated)) << shift);
+            }
+            return next;
+        }
 
-        // Check if the device exists in the system
-        if (isNotThereInSystem(deviceName, deviceId)) {
-            return;
+        // Puts a task into the slot of its deadline, on the lowest level that reaches it.
+        private void insert(Task task) {
+            long delay = Math.min(Math.max(task.deadline - now, 0), SPAN - 1);
+            int level = (63 - Long.numberOfLeadingZeros(delay)) / SLOT_BITS; // -1 / 6 is level 0 for no delay
+            int index = (int) (((now + delay) >>> (level * SLOT_BITS)) & SLOT_MASK);
+            task.slot = level * SLOTS + index;
+            Task head = slots[task.slot];
+            task.previous = head.previous;
+            task.next = head;
+            head.previous.next = task;
+            head.previous = task;
+            occupied[level] |= 1L << index;
         }
 
-        smartDevices[deviceId].setDeviceId(deviceId);
+        private void unlink(Task task) {
+            task.previous.next = task.next;
+            task.next.previous = task.previous;
+            Task head = slots[task.slot];
+            if (head.next == head) {
+                occupied[task.slot / SLOTS] &= ~(1L << (task.slot & SLOT_MASK));
+            }
+            task.previous = task;
+            task.next = task;
+        }
 
-        // Check if the device is a Light
-        if (!(smartDevices[deviceId] instanceof Light)) {
-            System.out.println(deviceName + " " + deviceId + " is not a light");
-            return;
+        // Takes the tasks out of a slot and returns how many were moved into the due array.
+        private int takeSlot(int level, long time) {
+            int slot = level * SLOTS + (int) ((time >>> (level * SLOT_BITS)) & SLOT_MASK);
+            Task head = slots[slot];
+            int count = 0;
+            while (head.next != head) {
+                Task task = head.next;
+                unlink(task);
+                if (count == due.length) {
+                    due = Arrays.copyOf(due, count * 2);
+                }
+                due[count++] = task;
+            }
+            return count;
         }
 
-        // Parse the light color
-        LightColor lightColor;
-        switch (commandTerms[3]) {
-            case "WHITE":
-                lightColor = LightColor.WHITE;
-                break;
-            case "YELLOW":
-                lightColor = LightColor.YELLOW;
-                break;
-            default:
-                System.out.println("The light color can only be \"YELLOW\" or \"WHITE\"");
-                return;
+        // Moves the tasks of the slot of a higher level that starts now to the levels below.
+        private void cascade(int level) {
+            int count = takeSlot(level, now);
+            for (int i = 0; i < count; i++) {
+                insert(due[i]);
+                due[i] = null;
+            }
         }
 
-        // Check access status or charging status, and set light color
-        if (smartDevices[deviceId].checkStatusAccess() || ((Light) smartDevices[deviceId]).isCharging()) {
-            ((Light) smartDevices[deviceId]).setLightColor(lightColor);
-        } else {
-            printNotStatusAccess(deviceName, deviceId);
+        private void runDueTasks(DeviceStore smartDevices) {
+            int count = takeSlot(0, now);
+            Arrays.sort(due, 0, count, BY_TASK_ID);
+            for (int i = 0; i < count; i++) {
+                Task task = due[i];
+                due[i] = null;
+                if (task.period > 0) {
+                    task.deadline += task.period;
+                    insert(task);
+                } else {
+                    tasks[task.taskId] = null;
+                }
+                executeCommand(task.command, smartDevices); // Scheduled commands never reach the scheduler
+            }
         }
     }
 
-    // Method to set the angle of a Camera device
-    public static void setAngle(String[] commandTerms, SmartDevice[] smartDevices) {
-        final int numberOfFields = 4;
-
-        // Validate command input
-        if (commandTerms.length != numberOfFields || isNotNumber(commandTerms[2]) || isNotNumber(commandTerms[3])) {
-            printInvalidCommand();
-            return;
+    // Thread that moves a real-time scheduler along with the clock: at the start of every
+    // minute it runs the tasks that fell due and drops the history past its retention. The
+    // commands of the store must not run meanwhile, so the tick goes through the runner of
+    // the executor that runs them, which runs it exclusively and lets it print where the
+    // commands print.
+    public static final class ClockTicker implements Closeable {
+        private static final long MARGIN_MILLIS = 5; // Wakes up after the minute has started.
+
+        private final DeviceStore smartDevices;
+        private final Consumer<Runnable> exclusively;
+        private final Thread thread;
+        private boolean closed;
+
+        private ClockTicker(DeviceStore smartDevices, Consumer<Runnable> exclusively) {
+            this.smartDevices = smartDevices;
+            this.exclusively = exclusively;
+            this.thread = new Thread(this::run, "clock-ticker");
+            thread.setDaemon(true);
         }
 
-        String deviceName = commandTerms[1];
-        int deviceId = Integer.parseInt(commandTerms[2]);
-
-        // Check if the device exists in the system
-        if (isNotThereInSystem(deviceName, deviceId)) {
-            return;
+        // Starts a ticker for the store if its scheduler follows real time, returns null if not.
+        public static ClockTicker start(DeviceStore smartDevices, Consumer<Runnable> exclusively) {
+            if (!smartDevices.scheduler().isRealTime()) {
+                return null;
+            }
+            ClockTicker ticker = new ClockTicker(smartDevices, exclusively);
+            ticker.thread.start();
+            return ticker;
         }
 
-        smartDevices[deviceId].setDeviceId(deviceId);
+        // Returns the System.nanoTime at which the next minute of the scheduler has started.
+        public static long nextTickNanos(CommandScheduler scheduler) {
+            return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(scheduler.millisToNextMinute() + MARGIN_MILLIS);
+        }
 
-        // Check if the device is a Camera
-        if (!(smartDevices[deviceId] instanceof Camera)) {
-            System.out.println(deviceName + " " + deviceId + " is not a camera");
-            return;
+        // Catches the clock of the store up and writes out what its tasks printed.
+        public static void tick(DeviceStore smartDevices) {
+            smartDevices.scheduler().catchUp(smartDevices);
+            smartDevices.history().prune();
+            responseSink().flush();
         }
 
-        int angle = Integer.parseInt(commandTerms[3]);
+        // Sleeps on the monitor rather than being interrupted, which would close the journal.
+        private void run() {
+            while (true) {
+                synchronized (this) {
+                    try {
+                        for (long end = nextTickNanos(smartDevices.scheduler());
+                             !closed && end - System.nanoTime() > 0; ) {
+                            TimeUnit.NANOSECONDS.timedWait(this, end - System.nanoTime());
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (closed) {
+                        return;
+                    }
+                }
+                exclusively.accept(() -> tick(smartDevices));
+            }
+        }
 
-        // Check access status or charging status, and set camera angle
-        if (smartDevices[deviceId].checkStatusAccess() || ((Camera) smartDevices[deviceId]).isCharging()) {
-            if (((Camera) smartDevices[deviceId]).setCameraAngle(angle)) {
-                System.out.println(deviceName + " " + deviceId + " angle is set to " + angle);
-            } else {
-                System.out.println("Camera " + deviceId + " angle should be in the range [-60, 60]");
+        // Stops the ticker, after the tick it may be running.
+        public void close() {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        } else {
-            printNotStatusAccess(deviceName, deviceId);
         }
     }
 
-    public static void startRecording(String[] commandTerms, SmartDevice[] smartDevices) {
-        // Define the required number of fields for the command
-        final int numberOfFields = 3;
+    // Engine of the rules that run a command when a field of a device starts to meet a
+    // condition, like "When Heater * TEMPERATURE > 28 TurnOff Heater $". It listens to the
+    // changes of its store and keeps the rules indexed by field, so a change only evaluates
+    // the rules on the field that changed, against the old and the new value. A rule fires
+    // when its condition turns true for a device. The commands of the rules that fired are
+    // queued and run after the command that made the change, and may fire rules in turn.
+    // A chain of rules MAX_DEPTH deep is taken for a loop and stopped, and the commands of
+    // one input command run at most MAX_ACTIONS rules. Each rule counts its evaluations and
+    // actions and the time they took.
+    public static final class RuleEngine implements DeviceChangeListener {
+        public static final int MAX_DEPTH = 8;
+        public static final int MAX_ACTIONS = 1000;
+        private static final Rule[] NO_RULES = new Rule[0];
+
+        // Comparison of the value of a field with the value of a rule.
+        public enum Comparison {
+            EQUAL("="), NOT_EQUAL("!="), LESS("<"), LESS_OR_EQUAL("<="), GREATER(">"), GREATER_OR_EQUAL(">=");
+
+            private final String symbol;
+
+            Comparison(String symbol) {
+                this.symbol = symbol;
+            }
 
-        // Validate the command length and the third field as a number
-        if (commandTerms.length != numberOfFields || isNotNumber(commandTerms[2])) {
-            printInvalidCommand(); // Print error if command is invalid
-            return; // Exit the method
+            public boolean test(int left, int right) {
+                switch (this) {
+                    case EQUAL:
+                        return left == right;
+                    case NOT_EQUAL:
+                        return left != right;
+                    case LESS:
+                        return left < right;
+                    case LESS_OR_EQUAL:
+                        return left <= right;
+                    case GREATER:
+                        return left > right;
+                    default:
+                        return left >= right;
+                }
+            }
+
+            // Returns the comparison written with the given symbol, or null.
+            public static Comparison fromSymbol(String symbol) {
+                for (Comparison comparison : values()) {
+                    if (comparison.symbol.equals(symbol)) {
+                        return comparison;
+                    }
+                }
+                return null;
+            }
         }
 
-        // Extract device name and ID from the command
-        String deviceName = commandTerms[1];
-        int deviceId = Integer.parseInt(commandTerms[2]);
+        public static final class Rule {
+            private final int ruleId;
+            private final String text; // The rule as it was given.
+            private final DeviceType deviceType;
+            private final int from; // First and last device ID the rule applies to.
+            private final int to;
+            private final DeviceField field;
+            private final Comparison comparison;
+            private final int value;
+            private final Command action;
+            private final boolean onFiringDevice; // The action runs on the device that fired the rule.
+            private long evaluations;
+            private long actions;
+            private long stopped;
+            private long nanos;
+
+            private Rule(int ruleId, String text, DeviceType deviceType, int from, int to, DeviceField field,
+                         Comparison comparison, int value, Command action, boolean onFiringDevice) {
+                this.ruleId = ruleId;
+                this.text = text;
+                this.deviceType = deviceType;
+                this.from = from;
+                this.to = to;
+                this.field = field;
+                this.comparison = comparison;
+                this.value = value;
+                this.action = action;
+                this.onFiringDevice = onFiringDevice;
+            }
 
-        // Check if the device exists in the system
-        if (isNotThereInSystem(deviceName, deviceId)) {
-            return; // Exit if the device is not found
+            public int getRuleId() {
+                return ruleId;
+            }
+
+            public String getText() {
+                return text;
+            }
+
+            public long getEvaluations() {
+                return evaluations;
+            }
+
+            public long getActions() {
+                return actions;
+            }
+
+            public long getStopped() {
+                return stopped;
+            }
+
+            public long getNanos() {
+                return nanos;
+            }
+
+            // Returns the command to run when the rule fired for the given device.
+            private Command actionFor(int deviceId) {
+                return onFiringDevice
+                        ? new Command(action.opcode(), action.deviceType(), deviceId, action.argument(), action.line())
+                        : action;
+            }
         }
 
-        // Set the device ID in the smart device instance
-        smartDevices[deviceId].setDeviceId(deviceId);
+        private final DeviceStore smartDevices;
+        // Rules by ID and by field, replaced as a whole on every change so that listeners
+        // on other threads can read them without a lock.
+        private volatile Rule[] rules = NO_RULES;
+        private volatile Rule[][] rulesByField = new Rule[DeviceField.values().length][];
+        private int nextRuleId = 1;
+
+        // Rules that fired and still have to run, with the device and the depth of the chain.
+        private Rule[] pendingRules = new Rule[16];
+        private int[] pendingDevices = new int[16];
+        private int[] pendingDepths = new int[16];
+        private volatile int pendingCount;
+        private boolean running; // Whether runActions is running the commands of the rules.
+        private int depth; // Depth of the rule being run.
+
+        public RuleEngine(DeviceStore smartDevices) {
+            this.smartDevices = smartDevices;
+            Arrays.fill(rulesByField, NO_RULES);
+        }
 
-        // Check if the device is of type Camera
-        if (!(smartDevices[deviceId] instanceof Camera)) {
-            System.out.println(deviceName + " " + deviceId + " is not a camera"); // Error if not a camera
-            return; // Exit the method
+        // The rules only act while commands are serialized, see ConcurrentCommandExecutor.
+        public boolean isOrderSensitive() {
+            return false;
         }
 
-        // Check if the device can start recording based on its status
-        if (smartDevices[deviceId].checkStatusAccess() || ((Camera) smartDevices[deviceId]).isCharging()) {
-            if (((Camera) smartDevices[deviceId]).startRecording()) {
-                System.out.println(deviceName + " " + deviceId + " started recording"); // Recording started
-            }
-        } else {
-            printNotStatusAccess(deviceName, deviceId); // Error if the device is off
+        public boolean isActive() {
+            return rules.length > 0;
         }
-    }
 
-    public static void stopRecording(String[] commandTerms, SmartDevice[] smartDevices) {
-        // Define the required number of fields for the command
-        final int numberOfFields = 3;
+        public Rule[] getRules() {
+            return rules;
+        }
 
-        // Validate the command length and the third field as a number
-        if (commandTerms.length != numberOfFields || isNotNumber(commandTerms[2])) {
-            printInvalidCommand(); // Print error if command is invalid
-            return; // Exit the method
+        // Adds a rule and returns its ID. See addRule for the arguments.
+        public synchronized int add(String text, DeviceType deviceType, int from, int to, DeviceField field,
+                                    Comparison comparison, int value, Command action, boolean onFiringDevice) {
+            Rule rule = new Rule(nextRuleId++, text, deviceType, from, to, field, comparison, value, action,
+                    onFiringDevice);
+            Rule[][] byField = rulesByField.clone();
+            byField[field.ordinal()] = append(byField[field.ordinal()], rule);
+            rulesByField = byField;
+            rules = append(rules, rule);
+            return rule.ruleId;
         }
 
-        // Extract device name and ID from the command
-        String deviceName = commandTerms[1];
-        int deviceId = Integer.parseInt(commandTerms[2]);
+        // Removes a rule. Returns false if there is no rule with the given ID.
+        public synchronized boolean remove(int ruleId) {
+            for (Rule rule : rules) {
+                if (rule.ruleId == ruleId) {
+                    Rule[][] byField = rulesByField.clone();
+                    byField[rule.field.ordinal()] = without(byField[rule.field.ordinal()], rule);
+                    rulesByField = byField;
+                    rules = without(rules, rule);
+                    return true;
+                }
+            }
+            return false;
+        }
 
-        // Check if the device exists in the system
-        if (isNotThereInSystem(deviceName, deviceId)) {
-            return; // Exit if the device is not found
+        private static Rule[] append(Rule[] rules, Rule rule) {
+            Rule[] appended = Arrays.copyOf(rules, rules.length + 1);
+            appended[rules.length] = rule;
+            return appended;
         }
 
-        // Set the device ID in the smart device instance
-        smartDevices[deviceId].setDeviceId(deviceId);
+        private static Rule[] without(Rule[] rules, Rule rule) {
+            Rule[] remaining = new Rule[rules.length - 1];
+            int count = 0;
+            for (Rule other : rules) {
+                if (other != rule) {
+                    remaining[count++] = other;
+                }
+            }
+            return remaining;
+        }
 
-        // Check if the device is of type Camera
-        if (!(smartDevices[deviceId] instanceof Camera)) {
-            System.out.println(deviceName + " " + deviceId + " is not a camera"); // Error if not a camera
-            return; // Exit the method
+        public void deviceChanged(int deviceId, DeviceField field, int oldValue, int newValue) {
+            Rule[] fieldRules = rulesByField[field.ordinal()];
+            if (fieldRules.length == 0) {
+                return; // No rule on the field, which is the common case
+            }
+            synchronized (this) {
+                for (Rule rule : fieldRules) {
+                    if (deviceId < rule.from || deviceId > rule.to || smartDevices.typeOf(deviceId) != rule.deviceType) {
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    boolean fired = rule.comparison.test(newValue, rule.value) && !rule.comparison.test(oldValue, rule.value);
+                    rule.evaluations++;
+                    rule.nanos += System.nanoTime() - start;
+                    if (fired) {
+                        enqueue(rule, deviceId, running ? depth + 1 : 0);
+                    }
+                }
+            }
         }
 
-        // Check if the device can stop recording based on its status
-        if (smartDevices[deviceId].checkStatusAccess() || ((Camera) smartDevices[deviceId]).isCharging()) {
-            if (((Camera) smartDevices[deviceId]).stopRecording()) {
-                System.out.println(deviceName + " " + deviceId + " stopped recording"); // Recording stopped
+        private void enqueue(Rule rule, int deviceId, int chainDepth) {
+            int count = pendingCount;
+            if (count == pendingRules.length) {
+                pendingRules = Arrays.copyOf(pendingRules, count * 2);
+                pendingDevices = Arrays.copyOf(pendingDevices, count * 2);
+                pendingDepths = Arrays.copyOf(pendingDepths, count * 2);
             }
-        } else {
-            printNotStatusAccess(deviceName, deviceId); // Error if the device is off
+            pendingRules[count] = rule;
+            pendingDevices[count] = deviceId;
+            pendingDepths[count] = chainDepth;
+            pendingCount = count + 1;
         }
-    }
 
-    public static boolean isNotNumber(String str) {
-        // Check if the given string can be parsed as an integer
-        try {
-            Integer.parseInt(str); // Attempt to parse the string
-        } catch (Exception e) {
-            return true; // Return true if parsing fails
+        // Runs the commands of the rules that fired, oldest first, and of the rules they fire
+        // in turn. Does nothing when called from one of those commands.
+        public void runActions() {
+            if (pendingCount == 0) {
+                return;
+            }
+            synchronized (this) {
+                if (running) {
+                    return;
+                }
+                running = true;
+                try {
+                    int actions = 0;
+                    for (int i = 0; i < pendingCount; i++) {
+                        Rule rule = pendingRules[i];
+                        int deviceId = pendingDevices[i];
+                        depth = pendingDepths[i];
+                        if (depth >= MAX_DEPTH) {
+                            rule.stopped++;
+                            responseSink().println("Rule " + rule.ruleId + " is stopped, the rules are in a loop");
+                            continue;
+                        }
+                        if (actions++ == MAX_ACTIONS) {
+                            for (int j = i; j < pendingCount; j++) {
+                                pendingRules[j].stopped++;
+                            }
+                            responseSink().println("The rules are stopped after " + MAX_ACTIONS + " commands");
+                            break;
+                        }
+                        long start = System.nanoTime();
+                        executeCommand(rule.actionFor(deviceId), smartDevices);
+                        rule.actions++;
+                        rule.nanos += System.nanoTime() - start;
+                    }
+                } finally {
+                    Arrays.fill(pendingRules, 0, pendingCount, null);
+                    pendingCount = 0;
+                    running = false;
+                }
+            }
         }
-        return false; // Return false if parsing succeeds
     }
 
-    public static void printNotStatusAccess(String deviceName, int deviceId) {
-        // Print a message indicating the device is off and cannot be accessed
-        System.out.println("You can't change the "
-                + "status of the " + deviceName + " "
-                + deviceId + " while it is off");
+    // Creates an empty in-memory store of the given type: "objects", "columnar" or "atomic".
+    public static DeviceStore newDeviceStore(String storeType) {
+        switch (storeType) {
+            case "columnar":
+                return new ColumnarDeviceStore();
+            case "atomic":
+                return new AtomicDeviceStore();
+            default:
+                return new DeviceRegistry();
+        }
     }
 
-    public static void printInvalidCommand() {
-        // Print a message indicating the command is invalid
-        System.out.println("Invalid command");
+    // Channel that lets go of the lock held by the reading thread while it reads.
+    private static ReadableByteChannel unlockedWhileReading(ReadableByteChannel channel, ReentrantLock lock) {
+        return new ReadableByteChannel() {
+            public int read(ByteBuffer destination) throws IOException {
+                lock.unlock();
+                try {
+                    return channel.read(destination);
+                } finally {
+                    lock.lock();
+                }
+            }
+
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
     }
 
-    public static void main(String[] args) {
-        // Initialize the smart devices
-        SmartDevice[] smartDevices = initializeSmartDevices();
-        Scanner scanner = new Scanner(System.in);
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // Output is written in batches unless it goes to a terminal or "--flush=immediate" is given
+        boolean immediateFlush = System.console() != null;
+        int numberOfLights = NUMBER_OF_LIGHTS;
+        int numberOfCameras = NUMBER_OF_CAMERAS;
+        int numberOfHeaters = NUMBER_OF_HEATERS;
+        String storeType = "objects";
+        String mappedFile = null;
+        String journalFile = null;
+        String auditFile = null;
+        String batchFile = null;
+        boolean pipelined = false;
+        boolean simulatedClock = false;
+        boolean usageMeter = false;
+        int numberOfThreads = 1;
+        int numberOfShards = 0;
+        long coalesceMillis = 0;
+        long historyRetention = -1;
+        int serverPort = -1;
+        int maxConnections = 1024;
+        int idleTimeoutMillis = 60_000;
+        int writeTimeoutMillis = 10_000;
+        int maxPendingOutput = 1 << 20;
+        long groupCommitMillis = 10;
+        long checkpointInterval = 1_000_000;
+        for (String arg : args) {
+            if (arg.equals("--flush=immediate")) {
+                immediateFlush = true;
+            } else if (arg.equals("--flush=batch")) {
+                immediateFlush = false;
+            } else if (arg.equals("--store=objects") || arg.equals("--store=columnar")
+                    || arg.equals("--store=atomic")) {
+                storeType = arg.substring("--store=".length());
+            } else if (arg.startsWith("--store=mapped:")) {
+                mappedFile = arg.substring("--store=mapped:".length());
+            } else if (arg.startsWith("--serve=")) {
+                serverPort = Integer.parseInt(arg.substring("--serve=".length()));
+            } else if (arg.startsWith("--max-connections=")) {
+                maxConnections = Integer.parseInt(arg.substring("--max-connections=".length()));
+            } else if (arg.startsWith("--idle-timeout-ms=")) {
+                idleTimeoutMillis = Integer.parseInt(arg.substring("--idle-timeout-ms=".length()));
+            } else if (arg.startsWith("--write-timeout-ms=")) {
+                writeTimeoutMillis = Integer.parseInt(arg.substring("--write-timeout-ms=".length()));
+            } else if (arg.startsWith("--max-output-kb=")) {
+                maxPendingOutput = Integer.parseInt(arg.substring("--max-output-kb=".length())) << 10;
+            } else if (arg.startsWith("--threads=")) {
+                numberOfThreads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--shards=")) {
+                numberOfShards = Integer.parseInt(arg.substring("--shards=".length()));
+            } else if (arg.startsWith("--coalesce-ms=")) {
+                coalesceMillis = Long.parseLong(arg.substring("--coalesce-ms=".length()));
+            } else if (arg.equals("--history=all")) {
+                historyRetention = Long.MAX_VALUE;
+            } else if (arg.startsWith("--history=")) {
+                historyRetention = Long.parseLong(arg.substring("--history=".length()));
+            } else if (arg.equals("--pipeline")) {
+                pipelined = true;
+            } else if (arg.equals("--timing")) {
+                getCommandStats().setTiming(true);
+            } else if (arg.equals("--usage")) {
+                usageMeter = true;
+            } else if (arg.equals("--clock=simulated") || arg.equals("--clock=real")) {
+                simulatedClock = arg.equals("--clock=simulated");
+            } else if (arg.startsWith("--batch=")) {
+                batchFile = arg.substring("--batch=".length());
+            } else if (arg.startsWith("--audit-log=")) {
+                auditFile = arg.substring("--audit-log=".length());
+            } else if (arg.startsWith("--journal=")) {
+                journalFile = arg.substring("--journal=".length());
+            } else if (arg.startsWith("--group-commit-ms=")) {
+                groupCommitMillis = Long.parseLong(arg.substring("--group-commit-ms=".length()));
+            } else if (arg.startsWith("--checkpoint-every=")) {
+                checkpointInterval = Long.parseLong(arg.substring("--checkpoint-every=".length()));
+            } else if (arg.startsWith("--lights=")) {
+                numberOfLights = Integer.parseInt(arg.substring("--lights=".length()));
+            } else if (arg.startsWith("--cameras=")) {
+                numberOfCameras = Integer.parseInt(arg.substring("--cameras=".length()));
+            } else if (arg.startsWith("--heaters=")) {
+                numberOfHeaters = Integer.parseInt(arg.substring("--heaters=".length()));
+            }
+        }
+        setResponseSink(new BufferedResponseSink(new FileOutputStream(FileDescriptor.out), immediateFlush));
 
-        // Infinite loop to process user commands
-        while (true) {
-            String commandLine = scanner.nextLine(); // Read user input
-            String[] commandTerms = commandLine.split(" "); // Split input into command terms
-            String command = commandTerms[0]; // Extract the command name
+        // Scheduled commands run at the time of day, unless the clock only moves with AdvanceClock
+        CommandScheduler.setRealTime(!simulatedClock);
 
-            // Exit the loop if the "end" command is issued
-            if (command.equals("end")) {
-                break;
+        // Run many homes on shards, each home with a store of its own in memory
+        if (numberOfShards > 0) {
+            if (mappedFile != null || journalFile != null || auditFile != null || batchFile != null || serverPort >= 0
+                    || numberOfThreads > 1) {
+                throw new IllegalArgumentException("Homes on shards are kept in memory and read from standard input only");
+            }
+            final String homeStoreType = storeType;
+            final int lights = numberOfLights;
+            final int cameras = numberOfCameras;
+            final int heaters = numberOfHeaters;
+            final long retention = historyRetention;
+            final boolean metered = usageMeter;
+            try {
+                new ShardedCommandExecutor(numberOfShards, () -> {
+                    DeviceStore homeDevices = initializeSmartDevices(newDeviceStore(homeStoreType), lights, cameras, heaters);
+                    if (retention >= 0) {
+                        homeDevices.history().enable(retention);
+                    }
+                    if (metered) {
+                        homeDevices.usage().enable();
+                    }
+                    return homeDevices;
+                }).run(new FileInputStream(FileDescriptor.in).getChannel());
+            } finally {
+                responseSink().flush();
             }
+            return;
+        }
 
-            // Handle different commands using a switch statement
-            switch (command) {
-                case "DisplayAllStatus":
-                    displayAllStatus(commandTerms, smartDevices); // Display device statuses
-                    break;
-                case "TurnOn":
-                    turnOn(commandTerms, smartDevices); // Turn on a device
-                    break;
-                case "TurnOff":
-                    turnOff(commandTerms, smartDevices); // Turn off a device
-                    break;
-                case "StartCharging":
-                    startCharging(commandTerms, smartDevices); // Start charging a device
-                    break;
-                case "StopCharging":
-                    stopCharging(commandTerms, smartDevices); // Stop charging a device
-                    break;
-                case "SetTemperature":
-                    setTemperature(commandTerms, smartDevices); // Set temperature for a heater
-                    break;
-                case "SetBrightness":
-                    setBrightness(commandTerms, smartDevices); // Set brightness for a light
-                    break;
-                case "SetColor":
-                    setColor(commandTerms, smartDevices); // Set color for a light
-                    break;
-                case "SetAngle":
-                    setAngle(commandTerms, smartDevices); // Set angle for a camera
-                    break;
-                case "StartRecording":
-                    startRecording(commandTerms, smartDevices); // Start recording for a camera
-                    break;
-                case "StopRecording":
-                    stopRecording(commandTerms, smartDevices); // Stop recording for a camera
-                    break;
-                default:
-                    printInvalidCommand(); // Handle invalid commands
+        // Initialize the smart devices, devices in a mapped file or a journal keep their state
+        DeviceStore smartDevices;
+        DeviceJournal journal = null;
+        if (mappedFile != null) {
+            if (journalFile != null) {
+                throw new IllegalArgumentException("A mapped store is persistent already and cannot be journaled");
+            }
+            MappedDeviceStore mappedDevices = MappedDeviceStore.open(Paths.get(mappedFile));
+            smartDevices = mappedDevices.isRestored() ? mappedDevices : initializeSmartDevices(
+                    mappedDevices, numberOfLights, numberOfCameras, numberOfHeaters);
+        } else if (journalFile != null) {
+            DeviceStore journaledDevices = newDeviceStore(storeType);
+            final int lights = numberOfLights;
+            final int cameras = numberOfCameras;
+            final int heaters = numberOfHeaters;
+            journal = DeviceJournal.open(Paths.get(journalFile), journaledDevices,
+                    () -> initializeSmartDevices(journaledDevices, lights, cameras, heaters),
+                    groupCommitMillis, checkpointInterval);
+            smartDevices = journaledDevices;
+            // A response is only written once the changes before it are durable
+            setResponseSink(new BufferedResponseSink(
+                    journal.syncBeforeWrite(new FileOutputStream(FileDescriptor.out)), immediateFlush));
+        } else {
+            smartDevices = initializeSmartDevices(newDeviceStore(storeType),
+                    numberOfLights, numberOfCameras, numberOfHeaters);
+        }
+        ReadableByteChannel input = new FileInputStream(FileDescriptor.in).getChannel();
+
+        // Record the past values of the devices for the retention given in minutes, or for all time
+        if (historyRetention >= 0) {
+            smartDevices.history().enable(historyRetention);
+        }
+
+        // Meter how long the devices are on, charging and recording if asked to
+        if (usageMeter) {
+            smartDevices.usage().enable();
+        }
+
+        // Follow the changes made by the commands in an audit log if one is given
+        AuditLog auditLog = null;
+        if (auditFile != null) {
+            DeviceChangeRing changeRing = new DeviceChangeRing(1 << 16,
+                    numberOfThreads > 1 || serverPort >= 0 || batchFile != null);
+            smartDevices.changes().add(changeRing);
+            auditLog = new AuditLog(changeRing, Paths.get(auditFile));
+        }
+
+        // Process user commands until the "end" command or the end of input. The clock ticks
+        // in between the commands of whichever executor runs them.
+        ClockTicker ticker = null;
+        try {
+            if (batchFile != null) {
+                // Run a file of commands in parallel, on as many threads as there are processors by default
+                if (serverPort >= 0 || coalesceMillis > 0) {
+                    throw new IllegalArgumentException("A batch file is run on its own, without a server or coalescing");
+                }
+                BatchCommandExecutor executor = new BatchCommandExecutor(smartDevices, numberOfThreads > 1
+                        ? numberOfThreads : Runtime.getRuntime().availableProcessors());
+                ticker = ClockTicker.start(smartDevices, executor::runExclusive);
+                executor.run(Paths.get(batchFile));
+                return;
+            }
+            if (serverPort >= 0) {
+                // Serve controllers on the loopback interface instead of reading standard input
+                ConcurrentCommandExecutor executor = new ConcurrentCommandExecutor(
+                        smartDevices, new StripedLocks(Runtime.getRuntime().availableProcessors() * 16));
+                ticker = ClockTicker.start(smartDevices, executor::runExclusive);
+                try (CommandServer server = new CommandServer(executor,
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), serverPort),
+                        maxConnections, idleTimeoutMillis, writeTimeoutMillis, maxPendingOutput)) {
+                    server.setJournal(journal);
+                    server.serve();
+                }
+                return;
+            }
+            if (pipelined) {
+                // Read, parse, execute and write on threads of their own
+                if (coalesceMillis > 0 || numberOfThreads > 1) {
+                    throw new IllegalArgumentException("The pipeline runs the commands on a single thread");
+                }
+                StagedPipeline pipeline = new StagedPipeline(smartDevices);
+                ticker = ClockTicker.start(smartDevices, pipeline::runExclusive);
+                pipeline.run(input);
+                return;
+            }
+            if (coalesceMillis > 0) {
+                // Drop setters made redundant by later ones within the window
+                CommandCoalescer coalescer = new CommandCoalescer(smartDevices, coalesceMillis);
+                ticker = ClockTicker.start(smartDevices, coalescer::runExclusive);
+                coalescer.run(input);
+                return;
+            }
+            if (numberOfThreads > 1) {
+                ConcurrentCommandExecutor executor = new ConcurrentCommandExecutor(
+                        smartDevices, new StripedLocks(numberOfThreads * 16));
+                ticker = ClockTicker.start(smartDevices, executor::runExclusive);
+                executor.run(input, numberOfThreads);
+                return;
+            }
+
+            // Commands run under a lock that is only let go while waiting for input, when the clock may tick
+            ReentrantLock executing = new ReentrantLock(true);
+            executing.lock();
+            try {
+                ticker = ClockTicker.start(smartDevices, task -> {
+                    executing.lock();
+                    try {
+                        task.run();
+                    } finally {
+                        executing.unlock();
+                    }
+                });
+                CommandTokenizer tokenizer = new CommandTokenizer(unlockedWhileReading(input, executing));
+                while (tokenizer.nextLine()) {
+                    if (!executeCommand(tokenizer, smartDevices)) {
+                        break;
+                    }
+                }
+            } finally {
+                executing.unlock();
+            }
+        } finally {
+            if (ticker != null) {
+                ticker.close();
+            }
+            responseSink().flush(); // Write out what is left of the last batch
+            if (journal != null) {
+                journal.close(); // Commit the last group of changes
+            }
+            if (auditLog != null) {
+                auditLog.close();
             }
         }
     }
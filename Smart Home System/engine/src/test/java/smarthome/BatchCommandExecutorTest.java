@@ -0,0 +1,43 @@
+package smarthome;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import smarthome.SmartHomeManagementSystem.BatchCommandExecutor;
+
+// A file run on partitions prints the same lines as running its commands one after the other.
+class BatchCommandExecutorTest {
+    private static final int NUMBER_OF_THREADS = 4;
+
+    @TempDir
+    Path directory;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"objects", "columnar", "atomic"})
+    void printsWhatASerialRunPrints(String storeType) throws IOException {
+        List<String> commands = EngineTests.anyCommands(EngineTests.SEED, 100_000);
+        Path file = Files.write(directory.resolve("commands.txt"), EngineTests.asInput(commands));
+        List<String> expected = EngineTests.runSerially(commands, EngineTests.newStore(storeType));
+
+        BatchCommandExecutor executor = new BatchCommandExecutor(EngineTests.newStore(storeType), NUMBER_OF_THREADS);
+        EngineTests.CollectingSink output = new EngineTests.CollectingSink();
+        SmartHomeManagementSystem.bindResponseSink(output);
+        try {
+            executor.run(file);
+        } finally {
+            SmartHomeManagementSystem.unbindResponseSink();
+        }
+
+        assertTrue(expected.size() > commands.size() / 2);
+        assertEquals(expected, output.lines());
+    }
+}
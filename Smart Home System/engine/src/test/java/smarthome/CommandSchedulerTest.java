@@ -0,0 +1,99 @@
+package smarthome;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import smarthome.SmartHomeManagementSystem.CommandScheduler;
+import smarthome.SmartHomeManagementSystem.DeviceStore;
+
+// Tasks of a simulated scheduler run at their minutes as the clock is moved, whatever level
+// of the wheel they were put on.
+class CommandSchedulerTest {
+    private final CommandScheduler scheduler = new CommandScheduler(false);
+    private final DeviceStore smartDevices = EngineTests.newStore();
+    private final EngineTests.CollectingSink output = new EngineTests.CollectingSink();
+
+    @BeforeEach
+    void bindOutput() {
+        SmartHomeManagementSystem.bindResponseSink(output);
+    }
+
+    @AfterEach
+    void unbindOutput() {
+        SmartHomeManagementSystem.unbindResponseSink();
+    }
+
+    private int schedule(String commandLine, long deadline, int period) {
+        return scheduler.schedule(SmartHomeManagementSystem.parseCommand(commandLine), deadline, period);
+    }
+
+    @Test
+    void cascadesDeadlinesDownToTheFirstLevel() {
+        long onLevel2 = 3 * 64 * 64 + 5 * 64 + 7;
+        long onLevel3 = 2 * 64 * 64 * 64 + 64 + 1;
+        schedule("TurnOff Light 1", onLevel2, 0);
+        schedule("TurnOff Light 2", onLevel3, 0);
+
+        scheduler.advanceTo(onLevel2 - 1, smartDevices);
+        assertEquals(List.of(), output.lines());
+        scheduler.advanceTo(onLevel2, smartDevices);
+        assertEquals(List.of("Light 1 is off"), output.lines());
+
+        scheduler.fastForward((int) (onLevel3 - 1 - onLevel2), smartDevices);
+        assertEquals(onLevel3 - 1, scheduler.now());
+        assertEquals(List.of("Light 1 is off"), output.lines());
+        scheduler.fastForward(1, smartDevices);
+        assertEquals(List.of("Light 1 is off", "Light 2 is off"), output.lines());
+    }
+
+    @Test
+    void cancelsOnlyTasksThatRunAgain() {
+        int pending = schedule("TurnOff Light 1", 100, 0);
+        int done = schedule("TurnOff Light 2", 10, 0);
+
+        scheduler.advanceTo(50, smartDevices);
+        assertFalse(scheduler.cancel(done));
+        assertTrue(scheduler.cancel(pending));
+        assertFalse(scheduler.cancel(pending));
+
+        scheduler.advanceTo(1_000, smartDevices);
+        assertEquals(List.of("Light 2 is off"), output.lines());
+    }
+
+    @Test
+    void runsRecurringTasksEveryPeriod() {
+        int task = schedule("TurnOn Light 1", 10, 30);
+
+        scheduler.advanceTo(100, smartDevices); // Runs at 10, 40, 70 and 100.
+        assertEquals(4, output.lines().size());
+        scheduler.advanceTo(129, smartDevices);
+        assertEquals(4, output.lines().size());
+        scheduler.advanceTo(130, smartDevices);
+        assertEquals(5, output.lines().size());
+
+        assertTrue(scheduler.cancel(task));
+        scheduler.advanceTo(1_000, smartDevices);
+        assertEquals(5, output.lines().size());
+    }
+
+    // The first two tasks reach the slot of their minute by cascading, after the third was
+    // put there directly, and still run first.
+    @Test
+    void runsTasksOfTheSameMinuteInTaskIdOrder() {
+        long deadline = 78 * 64 + 8;
+        schedule("TurnOff Light 5", deadline, 0);
+        schedule("TurnOff Light 6", deadline, 0);
+        scheduler.advanceTo(78 * 64 - 10, smartDevices);
+        schedule("TurnOff Light 7", deadline, 0);
+
+        scheduler.advanceTo(deadline, smartDevices);
+        assertEquals(List.of("Light 5 is off", "Light 6 is off", "Light 7 is off"), output.lines());
+    }
+}
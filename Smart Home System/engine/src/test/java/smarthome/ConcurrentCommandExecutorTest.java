@@ -0,0 +1,120 @@
+package smarthome;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import smarthome.SmartHomeManagementSystem.ConcurrentCommandExecutor;
+import smarthome.SmartHomeManagementSystem.DeviceStore;
+import smarthome.SmartHomeManagementSystem.StripedLocks;
+
+// Commands run on several threads keep the lines of a device in the order of its changes,
+// so what is printed for a device could have come from a serial run.
+class ConcurrentCommandExecutorTest {
+    private static final int NUMBER_OF_THREADS = 4;
+
+    // Returns the commands to turn random lights on and off, many times each.
+    private static List<String> switchCommands(int numberOfCommands) {
+        SplittableRandom random = new SplittableRandom(EngineTests.SEED);
+        List<String> commands = new ArrayList<>();
+        for (int i = 0; i < numberOfCommands; i++) {
+            int light = random.nextInt(EngineTests.NUMBER_OF_LIGHTS);
+            commands.add((random.nextBoolean() ? "TurnOn Light " : "TurnOff Light ") + light);
+        }
+        return commands;
+    }
+
+    // Checks that every line for a light follows from the one before it: "is on" after the
+    // light was off, "is already on" after it was on, and the same for off. The lines of
+    // DisplayAllStatus must show the light as the line before it left it.
+    private static void assertConsistentPerLight(List<String> lines) {
+        Map<String, Boolean> isOn = new HashMap<>();
+        for (String line : lines) {
+            String[] words = line.split(" ", 3);
+            if (words.length < 3 || !words[0].equals("Light")) {
+                fail("Unexpected line: " + line);
+            }
+            boolean on;
+            boolean changed;
+            if (words[2].startsWith("is ON,") || words[2].startsWith("is OFF,")) {
+                on = words[2].startsWith("is ON,");
+                assertEquals(isOn.getOrDefault(words[1], true), on, () -> "Stale status: " + line);
+                continue;
+            }
+            switch (words[2]) {
+                case "is on":
+                    on = true;
+                    changed = true;
+                    break;
+                case "is off":
+                    on = false;
+                    changed = true;
+                    break;
+                case "is already on":
+                    on = true;
+                    changed = false;
+                    break;
+                case "is already off":
+                    on = false;
+                    changed = false;
+                    break;
+                default:
+                    fail("Unexpected line: " + line);
+                    return;
+            }
+            Boolean wasOn = isOn.put(words[1], on);
+            if (wasOn == null) {
+                wasOn = true; // Lights start on.
+            }
+            assertEquals(changed, wasOn != on, () -> "Out of order for Light " + words[1] + ": " + line);
+        }
+    }
+
+    private static List<String> run(List<String> commands, String storeType) throws Exception {
+        DeviceStore smartDevices = EngineTests.newStore(storeType);
+        ConcurrentCommandExecutor executor = new ConcurrentCommandExecutor(smartDevices, new StripedLocks(64));
+        EngineTests.CollectingSink output = new EngineTests.CollectingSink();
+        SmartHomeManagementSystem.bindResponseSink(output);
+        try {
+            executor.run(EngineTests.channelOf(commands), NUMBER_OF_THREADS);
+        } finally {
+            SmartHomeManagementSystem.unbindResponseSink();
+        }
+        return output.lines();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"objects", "columnar", "atomic"})
+    void keepsTheOrderOfEachDevice(String storeType) throws Exception {
+        List<String> commands = switchCommands(200_000);
+        List<String> lines = run(commands, storeType);
+        assertEquals(commands.size(), lines.size());
+        assertConsistentPerLight(lines);
+    }
+
+    // DisplayAllStatus runs alone, after the commands that run without a lock on an atomic
+    // store printed their lines.
+    @ParameterizedTest
+    @ValueSource(strings = {"objects", "atomic"})
+    void showsTheStatusLeftByTheLinesBefore(String storeType) throws Exception {
+        List<String> commands = switchCommands(100_000);
+        for (int i = commands.size() - 1; i > 0; i -= 2_000) {
+            commands.add(i, "DisplayAllStatus");
+        }
+        List<String> lines = new ArrayList<>();
+        for (String line : run(commands, storeType)) {
+            if (line.startsWith("Light ")) {
+                lines.add(line);
+            }
+        }
+        assertConsistentPerLight(lines);
+    }
+}
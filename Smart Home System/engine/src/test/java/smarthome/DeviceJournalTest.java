@@ -0,0 +1,143 @@
+package smarthome;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import smarthome.SmartHomeManagementSystem.DeviceJournal;
+import smarthome.SmartHomeManagementSystem.DeviceStore;
+
+// Recovery of the devices from the checkpoint and the tail of the journal, as after a crash.
+class DeviceJournalTest {
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 16;
+    private static final long NO_CHECKPOINT = Long.MAX_VALUE; // Keeps every change in the tail.
+
+    @TempDir
+    Path directory;
+
+    // Opens the journal on a new store, which the initializer fills if there is no checkpoint.
+    private DeviceJournal open(DeviceStore smartDevices, AtomicBoolean initialized, long checkpointInterval)
+            throws IOException {
+        return DeviceJournal.open(directory.resolve("devices.journal"), smartDevices, () -> {
+            initialized.set(true);
+            SmartHomeManagementSystem.initializeSmartDevices(smartDevices, EngineTests.NUMBER_OF_LIGHTS,
+                    EngineTests.NUMBER_OF_CAMERAS, EngineTests.NUMBER_OF_HEATERS);
+        }, 0, checkpointInterval);
+    }
+
+    private DeviceJournal open(DeviceStore smartDevices, AtomicBoolean initialized) throws IOException {
+        return open(smartDevices, initialized, NO_CHECKPOINT);
+    }
+
+    // Runs the commands on a journaled store and returns the status of its devices.
+    private List<String> runJournaled(List<String> commands, long checkpointInterval) throws IOException {
+        DeviceStore smartDevices = SmartHomeManagementSystem.newDeviceStore("objects");
+        try (DeviceJournal journal = open(smartDevices, new AtomicBoolean(), checkpointInterval)) {
+            EngineTests.runSerially(commands, smartDevices);
+        }
+        return EngineTests.statusOf(smartDevices);
+    }
+
+    private List<String> runJournaled(List<String> commands) throws IOException {
+        return runJournaled(commands, NO_CHECKPOINT);
+    }
+
+    private long journalSize() throws IOException {
+        return Files.size(directory.resolve("devices.journal"));
+    }
+
+    @Test
+    void restoresTheChangesOfTheTail() throws IOException {
+        List<String> commands = EngineTests.deviceCommands(EngineTests.SEED, 2_000);
+        List<String> status = runJournaled(commands);
+
+        DeviceStore restored = SmartHomeManagementSystem.newDeviceStore("objects");
+        AtomicBoolean initialized = new AtomicBoolean();
+        try (DeviceJournal journal = open(restored, initialized)) {
+            assertFalse(initialized.get());
+            assertEquals((journalSize() - HEADER_SIZE) / RECORD_SIZE, journal.getReplayedRecords());
+        }
+        assertEquals(status, EngineTests.statusOf(restored));
+        assertEquals(statusAfter(commands), status);
+    }
+
+    @Test
+    void dropsARecordTornByACrash() throws IOException {
+        List<String> status = runJournaled(EngineTests.deviceCommands(EngineTests.SEED, 500));
+        long size = journalSize();
+        try (FileChannel channel = FileChannel.open(directory.resolve("devices.journal"), StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0, 0, 0})); // Part of a record.
+        }
+
+        DeviceStore restored = SmartHomeManagementSystem.newDeviceStore("objects");
+        try (DeviceJournal journal = open(restored, new AtomicBoolean())) {
+            assertEquals(size, journalSize());
+        }
+        assertEquals(status, EngineTests.statusOf(restored));
+    }
+
+    @Test
+    void stopsAtACorruptRecord() throws IOException {
+        List<String> commands = EngineTests.deviceCommands(EngineTests.SEED, 500);
+        runJournaled(commands);
+        long size = journalSize();
+        long records = (size - HEADER_SIZE) / RECORD_SIZE;
+        try (FileChannel channel = FileChannel.open(directory.resolve("devices.journal"),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, size - 1);
+            last.put(0, (byte) ~last.get(0)); // Breaks the check of the last record.
+            channel.write(last.rewind(), size - 1);
+        }
+
+        DeviceStore restored = SmartHomeManagementSystem.newDeviceStore("objects");
+        try (DeviceJournal journal = open(restored, new AtomicBoolean())) {
+            assertEquals(records - 1, journal.getReplayedRecords());
+            assertEquals(size - RECORD_SIZE, journalSize());
+        }
+    }
+
+    @Test
+    void keepsAppendingAfterARecovery() throws IOException {
+        List<String> commands = EngineTests.deviceCommands(EngineTests.SEED, 1_000);
+        runJournaled(commands.subList(0, 500));
+        List<String> status = runJournaled(commands.subList(500, 1_000));
+
+        assertEquals(statusAfter(commands), status);
+    }
+
+    // The flusher takes checkpoints while the commands go on changing the devices, the
+    // records of those changes go to the journal after the checkpoint.
+    @Test
+    void restoresTheCheckpointsOfTheFlusher() throws IOException {
+        List<String> commands = EngineTests.deviceCommands(EngineTests.SEED, 20_000);
+        List<String> status = runJournaled(commands, 100);
+
+        DeviceStore restored = SmartHomeManagementSystem.newDeviceStore("objects");
+        AtomicBoolean initialized = new AtomicBoolean();
+        try (DeviceJournal journal = open(restored, initialized, 100)) {
+            assertFalse(initialized.get());
+        }
+        assertEquals(status, EngineTests.statusOf(restored));
+        assertEquals(statusAfter(commands), status);
+    }
+
+    // Status of the devices after running the commands on a store without a journal.
+    private static List<String> statusAfter(List<String> commands) {
+        DeviceStore smartDevices = EngineTests.newStore();
+        EngineTests.runSerially(commands, smartDevices);
+        return EngineTests.statusOf(smartDevices);
+    }
+}
@@ -0,0 +1,156 @@
+package smarthome;
+
+import java.io.ByteArrayInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import smarthome.SmartHomeManagementSystem.DeviceStore;
+import smarthome.SmartHomeManagementSystem.ResponseSink;
+
+// Inputs and helpers shared by the tests. Every input comes from a fixed seed, so a failure
+// can be reproduced by running the test again.
+final class EngineTests {
+    static final long SEED = 20241017L;
+    static final int NUMBER_OF_LIGHTS = 40;
+    static final int NUMBER_OF_CAMERAS = 40;
+    static final int NUMBER_OF_HEATERS = 40;
+
+    private static final String[] BRIGHTNESS_LEVELS = {"LOW", "MEDIUM", "HIGH"};
+    private static final String[] LIGHT_COLORS = {"WHITE", "YELLOW"};
+
+    private EngineTests() {
+    }
+
+    // Sink that keeps the lines it is given, from any thread.
+    static final class CollectingSink implements ResponseSink {
+        private final List<String> lines = new ArrayList<>();
+
+        public synchronized void println(String line) {
+            lines.add(line);
+        }
+
+        public void flush() {
+        }
+
+        synchronized List<String> lines() {
+            return new ArrayList<>(lines);
+        }
+    }
+
+    static DeviceStore newStore(String storeType) {
+        return SmartHomeManagementSystem.initializeSmartDevices(SmartHomeManagementSystem.newDeviceStore(storeType),
+                NUMBER_OF_LIGHTS, NUMBER_OF_CAMERAS, NUMBER_OF_HEATERS);
+    }
+
+    static DeviceStore newStore() {
+        return newStore("objects");
+    }
+
+    // Returns a command that changes a random device, valid or not.
+    static String deviceCommand(SplittableRandom random) {
+        int light = random.nextInt(NUMBER_OF_LIGHTS);
+        int camera = NUMBER_OF_LIGHTS + random.nextInt(NUMBER_OF_CAMERAS);
+        int heater = NUMBER_OF_LIGHTS + NUMBER_OF_CAMERAS + random.nextInt(NUMBER_OF_HEATERS);
+        switch (random.nextInt(12)) {
+            case 0:
+                return "TurnOn Light " + light;
+            case 1:
+                return "TurnOff Camera " + camera;
+            case 2:
+                return "TurnOn Camera " + camera;
+            case 3:
+                return "SetTemperature Heater " + heater + " " + (12 + random.nextInt(22));
+            case 4:
+                return "SetBrightness Light " + light + " " + BRIGHTNESS_LEVELS[random.nextInt(3)];
+            case 5:
+                return "SetColor Light " + light + " " + LIGHT_COLORS[random.nextInt(2)];
+            case 6:
+                return "SetAngle Camera " + camera + " " + (-70 + random.nextInt(140));
+            case 7:
+                return "StartRecording Camera " + camera;
+            case 8:
+                return "StopRecording Camera " + camera;
+            case 9:
+                return "StartCharging Light " + light;
+            case 10:
+                return "StopCharging Camera " + camera;
+            default:
+                return "TurnOff Heater " + heater;
+        }
+    }
+
+    // Returns mostly device commands, with some commands for the whole store and some
+    // invalid ones.
+    static String anyCommand(SplittableRandom random) {
+        switch (random.nextInt(40)) {
+            case 0:
+                return "DisplayAllStatus";
+            case 1:
+                return "AddDevice Heater";
+            case 2:
+                return "RemoveDevice Light " + random.nextInt(NUMBER_OF_LIGHTS);
+            case 3:
+                return "SetTemperature Heater x 20";
+            case 4:
+                return "TurnOn Lamp " + random.nextInt(NUMBER_OF_LIGHTS);
+            default:
+                return deviceCommand(random);
+        }
+    }
+
+    static List<String> deviceCommands(long seed, int numberOfCommands) {
+        SplittableRandom random = new SplittableRandom(seed);
+        List<String> commands = new ArrayList<>();
+        for (int i = 0; i < numberOfCommands; i++) {
+            commands.add(deviceCommand(random));
+        }
+        return commands;
+    }
+
+    static List<String> anyCommands(long seed, int numberOfCommands) {
+        SplittableRandom random = new SplittableRandom(seed);
+        List<String> commands = new ArrayList<>();
+        for (int i = 0; i < numberOfCommands; i++) {
+            commands.add(anyCommand(random));
+        }
+        return commands;
+    }
+
+    static byte[] asInput(List<String> lines) {
+        return (String.join("\n", lines) + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static ReadableByteChannel channelOf(List<String> lines) {
+        return Channels.newChannel(new ByteArrayInputStream(asInput(lines)));
+    }
+
+    // Runs the commands one after the other on the calling thread, the way the original
+    // program does, and returns what they print.
+    static List<String> runSerially(List<String> commands, DeviceStore smartDevices) {
+        CollectingSink output = new CollectingSink();
+        SmartHomeManagementSystem.bindResponseSink(output);
+        try {
+            for (String command : commands) {
+                if (!SmartHomeManagementSystem.executeCommandLine(command, smartDevices)) {
+                    break;
+                }
+            }
+        } finally {
+            SmartHomeManagementSystem.unbindResponseSink();
+        }
+        return output.lines();
+    }
+
+    static List<String> runSerially(List<String> commands) {
+        return runSerially(commands, newStore());
+    }
+
+    // Returns what DisplayAllStatus prints for the store.
+    static List<String> statusOf(DeviceStore smartDevices) {
+        return runSerially(List.of("DisplayAllStatus"), smartDevices);
+    }
+}
@@ -0,0 +1,115 @@
+package smarthome;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import smarthome.SmartHomeManagementSystem.DeviceStore;
+import smarthome.SmartHomeManagementSystem.MappedDeviceStore;
+
+// Restoring the devices from the file of a mapped store, and refusing files it can't map.
+class MappedDeviceStoreTest {
+    private static final int SIZE_OFFSET = 16;
+
+    @TempDir
+    Path directory;
+
+    private Path file() {
+        return directory.resolve("devices.map");
+    }
+
+    // Opens the store, filling it with the devices of the tests if the file is new.
+    private MappedDeviceStore open() throws IOException {
+        MappedDeviceStore smartDevices = MappedDeviceStore.open(file());
+        if (!smartDevices.isRestored()) {
+            SmartHomeManagementSystem.initializeSmartDevices(smartDevices, EngineTests.NUMBER_OF_LIGHTS,
+                    EngineTests.NUMBER_OF_CAMERAS, EngineTests.NUMBER_OF_HEATERS);
+        }
+        return smartDevices;
+    }
+
+    @Test
+    void restoresTheDevicesOfTheFile() throws IOException {
+        List<String> commands = EngineTests.anyCommands(EngineTests.SEED, 5_000);
+        List<String> status;
+        try (MappedDeviceStore smartDevices = open()) {
+            assertFalse(smartDevices.isRestored());
+            EngineTests.runSerially(commands, smartDevices);
+            smartDevices.sync();
+            status = EngineTests.statusOf(smartDevices);
+        }
+
+        try (MappedDeviceStore restored = open()) {
+            assertTrue(restored.isRestored());
+            assertEquals(status, EngineTests.statusOf(restored));
+        }
+
+        // The commands changed the devices the same way as on a store in memory
+        assertNotEquals(EngineTests.statusOf(EngineTests.newStore()), status);
+        assertEquals(EngineTests.statusOf(runOnNewStore(commands)), status);
+    }
+
+    @Test
+    void restoresGrownFiles() throws IOException {
+        List<String> commands = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            commands.add("AddDevice Light");
+        }
+        commands.add("TurnOn Light 2100");
+        List<String> status;
+        try (MappedDeviceStore smartDevices = open()) {
+            EngineTests.runSerially(commands, smartDevices);
+            status = EngineTests.statusOf(smartDevices);
+        }
+
+        try (MappedDeviceStore restored = open()) {
+            assertEquals(EngineTests.NUMBER_OF_LIGHTS + EngineTests.NUMBER_OF_CAMERAS
+                    + EngineTests.NUMBER_OF_HEATERS + 2_000, restored.size());
+            assertEquals(status, EngineTests.statusOf(restored));
+        }
+    }
+
+    @Test
+    void refusesAFileThatIsNotAStore() throws IOException {
+        Files.write(file(), new byte[128]);
+        IOException e = assertThrows(IOException.class, () -> MappedDeviceStore.open(file()));
+        assertEquals("Not a device file", e.getMessage());
+    }
+
+    @Test
+    void refusesATruncatedHeader() throws IOException {
+        Files.write(file(), new byte[] {0x53, 0x48, 0x4d, 0x53});
+        assertThrows(IOException.class, () -> MappedDeviceStore.open(file()));
+    }
+
+    @Test
+    void refusesAnInconsistentHeader() throws IOException {
+        open().close();
+        try (FileChannel channel = FileChannel.open(file(), StandardOpenOption.WRITE)) {
+            ByteBuffer size = ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE);
+            channel.write(size.flip(), SIZE_OFFSET); // More devices than records.
+        }
+        IOException e = assertThrows(IOException.class, () -> MappedDeviceStore.open(file()));
+        assertEquals("Device file header is inconsistent", e.getMessage());
+    }
+
+    private static DeviceStore runOnNewStore(List<String> commands) {
+        DeviceStore smartDevices = EngineTests.newStore();
+        EngineTests.runSerially(commands, smartDevices);
+        return smartDevices;
+    }
+}
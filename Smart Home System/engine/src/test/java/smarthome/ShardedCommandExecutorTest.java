@@ -0,0 +1,55 @@
+package smarthome;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import smarthome.SmartHomeManagementSystem.ShardedCommandExecutor;
+
+// Each home on a shard prints what its commands print when they run one after the other.
+class ShardedCommandExecutorTest {
+    @ParameterizedTest
+    @ValueSource(ints = {1, 3})
+    void printsEachHomeAsASerialRun(int numberOfShards) throws Exception {
+        String[] homes = {"home1", "home2", "home3", "home4", "home5"};
+        List<String> commands = EngineTests.anyCommands(EngineTests.SEED, 50_000);
+        List<String> input = new ArrayList<>();
+        Map<String, List<String>> commandsOfHome = new HashMap<>();
+        SplittableRandom random = new SplittableRandom(EngineTests.SEED);
+        for (String command : commands) {
+            String home = homes[random.nextInt(homes.length)];
+            input.add(home + ": " + command);
+            commandsOfHome.computeIfAbsent(home, name -> new ArrayList<>()).add(command);
+        }
+
+        ShardedCommandExecutor executor = new ShardedCommandExecutor(numberOfShards, EngineTests::newStore);
+        EngineTests.CollectingSink output = new EngineTests.CollectingSink();
+        SmartHomeManagementSystem.bindResponseSink(output);
+        try {
+            executor.run(EngineTests.channelOf(input));
+        } finally {
+            SmartHomeManagementSystem.unbindResponseSink();
+        }
+
+        assertEquals(homes.length, executor.getNumberOfHomes());
+        Map<String, List<String>> linesOfHome = new HashMap<>();
+        for (String line : output.lines()) {
+            String home = line.substring(0, line.indexOf(':'));
+            linesOfHome.computeIfAbsent(home, name -> new ArrayList<>()).add(line);
+        }
+        for (String home : homes) {
+            List<String> expected = new ArrayList<>();
+            for (String line : EngineTests.runSerially(commandsOfHome.get(home))) {
+                expected.add(home + ": " + line);
+            }
+            assertEquals(expected, linesOfHome.get(home), home);
+        }
+    }
+}